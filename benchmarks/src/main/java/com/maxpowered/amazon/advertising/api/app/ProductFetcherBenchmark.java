@@ -0,0 +1,103 @@
+package com.maxpowered.amazon.advertising.api.app;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.maxpowered.amazon.advertising.api.benchmarks.Payloads;
+
+/**
+ * Time from startup until the first ASIN to look up is known, and until the whole input has been read, on a large
+ * synthetic input file and processed index. The index holds the second half of the input (plus as many ASINs that are
+ * not in the input), like a run resumed halfway through. Opening the index is part of the time, migrating it from a
+ * text file is not.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx16g" })
+public class ProductFetcherBenchmark {
+	@Param({ "1000000", "10000000", "50000000" })
+	private long lines;
+
+	private File inputFile;
+	private File processedFile;
+	private ProductFetcher fetcher;
+
+	@Setup(Level.Trial)
+	public void writeFiles() throws Exception {
+		inputFile = File.createTempFile("asins", ".txt");
+		inputFile.deleteOnExit();
+		Payloads.writeAsinFile(inputFile, 0, lines);
+
+		processedFile = File.createTempFile("asins", ".txt.processed");
+		processedFile.deleteOnExit();
+		Payloads.writeAsinFile(processedFile, lines / 2, lines);
+		// Migrate the text file and wait for the index's runs to be merged
+		new ProcessedAsinIndex(indexDir(), processedFile).close();
+	}
+
+	@Setup(Level.Invocation)
+	public void openFetcher() throws Exception {
+		fetcher = new ProductFetcher(null, null);
+		fetcher.setInputStream(new FileInputStream(inputFile));
+	}
+
+	@Benchmark
+	public String firstAsin() throws Exception {
+		fetcher.setProcessedFile(processedFile);
+		fetcher.computeASINsToLookUp();
+		return fetcher.getNewAsins().next();
+	}
+
+	@Benchmark
+	public long allAsins() throws Exception {
+		fetcher.setProcessedFile(processedFile);
+		fetcher.computeASINsToLookUp();
+		final Iterator<String> asins = fetcher.getNewAsins();
+		long count = 0;
+		while (asins.hasNext()) {
+			asins.next();
+			count++;
+		}
+		return count;
+	}
+
+	@TearDown(Level.Invocation)
+	public void closeFetcher() throws Exception {
+		fetcher.close();
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteFiles() throws IOException {
+		inputFile.delete();
+		processedFile.delete();
+		new File(processedFile.getPath() + ".migrated").delete();
+		new File(processedFile.getPath() + ".retry").delete();
+		new File(processedFile.getPath() + ".checkpoint").delete();
+		FileUtils.deleteDirectory(indexDir());
+	}
+
+	private File indexDir() {
+		return new File(processedFile.getPath() + ".index");
+	}
+}
@@ -0,0 +1,96 @@
+package com.maxpowered.amazon.advertising.api.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.IOUtils;
+
+import com.maxpowered.amazon.advertising.api.Constants;
+
+/**
+ * Builds the inputs the benchmarks run against: ItemLookupResponse payloads recorded from the API (see
+ * src/main/resources/responses, one Item per ResponseGroup combination) and synthetic ASIN files.
+ */
+public final class Payloads {
+	public static final String NAMESPACE = "http://webservices.amazon.com/AWSECommerceService/"
+			+ Constants.API_VERSION;
+
+	private static final String ASIN_PLACEHOLDER = "${ASIN}";
+
+	private Payloads() {
+	}
+
+	/**
+	 * @return a synthetic but well-formed ASIN, unique for each index.
+	 */
+	public static String asin(final long index) {
+		return String.format("B%09d", index);
+	}
+
+	/**
+	 * Build a full ItemLookupResponse holding the recorded item for the response groups, repeated with distinct ASINs.
+	 *
+	 * @param responseGroups
+	 *            Comma-seperated response groups, matching one of the recorded responses.
+	 * @param itemCount
+	 *            How many items to put in the response
+	 */
+	public static byte[] itemLookupResponse(final String responseGroups, final int itemCount) throws IOException {
+		final String itemTemplate = recordedItem(responseGroups);
+
+		final StringBuilder response = new StringBuilder();
+		response.append("<?xml version=\"1.0\" ?>");
+		response.append("<ItemLookupResponse xmlns=\"").append(NAMESPACE).append("\">");
+		response.append("<OperationRequest><RequestId>7b7d7ad1-2b1c-4ba1-9b0e-2d5b2f7a0c51</RequestId>");
+		response.append("<Arguments><Argument Name=\"Operation\" Value=\"ItemLookup\"></Argument></Arguments>");
+		response.append("<RequestProcessingTime>0.0416230000000000</RequestProcessingTime></OperationRequest>");
+		response.append("<Items><Request><IsValid>True</IsValid><ItemLookupRequest><IdType>ASIN</IdType>");
+		for (int i = 0; i < itemCount; i++) {
+			response.append("<ItemId>").append(asin(i)).append("</ItemId>");
+		}
+		for (final String responseGroup : responseGroups.split(",")) {
+			response.append("<ResponseGroup>").append(responseGroup).append("</ResponseGroup>");
+		}
+		response.append("<VariationPage>All</VariationPage></ItemLookupRequest></Request>");
+		for (int i = 0; i < itemCount; i++) {
+			response.append(itemTemplate.replace(ASIN_PLACEHOLDER, asin(i)));
+		}
+		response.append("</Items></ItemLookupResponse>");
+
+		return response.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Write a file of newline-separated ASINs, as read by the ProductFetcher.
+	 *
+	 * @param first
+	 *            Index of the first ASIN, so files can overlap
+	 * @param count
+	 *            Number of ASINs (lines) to write
+	 */
+	public static void writeAsinFile(final File file, final long first, final long count) throws IOException {
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+				StandardCharsets.UTF_8), 1 << 16)) {
+			for (long i = first; i < first + count; i++) {
+				writer.write(asin(i));
+				writer.write(System.lineSeparator());
+			}
+		}
+	}
+
+	private static String recordedItem(final String responseGroups) throws IOException {
+		final String resource = "/responses/" + responseGroups.replace(',', '_') + ".xml";
+		try (InputStream in = Payloads.class.getResourceAsStream(resource)) {
+			if (in == null) {
+				throw new IllegalArgumentException("No recorded response for response groups " + responseGroups);
+			}
+			return IOUtils.toString(in, StandardCharsets.UTF_8);
+		}
+	}
+}
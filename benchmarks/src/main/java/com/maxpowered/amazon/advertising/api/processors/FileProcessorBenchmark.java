@@ -0,0 +1,74 @@
+package com.maxpowered.amazon.advertising.api.processors;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazon.webservices.awsecommerceservice._2013_08_01.Item;
+import com.amazon.webservices.awsecommerceservice._2013_08_01.ItemLookupResponse;
+import com.amazon.webservices.awsecommerceservice._2013_08_01.Request;
+import com.maxpowered.amazon.advertising.api.ItemsHandler;
+import com.maxpowered.amazon.advertising.api.JAXBPool;
+import com.maxpowered.amazon.advertising.api.RawItem;
+import com.maxpowered.amazon.advertising.api.RawItemScanner;
+import com.maxpowered.amazon.advertising.api.benchmarks.Payloads;
+
+/**
+ * Cost of writing one item through the FileProcessor, without the disk, marshalled or copied as raw XML.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class FileProcessorBenchmark {
+	@Param({ "ItemAttributes", "Images,ItemAttributes", "Images,ItemAttributes,OfferFull,Reviews" })
+	private String responseGroups;
+
+	private FileProcessor processor;
+	private Item item;
+	private RawItem rawItem;
+
+	@Setup
+	public void setUp() throws Exception {
+		final ItemLookupResponse response = (ItemLookupResponse) JAXBPool.getContext().createUnmarshaller()
+				.unmarshal(new ByteArrayInputStream(Payloads.itemLookupResponse(responseGroups, 1)));
+		item = response.getItems().get(0).getItem().get(0);
+		RawItemScanner.scan(Payloads.itemLookupResponse(responseGroups, 1), new ItemsHandler<RawItem>() {
+			@Override
+			public void request(final int index, final Request request) {
+			}
+
+			@Override
+			public void item(final int index, final RawItem item) {
+				rawItem = item;
+			}
+		});
+
+		processor = new FileProcessor("benchmark.xml");
+		processor.setOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+	}
+
+	@Benchmark
+	public void writeItem() throws Exception {
+		processor.writeItem(item);
+	}
+
+	@Benchmark
+	public void writeRawItem() throws Exception {
+		processor.writeRawItem(rawItem);
+	}
+}
@@ -5,8 +5,36 @@ import com.amazon.webservices.awsecommerceservice._2013_08_01.Errors;
 public class APIRequestException extends Exception {
 	private static final long serialVersionUID = 4943079295157496363L;
 
+	/**
+	 * Error codes meaning the item itself is bad, so asking for it again cannot succeed.
+	 */
+	public static final String CODE_INVALID_PARAMETER_VALUE = "AWS.InvalidParameterValue";
+	public static final String CODE_ITEM_NOT_ACCESSIBLE = "AWS.ECommerceService.ItemNotAccessible";
+
+	private final String code;
+	private final String errorMessage;
+
 	public APIRequestException(final Errors.Error error) {
 		super("Error returned by API: [code] " + error.getCode() + " [message] " + error.getMessage());
+		code = error.getCode();
+		errorMessage = error.getMessage();
+	}
+
+	public String getCode() {
+		return code;
 	}
 
+	/**
+	 * @return The message as returned by the API
+	 */
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+
+	/**
+	 * @return true if the error is about an item ID that will never be found, rather than a temporary problem
+	 */
+	public boolean isInvalidItem() {
+		return CODE_INVALID_PARAMETER_VALUE.equals(code) || CODE_ITEM_NOT_ACCESSIBLE.equals(code);
+	}
 }
@@ -1,16 +1,30 @@
 package com.maxpowered.amazon.advertising.api;
 
-import java.io.IOException;
-
 public class APIResponseException extends Exception {
 	private static final long serialVersionUID = -5915884724183412163L;
+	/**
+	 * The API answers with 503 Service Unavailable when requests are sent faster than the account allows.
+	 */
+	private static final int HTTP_THROTTLED = 503;
 
 	public APIResponseException(final String msg) {
 		super(msg);
 	}
 
-	public APIResponseException(final String msg, final IOException error) {
+	/**
+	 * @param error
+	 *            The IOException of a failed request, or the XMLStreamException or JAXBException of a response that was
+	 *            cut short or malformed
+	 */
+	public APIResponseException(final String msg, final Exception error) {
 		super(msg, error);
 	}
 
+	/**
+	 * @return true if the API rejected the request because too many requests were sent
+	 */
+	public boolean isThrottled() {
+		return getCause() instanceof HttpStatusException
+				&& ((HttpStatusException) getCause()).getStatusCode() == HTTP_THROTTLED;
+	}
 }
@@ -1,38 +1,117 @@
 package com.maxpowered.amazon.advertising.api;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.io.InputStream;
+import java.lang.reflect.Method;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 
 import javax.xml.bind.JAXBException;
 import javax.xml.stream.XMLStreamException;
 
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 
+import com.amazon.webservices.awsecommerceservice._2013_08_01.Item;
 import com.amazon.webservices.awsecommerceservice._2013_08_01.ItemLookupResponse;
 import com.amazon.webservices.awsecommerceservice._2013_08_01.ItemSearchResponse;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * Finds products through the Amazon Products API.
  *
- * Operations supported so far are: ItemLookup, ItemSearch.
+ * Operations supported so far are: ItemLookup, ItemSearch. Each has a blocking and an asynchronous variant. The
+ * asynchronous ones run on a configurable executor, with at most a fixed number of requests in flight at once.
+ * ItemLookup can also stream items to an {@link ItemsHandler} one at a time instead of returning the whole response.
  */
-public class AmazonProductsAPI {
+public class AmazonProductsAPI implements AutoCloseable {
 	private static final Logger LOG = LoggerFactory.getLogger(AmazonProductsAPI.class);
+	/**
+	 * Most item IDs a single ItemLookup operation accepts.
+	 */
+	public static final int MAX_ITEMS_PER_LOOKUP = 10;
+	/**
+	 * Most ItemLookup operations one batch request may carry.
+	 */
+	public static final int MAX_LOOKUPS_PER_BATCH = 2;
+	/**
+	 * Most item IDs one batch request can look up.
+	 */
+	public static final int MAX_ITEMS_PER_BATCH = MAX_ITEMS_PER_LOOKUP * MAX_LOOKUPS_PER_BATCH;
 	private final SignedRequestsHelper helper;
-	private final boolean logFullResponse;
+	private final ResponseLog responseLog;
+	private final Semaphore inFlightRequests;
+	private final Runnable releaseInFlightRequest = new Runnable() {
+		@Override
+		public void run() {
+			inFlightRequests.release();
+		}
+	};
 
+	private ListeningExecutorService executor;
+	private boolean ownsExecutor;
+
+	/**
+	 * @param responseLog
+	 *            Where responses are logged, in the background
+	 * @param maxInFlightRequests
+	 *            How many asynchronous requests may be running at once. Further calls block until one completes.
+	 */
 	@Autowired
-	public AmazonProductsAPI(final SignedRequestsHelper helper,
-			@Value("${app.logFullResponse}") final boolean logFullResponse) {
+	public AmazonProductsAPI(final SignedRequestsHelper helper, final ResponseLog responseLog,
+			@Value("${app.maxInFlightRequests}") final int maxInFlightRequests) {
+		if (maxInFlightRequests < 1) {
+			throw new IllegalArgumentException("maxInFlightRequests must be at least 1");
+		}
 		this.helper = helper;
-		this.logFullResponse = logFullResponse;
+		this.responseLog = responseLog;
+		inFlightRequests = new Semaphore(maxInFlightRequests);
+	}
+
+	/**
+	 * Set the executor asynchronous requests run on. The caller stays responsible for shutting it down. If none is
+	 * set, requests run on virtual threads when the JVM has them and on a cached pool of daemon threads otherwise.
+	 */
+	public synchronized void setExecutor(final ExecutorService executor) {
+		if (ownsExecutor) {
+			this.executor.shutdown();
+		}
+		this.executor = MoreExecutors.listeningDecorator(executor);
+		ownsExecutor = false;
+	}
+
+	private synchronized ListeningExecutorService getExecutor() {
+		if (executor == null) {
+			executor = MoreExecutors.listeningDecorator(newDefaultExecutor());
+			ownsExecutor = true;
+		}
+		return executor;
+	}
+
+	private static ExecutorService newDefaultExecutor() {
+		try {
+			// Java 21+, looked up reflectively so this still runs on older JVMs
+			final Method virtualThreadExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			LOG.debug("Running asynchronous requests on virtual threads");
+			return (ExecutorService) virtualThreadExecutor.invoke(null);
+		} catch (final ReflectiveOperationException e) {
+			LOG.debug("Running asynchronous requests on a thread pool");
+			return Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("api-request-%d")
+					.setDaemon(true).build());
+		}
 	}
 
 	/**
@@ -59,6 +138,162 @@ public class AmazonProductsAPI {
 		return response;
 	}
 
+	/**
+	 * Asynchronous {@link #itemLookup(String, String)}. Blocks while the maximum number of requests are in flight.
+	 *
+	 * @return The response. A non-200 response fails the future with an {@link APIResponseException} as the cause of
+	 *         the ExecutionException, other errors with the JAXBException, XMLStreamException or IOException.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for another request to complete
+	 */
+	public ListenableFuture<ItemLookupResponse> itemLookupAsync(final String asin, final String responseGroups)
+			throws InterruptedException {
+		return submit(new Callable<ItemLookupResponse>() {
+			@Override
+			public ItemLookupResponse call() throws Exception {
+				return itemLookup(asin, responseGroups);
+			}
+		});
+	}
+
+	/**
+	 * Do a batch ItemLookup request, packing up to {@link #MAX_ITEMS_PER_BATCH} items into one HTTP request as
+	 * ItemLookup.1 and ItemLookup.2 operations sharing the response groups. Counts as a single request against the
+	 * hourly limit.
+	 *
+	 * @see http://docs.aws.amazon.com/AWSECommerceService/latest/DG/BatchandMultipleOperationRequests.html
+	 *
+	 * @param asins
+	 *            Up to {@link #MAX_ITEMS_PER_BATCH} item IDs
+	 * @param responseGroups
+	 *            Comma-seperated response groups.
+	 * @return The response, with one Items element for each operation: the first for the first
+	 *         {@link #MAX_ITEMS_PER_LOOKUP} ASINs, the second for the rest. At most 10 ASINs are sent as a plain
+	 *         ItemLookup.
+	 */
+	public ItemLookupResponse itemLookup(final List<String> asins, final String responseGroups) throws JAXBException,
+			XMLStreamException, IOException, APIResponseException {
+		return getResponseItem(itemLookupParams(asins, responseGroups), ItemLookupResponse.class);
+	}
+
+	/**
+	 * Streaming {@link #itemLookup(List, String)}. Each item is unmarshalled and handed to the handler on its own as
+	 * it is read from the response, so only one is held in memory at a time.
+	 *
+	 * @return The handler
+	 * @throws APIResponseException
+	 *             if the request failed, or the response was cut short or malformed. Items handed over before that
+	 *             stand.
+	 */
+	public <H extends ItemsHandler<Item>> H itemLookup(final List<String> asins, final String responseGroups,
+			final H handler) throws APIResponseException {
+		final Map<String, String> params = itemLookupParams(asins, responseGroups);
+		try {
+			helper.unmarshalItems(openResponse(params), handler);
+		} catch (final IOException e) {
+			throw new APIResponseException("API returned a non-200 response code", e);
+		} catch (final XMLStreamException | JAXBException e) {
+			// Cut short or malformed, the items handled so far stand and the rest can be asked for again
+			throw new APIResponseException("Error reading the API response", e);
+		}
+		return handler;
+	}
+
+	/**
+	 * Like {@link #itemLookup(List, String, ItemsHandler)}, but hands over the items' XML as it appeared in the
+	 * response, to be copied to the output without unmarshalling and marshalling it again.
+	 *
+	 * @return The handler
+	 */
+	public <H extends ItemsHandler<RawItem>> H itemLookupRaw(final List<String> asins, final String responseGroups,
+			final H handler) throws APIResponseException {
+		final Map<String, String> params = itemLookupParams(asins, responseGroups);
+		try {
+			helper.scanItems(openResponse(params), handler);
+		} catch (final IOException e) {
+			throw new APIResponseException("API returned a non-200 response code", e);
+		} catch (final JAXBException e) {
+			throw new APIResponseException("Error reading the API response", e);
+		}
+		return handler;
+	}
+
+	private static Map<String, String> itemLookupParams(final List<String> asins, final String responseGroups) {
+		if (asins.isEmpty() || asins.size() > MAX_ITEMS_PER_BATCH) {
+			throw new IllegalArgumentException("Between 1 and " + MAX_ITEMS_PER_BATCH + " ASINs can be looked up, got "
+					+ asins.size());
+		}
+		final Map<String, String> params = new HashMap<String, String>();
+		params.put("Operation", "ItemLookup");
+		if (asins.size() <= MAX_ITEMS_PER_LOOKUP) {
+			params.put("ItemId", Joiner.on(',').join(asins));
+			params.put("ResponseGroup", responseGroups);
+			return params;
+		}
+
+		params.put("ItemLookup.Shared.ResponseGroup", responseGroups);
+		int operation = 1;
+		for (final List<String> lookup : Lists.partition(asins, MAX_ITEMS_PER_LOOKUP)) {
+			params.put("ItemLookup." + operation++ + ".ItemId", Joiner.on(',').join(lookup));
+		}
+		return params;
+	}
+
+	/**
+	 * Asynchronous {@link #itemLookup(List, String)}. Blocks while the maximum number of requests are in flight.
+	 *
+	 * @return The response. Fails the same way as {@link #itemLookupAsync(String, String)}.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for another request to complete
+	 */
+	public ListenableFuture<ItemLookupResponse> itemLookupAsync(final List<String> asins, final String responseGroups)
+			throws InterruptedException {
+		return submit(new Callable<ItemLookupResponse>() {
+			@Override
+			public ItemLookupResponse call() throws Exception {
+				return itemLookup(asins, responseGroups);
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous {@link #itemLookup(List, String, ItemsHandler)}. The handler is called on the thread running the
+	 * request.
+	 *
+	 * @return The handler once the whole response was read. Fails the same way as
+	 *         {@link #itemLookupAsync(String, String)}.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for another request to complete
+	 */
+	public <H extends ItemsHandler<Item>> ListenableFuture<H> itemLookupAsync(final List<String> asins,
+			final String responseGroups, final H handler) throws InterruptedException {
+		return submit(new Callable<H>() {
+			@Override
+			public H call() throws Exception {
+				return itemLookup(asins, responseGroups, handler);
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous {@link #itemLookupRaw(List, String, ItemsHandler)}. The handler is called on the thread running the
+	 * request.
+	 *
+	 * @return The handler once the whole response was read. Fails the same way as
+	 *         {@link #itemLookupAsync(String, String)}.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for another request to complete
+	 */
+	public <H extends ItemsHandler<RawItem>> ListenableFuture<H> itemLookupRawAsync(final List<String> asins,
+			final String responseGroups, final H handler) throws InterruptedException {
+		return submit(new Callable<H>() {
+			@Override
+			public H call() throws Exception {
+				return itemLookupRaw(asins, responseGroups, handler);
+			}
+		});
+	}
+
 	/**
 	 * Do an ItemLookup request with customizable ResponseGroup.
 	 *
@@ -104,22 +339,72 @@ public class AmazonProductsAPI {
 		// return null;
 	}
 
+	/**
+	 * Asynchronous {@link #itemSearch(String, String, String)}. Blocks while the maximum number of requests are in
+	 * flight.
+	 *
+	 * @return The response. A non-200 response fails the future with an {@link APIResponseException} as the cause of
+	 *         the ExecutionException, other errors with the JAXBException, XMLStreamException or IOException.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for another request to complete
+	 */
+	public ListenableFuture<ItemSearchResponse> itemSearchAsync(final String query, final String responseGroup,
+			final String searchIndex) throws InterruptedException {
+		return submit(new Callable<ItemSearchResponse>() {
+			@Override
+			public ItemSearchResponse call() throws Exception {
+				return itemSearch(query, responseGroup, searchIndex);
+			}
+		});
+	}
+
+	private <T> ListenableFuture<T> submit(final Callable<T> request) throws InterruptedException {
+		inFlightRequests.acquire();
+		try {
+			final ListenableFuture<T> future = getExecutor().submit(request);
+			future.addListener(releaseInFlightRequest, MoreExecutors.directExecutor());
+			return future;
+		} catch (final RejectedExecutionException e) {
+			inFlightRequests.release();
+			throw e;
+		}
+	}
+
 	private <T> T getResponseItem(final Map<String, String> params, final Class<T> responseClass) throws JAXBException,
 			XMLStreamException, IOException, APIResponseException {
 		try {
-			if (LOG.isDebugEnabled() || logFullResponse) {
-				final byte[] responseBytes = IOUtils.toByteArray(helper.fetch(params));
-				if (logFullResponse) {
-					LOG.info("Got ItemLookupResponse {}", new String(responseBytes, StandardCharsets.UTF_8));
-				} else {
-					LOG.debug("Got ItemLookupResponse {}", new String(responseBytes, StandardCharsets.UTF_8));
-				}
-				return helper.unmarshal(new ByteArrayInputStream(responseBytes), responseClass);
-			} else {
-				return helper.fetchAndUnmarshal(params, responseClass);
-			}
+			return helper.unmarshal(openResponse(params), responseClass);
 		} catch (final IOException e) {
 			throw new APIResponseException("API returned a non-200 response code", e);
 		}
 	}
+
+	/**
+	 * Send the request. The response may be copied to the response log while it is read.
+	 */
+	private InputStream openResponse(final Map<String, String> params) throws IOException {
+		// Described before sending, signing adds the credentials to the params
+		final String description = describe(params);
+		return responseLog.tee(helper.fetch(params), description);
+	}
+
+	/**
+	 * @return The operation and the parameters naming what it is for, like the item IDs
+	 */
+	private static String describe(final Map<String, String> params) {
+		final StringBuilder description = new StringBuilder(params.get("Operation"));
+		for (final Map.Entry<String, String> param : params.entrySet()) {
+			if (param.getKey().endsWith("ItemId") || param.getKey().endsWith("Keywords")) {
+				description.append(' ').append(param.getKey()).append('=').append(param.getValue());
+			}
+		}
+		return description.toString();
+	}
+
+	@Override
+	public synchronized void close() {
+		if (ownsExecutor) {
+			executor.shutdown();
+		}
+	}
 }
@@ -0,0 +1,105 @@
+package com.maxpowered.amazon.advertising.api;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import com.maxpowered.util.LongIterator;
+import com.maxpowered.util.LongSet;
+
+/**
+ * Packs an ASIN into a long, so sets of ASINs can be kept as primitive longs, see {@link LongSet}.
+ *
+ * ASINs are up to 10 letters and digits. Each character is a base 37 digit from 1 to 36, digits first, so no ASIN
+ * encodes to 0 and the length is kept. Lower case letters encode as upper case.
+ */
+public final class AsinCodec {
+	public static final int MAX_LENGTH = 10;
+	/**
+	 * The code of no ASIN.
+	 */
+	public static final long EMPTY = 0;
+
+	private static final int RADIX = 37;
+
+	private AsinCodec() {
+	}
+
+	/**
+	 * @return Whether the string can be encoded: 1 to 10 letters and digits
+	 */
+	public static boolean isValid(final String asin) {
+		if (asin == null || asin.isEmpty() || asin.length() > MAX_LENGTH) {
+			return false;
+		}
+		for (int i = 0; i < asin.length(); i++) {
+			if (digit(asin.charAt(i)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             If the string is not a valid ASIN, see {@link #isValid(String)}
+	 */
+	public static long encode(final String asin) {
+		if (!isValid(asin)) {
+			throw new IllegalArgumentException("Not an ASIN: " + asin);
+		}
+		long code = 0;
+		for (int i = 0; i < asin.length(); i++) {
+			code = code * RADIX + digit(asin.charAt(i));
+		}
+		return code;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             If the code is not one {@link #encode(String)} returns
+	 */
+	public static String decode(long code) {
+		if (code <= EMPTY) {
+			throw new IllegalArgumentException("Not an ASIN code: " + code);
+		}
+		final char[] chars = new char[MAX_LENGTH];
+		int start = MAX_LENGTH;
+		while (code != 0) {
+			if (start == 0) {
+				throw new IllegalArgumentException("ASIN code too large: " + code);
+			}
+			final int digit = (int) (code % RADIX);
+			if (digit == 0) {
+				throw new IllegalArgumentException("Not an ASIN code: " + code);
+			}
+			chars[--start] = digit <= 10 ? (char) ('0' + digit - 1) : (char) ('A' + digit - 11);
+			code /= RADIX;
+		}
+		return new String(chars, start, MAX_LENGTH - start);
+	}
+
+	/**
+	 * @return The ASINs of a set of codes, for logging
+	 */
+	public static List<String> decodeAll(final LongSet codes) {
+		final List<String> asins = Lists.newArrayListWithCapacity(codes.size());
+		for (final LongIterator iter = codes.iterator(); iter.hasNext();) {
+			asins.add(decode(iter.next()));
+		}
+		return asins;
+	}
+
+	/**
+	 * @return The value of a character from 1 to 36, or 0 if it can't be part of an ASIN
+	 */
+	private static int digit(final char c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0' + 1;
+		} else if (c >= 'A' && c <= 'Z') {
+			return c - 'A' + 11;
+		} else if (c >= 'a' && c <= 'z') {
+			return c - 'a' + 11;
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,95 @@
+package com.maxpowered.amazon.advertising.api;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * The values of a {@link Projection}'s paths in one item, in document order. A path matching several elements, like
+ * the URLs of an item's image sets, has a value for each.
+ */
+public class FlatItem {
+	private final Projection projection;
+	private int[] pathIndexes;
+	private String[] values;
+	private int size = 0;
+
+	public FlatItem(final Projection projection) {
+		this.projection = projection;
+		pathIndexes = new int[projection.getPaths().size()];
+		values = new String[projection.getPaths().size()];
+	}
+
+	public Projection getProjection() {
+		return projection;
+	}
+
+	public String getASIN() {
+		return get(Projection.ASIN);
+	}
+
+	/**
+	 * @return The first value of the path, or null if the item has none or the path is not projected
+	 */
+	public String get(final String path) {
+		final int pathIndex = projection.indexOf(path);
+		for (int i = 0; i < size; i++) {
+			if (pathIndexes[i] == pathIndex) {
+				return values[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return Every value of the path, in document order
+	 */
+	public List<String> getAll(final String path) {
+		final int pathIndex = projection.indexOf(path);
+		final List<String> all = Lists.newArrayList();
+		for (int i = 0; i < size; i++) {
+			if (pathIndexes[i] == pathIndex) {
+				all.add(values[i]);
+			}
+		}
+		return all;
+	}
+
+	/**
+	 * @return The number of values
+	 */
+	public int size() {
+		return size;
+	}
+
+	public String getPath(final int index) {
+		return projection.getPaths().get(pathIndexes[index]);
+	}
+
+	public String getValue(final int index) {
+		return values[index];
+	}
+
+	void add(final int pathIndex, final String value) {
+		if (size == values.length) {
+			pathIndexes = Arrays.copyOf(pathIndexes, size * 2);
+			values = Arrays.copyOf(values, size * 2);
+		}
+		pathIndexes[size] = pathIndex;
+		values[size] = value;
+		size++;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder("FlatItem{");
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(getPath(i)).append('=').append(values[i]);
+		}
+		return sb.append('}').toString();
+	}
+}
@@ -0,0 +1,224 @@
+package com.maxpowered.amazon.advertising.api;
+
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.bind.JAXBException;
+
+/**
+ * Reads the projected paths of one Item element straight from the response bytes. Elements no path goes through are
+ * skipped by counting tags, without decoding or allocating anything. Only the text of projected elements is decoded.
+ *
+ * Handles what API responses contain: attributes, self-closing tags, comments, processing instructions and the
+ * predefined and numeric character references. Elements must not be prefixed, see {@link RawItemScanner}.
+ */
+final class FlatItemParser {
+	private static final int MAX_DEPTH = 64;
+	private static final byte[] COMMENT_END = "-->".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] CDATA_END = "]]>".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] PI_END = "?>".getBytes(StandardCharsets.US_ASCII);
+
+	private FlatItemParser() {
+	}
+
+	/**
+	 * @param offset
+	 *            Where the item's start tag begins
+	 * @param length
+	 *            Bytes up to and including the item's end tag
+	 */
+	static FlatItem parse(final byte[] bytes, final int offset, final int length, final Projection projection)
+			throws JAXBException {
+		final FlatItem item = new FlatItem(projection);
+		final int end = offset + length;
+		final Projection.Node[] stack = new Projection.Node[MAX_DEPTH];
+		int depth = 0;
+		// Skip the Item start tag itself, the projection is relative to it
+		int pos = tagEnd(bytes, offset, end) + 1;
+		stack[0] = projection.getRoot();
+
+		while ((pos = RawItemScanner.indexOf(bytes, (byte) '<', pos, end)) >= 0) {
+			final byte next = bytes[pos + 1];
+			if (next == '/') {
+				if (depth == 0) {
+					// The Item end tag
+					break;
+				}
+				depth--;
+				pos = tagEnd(bytes, pos, end) + 1;
+			} else if (next == '!' || next == '?') {
+				pos = skipMarkup(bytes, pos, end);
+			} else {
+				final int nameStart = pos + 1;
+				final int nameEnd = nameEnd(bytes, nameStart, end);
+				final int tagEnd = tagEnd(bytes, pos, end);
+				final boolean empty = bytes[tagEnd - 1] == '/';
+				final Projection.Node child = stack[depth].getChild(bytes, nameStart, nameEnd - nameStart);
+				pos = tagEnd + 1;
+				if (child == null) {
+					if (!empty) {
+						pos = skipElement(bytes, pos, end);
+					}
+					continue;
+				}
+				if (child.pathIndex >= 0) {
+					item.add(child.pathIndex, empty ? "" : text(bytes, pos, end));
+				}
+				if (!empty) {
+					if (++depth == MAX_DEPTH) {
+						throw new JAXBException("Item is nested deeper than " + MAX_DEPTH + " elements");
+					}
+					stack[depth] = child;
+				}
+			}
+		}
+		return item;
+	}
+
+	/**
+	 * @return The position after the end tag of the element whose content starts at the position
+	 */
+	static int skipElement(final byte[] bytes, int pos, final int end) throws JAXBException {
+		int depth = 1;
+		while ((pos = RawItemScanner.indexOf(bytes, (byte) '<', pos, end)) >= 0) {
+			final byte next = bytes[pos + 1];
+			if (next == '!' || next == '?') {
+				pos = skipMarkup(bytes, pos, end);
+				continue;
+			}
+			final int tagEnd = tagEnd(bytes, pos, end);
+			if (next == '/') {
+				if (--depth == 0) {
+					return tagEnd + 1;
+				}
+			} else if (bytes[tagEnd - 1] != '/') {
+				depth++;
+			}
+			pos = tagEnd + 1;
+		}
+		throw new JAXBException("Item ended inside an element");
+	}
+
+	/**
+	 * @return The position of the '>' closing the tag at the position. Quoted attribute values may contain '>'.
+	 */
+	static int tagEnd(final byte[] bytes, final int tagStart, final int end) throws JAXBException {
+		byte quote = 0;
+		for (int i = tagStart + 1; i < end; i++) {
+			final byte b = bytes[i];
+			if (quote != 0) {
+				if (b == quote) {
+					quote = 0;
+				}
+			} else if (b == '"' || b == '\'') {
+				quote = b;
+			} else if (b == '>') {
+				return i;
+			}
+		}
+		throw new JAXBException("Tag is not closed");
+	}
+
+	static int nameEnd(final byte[] bytes, int pos, final int end) {
+		while (pos < end) {
+			final byte b = bytes[pos];
+			if (b == '>' || b == '/' || b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+				break;
+			}
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * Skip a comment, CDATA section, declaration or processing instruction.
+	 *
+	 * @return The position after it
+	 */
+	static int skipMarkup(final byte[] bytes, final int pos, final int end) throws JAXBException {
+		final byte[] terminator;
+		if (startsWith(bytes, pos, end, "<!--")) {
+			terminator = COMMENT_END;
+		} else if (startsWith(bytes, pos, end, "<![CDATA[")) {
+			terminator = CDATA_END;
+		} else if (bytes[pos + 1] == '?') {
+			terminator = PI_END;
+		} else {
+			return tagEnd(bytes, pos, end) + 1;
+		}
+		final int found = RawItemScanner.indexOf(bytes, terminator, pos, end);
+		if (found < 0) {
+			throw new JAXBException("Markup is not closed");
+		}
+		return found + terminator.length;
+	}
+
+	static boolean startsWith(final byte[] bytes, final int pos, final int end, final String prefix) {
+		if (pos + prefix.length() > end) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (bytes[pos + i] != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The text from the position up to the next tag, with character references resolved
+	 */
+	private static String text(final byte[] bytes, final int start, final int end) throws JAXBException {
+		int textEnd = RawItemScanner.indexOf(bytes, (byte) '<', start, end);
+		if (textEnd < 0) {
+			textEnd = end;
+		}
+		final int ampersand = RawItemScanner.indexOf(bytes, (byte) '&', start, textEnd);
+		final String raw = new String(bytes, start, textEnd - start, StandardCharsets.UTF_8);
+		return ampersand < 0 ? raw : unescape(raw);
+	}
+
+	private static String unescape(final String s) throws JAXBException {
+		final StringBuilder sb = new StringBuilder(s.length());
+		int i = 0;
+		while (i < s.length()) {
+			final char c = s.charAt(i);
+			if (c != '&') {
+				sb.append(c);
+				i++;
+				continue;
+			}
+			final int semicolon = s.indexOf(';', i);
+			if (semicolon < 0) {
+				throw new JAXBException("Unterminated character reference in " + s);
+			}
+			final String ref = s.substring(i + 1, semicolon);
+			switch (ref) {
+				case "amp":
+					sb.append('&');
+					break;
+				case "lt":
+					sb.append('<');
+					break;
+				case "gt":
+					sb.append('>');
+					break;
+				case "quot":
+					sb.append('"');
+					break;
+				case "apos":
+					sb.append('\'');
+					break;
+				default:
+					if (ref.startsWith("#x")) {
+						sb.appendCodePoint(Integer.parseInt(ref.substring(2), 16));
+					} else if (ref.startsWith("#")) {
+						sb.appendCodePoint(Integer.parseInt(ref.substring(1)));
+					} else {
+						throw new JAXBException("Unknown entity &" + ref + ";");
+					}
+			}
+			i = semicolon + 1;
+		}
+		return sb.toString();
+	}
+}
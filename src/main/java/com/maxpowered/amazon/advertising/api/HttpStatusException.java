@@ -0,0 +1,21 @@
+package com.maxpowered.amazon.advertising.api;
+
+import java.io.IOException;
+
+/**
+ * The API answered with a status other than 200.
+ */
+public class HttpStatusException extends IOException {
+	private static final long serialVersionUID = 2870405323465138651L;
+
+	private final int statusCode;
+
+	public HttpStatusException(final int statusCode, final String reason, final String body) {
+		super("HTTP " + statusCode + " " + reason + ": " + body);
+		this.statusCode = statusCode;
+	}
+
+	public int getStatusCode() {
+		return statusCode;
+	}
+}
@@ -0,0 +1,23 @@
+package com.maxpowered.amazon.advertising.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Sends signed requests to the API. Implementations must be safe to use from multiple threads.
+ */
+public interface HttpTransport extends Closeable {
+	/**
+	 * GET the url and return the response body.
+	 *
+	 * @param url
+	 *            Signed request URL
+	 * @return The (decompressed) response body. Closing it releases the underlying connection.
+	 * @throws HttpStatusException
+	 *             if the API responded with anything but 200
+	 * @throws IOException
+	 *             if the request could not be completed
+	 */
+	InputStream get(String url) throws IOException;
+}
@@ -0,0 +1,468 @@
+package com.maxpowered.amazon.advertising.api;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.xml.bind.JAXBException;
+
+/**
+ * Turns the XML of Item elements into JSON objects, one line each, straight from the bytes. Each item is read into
+ * arrays of element positions, then written to a buffer that is reused for every item, and only then to the output, so
+ * an item that fails leaves nothing behind.
+ *
+ * An element with neither child elements nor attributes becomes a string. Others become objects, with attributes as
+ * "@name" keys and, if there are no child elements, the text as "#text". Sibling elements with the same name are put
+ * together in an array, so whether a value is an array depends on the item, as with Author. Namespace declarations and
+ * prefixes are dropped.
+ *
+ * With a {@link Projection}, only elements on its paths are written, each path's element with everything in it.
+ * Elements no path goes through are skipped by counting tags, as in {@link FlatItemParser}. Not thread safe.
+ */
+public final class ItemJsonWriter {
+	private static final int MAX_DEPTH = 64;
+	private static final byte[] CDATA_START = "<![CDATA[".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] CDATA_END = "]]>".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] TEXT_KEY = "#text".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	private final Projection projection;
+
+	/*
+	 * The elements written, by the order their start tags appear in. Element 0 is the Item element.
+	 */
+	private int elements = 0;
+	private int[] nameStarts = new int[64];
+	private int[] nameEnds = new int[64];
+	private int[] tagEnds = new int[64];
+	private int[] contentStarts = new int[64];
+	private int[] contentEnds = new int[64];
+	private int[] firstChildren = new int[64];
+	private int[] lastChildren = new int[64];
+	private int[] nextSiblings = new int[64];
+	private Projection.Node[] nodes = new Projection.Node[64];
+	private boolean[] wholes = new boolean[64];
+	private final int[] stack = new int[MAX_DEPTH];
+
+	private byte[] buffer = new byte[16384];
+	private int size = 0;
+
+	/**
+	 * @param projection
+	 *            The paths to write, or null to write whole items
+	 */
+	public ItemJsonWriter(final Projection projection) {
+		this.projection = projection;
+	}
+
+	public Projection getProjection() {
+		return projection;
+	}
+
+	/**
+	 * Write an Item element as a line of JSON.
+	 *
+	 * @param offset
+	 *            Where the item's start tag begins
+	 * @param length
+	 *            Bytes up to and including the item's end tag
+	 */
+	public void writeLine(final byte[] bytes, final int offset, final int length, final OutputStream out)
+			throws JAXBException, IOException {
+		read(bytes, offset, offset + length);
+		size = 0;
+		writeValue(bytes, 0, true);
+		put('\n');
+		out.write(buffer, 0, size);
+	}
+
+	/**
+	 * Find the elements to write and link each to its parent.
+	 */
+	private void read(final byte[] bytes, final int offset, final int end) throws JAXBException {
+		elements = 0;
+		int pos = FlatItemParser.tagEnd(bytes, offset, end) + 1;
+		int depth = 0;
+		stack[0] = add(offset + 1, offset + 1, pos - 1, projection == null ? null : projection.getRoot(),
+				projection == null);
+
+		while ((pos = RawItemScanner.indexOf(bytes, (byte) '<', pos, end)) >= 0) {
+			final byte next = bytes[pos + 1];
+			if (next == '/') {
+				final int element = stack[depth];
+				contentEnds[element] = pos;
+				pos = FlatItemParser.tagEnd(bytes, pos, end) + 1;
+				if (depth == 0) {
+					// The Item end tag
+					return;
+				}
+				depth--;
+				link(element, stack[depth]);
+			} else if (next == '!' || next == '?') {
+				pos = FlatItemParser.skipMarkup(bytes, pos, end);
+			} else {
+				final int nameEnd = FlatItemParser.nameEnd(bytes, pos + 1, end);
+				final int nameStart = localName(bytes, pos + 1, nameEnd);
+				final int tagEnd = FlatItemParser.tagEnd(bytes, pos, end);
+				final boolean empty = bytes[tagEnd - 1] == '/';
+				final int parent = stack[depth];
+				Projection.Node node = null;
+				boolean whole = wholes[parent];
+				if (!whole) {
+					node = nodes[parent].getChild(bytes, nameStart, nameEnd - nameStart);
+					if (node == null) {
+						pos = empty ? tagEnd + 1 : FlatItemParser.skipElement(bytes, tagEnd + 1, end);
+						continue;
+					}
+					whole = node.pathIndex >= 0;
+				}
+				final int element = add(nameStart, nameEnd, tagEnd, node, whole);
+				pos = tagEnd + 1;
+				if (empty) {
+					contentEnds[element] = pos;
+					link(element, parent);
+				} else {
+					if (++depth == MAX_DEPTH) {
+						throw new JAXBException("Item is nested deeper than " + MAX_DEPTH + " elements");
+					}
+					stack[depth] = element;
+				}
+			}
+		}
+		throw new JAXBException("Item is not closed");
+	}
+
+	private int add(final int nameStart, final int nameEnd, final int tagEnd, final Projection.Node node,
+			final boolean whole) {
+		if (elements == nameStarts.length) {
+			final int capacity = elements * 2;
+			nameStarts = Arrays.copyOf(nameStarts, capacity);
+			nameEnds = Arrays.copyOf(nameEnds, capacity);
+			tagEnds = Arrays.copyOf(tagEnds, capacity);
+			contentStarts = Arrays.copyOf(contentStarts, capacity);
+			contentEnds = Arrays.copyOf(contentEnds, capacity);
+			firstChildren = Arrays.copyOf(firstChildren, capacity);
+			lastChildren = Arrays.copyOf(lastChildren, capacity);
+			nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+			nodes = Arrays.copyOf(nodes, capacity);
+			wholes = Arrays.copyOf(wholes, capacity);
+		}
+		final int element = elements++;
+		nameStarts[element] = nameStart;
+		nameEnds[element] = nameEnd;
+		tagEnds[element] = tagEnd;
+		contentStarts[element] = tagEnd + 1;
+		firstChildren[element] = -1;
+		lastChildren[element] = -1;
+		nextSiblings[element] = -1;
+		nodes[element] = node;
+		wholes[element] = whole;
+		return element;
+	}
+
+	/**
+	 * Add a finished element to its parent's children, unless it is only on the way to paths the item does not have.
+	 */
+	private void link(final int element, final int parent) {
+		if (!wholes[element] && firstChildren[element] < 0) {
+			return;
+		}
+		if (lastChildren[parent] < 0) {
+			firstChildren[parent] = element;
+		} else {
+			nextSiblings[lastChildren[parent]] = element;
+		}
+		lastChildren[parent] = element;
+	}
+
+	private void writeValue(final byte[] bytes, final int element, final boolean object) throws JAXBException {
+		final boolean hasChildren = firstChildren[element] >= 0;
+		final int attributeEnd = bytes[tagEnds[element] - 1] == '/' ? tagEnds[element] - 1 : tagEnds[element];
+		int attribute = element == 0 ? -1 : nextAttribute(bytes, nameEnds[element], attributeEnd);
+		if (!object && !hasChildren && attribute < 0) {
+			writeText(bytes, contentStarts[element], contentEnds[element]);
+			return;
+		}
+
+		put('{');
+		boolean first = true;
+		while (attribute >= 0) {
+			final int nameEnd = attributeNameEnd(bytes, attribute, attributeEnd);
+			final int equals = RawItemScanner.indexOf(bytes, (byte) '=', nameEnd, attributeEnd);
+			final int quote = equals < 0 ? -1 : quote(bytes, equals + 1, attributeEnd);
+			final int valueEnd = quote < 0 ? -1 : RawItemScanner.indexOf(bytes, bytes[quote], quote + 1, attributeEnd);
+			if (valueEnd < 0) {
+				throw new JAXBException("Attribute has no value");
+			}
+			first = comma(first);
+			put('"');
+			put('@');
+			put(bytes, localName(bytes, attribute, nameEnd), nameEnd);
+			put('"');
+			put(':');
+			writeText(bytes, quote + 1, valueEnd);
+			attribute = nextAttribute(bytes, valueEnd + 1, attributeEnd);
+		}
+		if (!hasChildren && !object) {
+			first = comma(first);
+			writeKey(TEXT_KEY, 0, TEXT_KEY.length);
+			writeText(bytes, contentStarts[element], contentEnds[element]);
+		}
+		for (int child = firstChildren[element]; child >= 0; child = nextSiblings[child]) {
+			if (sameNameBefore(bytes, firstChildren[element], child)) {
+				// Written in the array of the first of them
+				continue;
+			}
+			first = comma(first);
+			writeKey(bytes, nameStarts[child], nameEnds[child]);
+			int same = nextSameName(bytes, child);
+			if (same < 0) {
+				writeValue(bytes, child, false);
+				continue;
+			}
+			put('[');
+			writeValue(bytes, child, false);
+			for (; same >= 0; same = nextSameName(bytes, same)) {
+				put(',');
+				writeValue(bytes, same, false);
+			}
+			put(']');
+		}
+		put('}');
+	}
+
+	private boolean comma(final boolean first) {
+		if (!first) {
+			put(',');
+		}
+		return false;
+	}
+
+	private void writeKey(final byte[] bytes, final int nameStart, final int nameEnd) {
+		put('"');
+		put(bytes, nameStart, nameEnd);
+		put('"');
+		put(':');
+	}
+
+	private boolean sameNameBefore(final byte[] bytes, final int firstSibling, final int element) {
+		for (int sibling = firstSibling; sibling != element; sibling = nextSiblings[sibling]) {
+			if (sameName(bytes, sibling, element)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private int nextSameName(final byte[] bytes, final int element) {
+		for (int sibling = nextSiblings[element]; sibling >= 0; sibling = nextSiblings[sibling]) {
+			if (sameName(bytes, sibling, element)) {
+				return sibling;
+			}
+		}
+		return -1;
+	}
+
+	private boolean sameName(final byte[] bytes, final int a, final int b) {
+		final int length = nameEnds[a] - nameStarts[a];
+		if (nameEnds[b] - nameStarts[b] != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (bytes[nameStarts[a] + i] != bytes[nameStarts[b] + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return Where the next attribute in a tag starts, skipping namespace declarations, or -1 if there is none
+	 */
+	private static int nextAttribute(final byte[] bytes, int pos, final int end) throws JAXBException {
+		while (pos < end) {
+			final byte b = bytes[pos];
+			if (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+				pos++;
+				continue;
+			}
+			final int nameEnd = attributeNameEnd(bytes, pos, end);
+			if (!FlatItemParser.startsWith(bytes, pos, nameEnd, "xmlns")
+					|| nameEnd != pos + 5 && bytes[pos + 5] != ':') {
+				return pos;
+			}
+			final int equals = RawItemScanner.indexOf(bytes, (byte) '=', nameEnd, end);
+			final int quote = equals < 0 ? -1 : quote(bytes, equals + 1, end);
+			final int valueEnd = quote < 0 ? -1 : RawItemScanner.indexOf(bytes, bytes[quote], quote + 1, end);
+			if (valueEnd < 0) {
+				throw new JAXBException("Attribute has no value");
+			}
+			pos = valueEnd + 1;
+		}
+		return -1;
+	}
+
+	private static int attributeNameEnd(final byte[] bytes, int pos, final int end) {
+		while (pos < end) {
+			final byte b = bytes[pos];
+			if (b == '=' || b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+				break;
+			}
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * @return The position of the quote starting an attribute value, or -1 if there is none
+	 */
+	private static int quote(final byte[] bytes, int pos, final int end) {
+		while (pos < end && bytes[pos] != '"' && bytes[pos] != '\'') {
+			pos++;
+		}
+		return pos < end ? pos : -1;
+	}
+
+	/**
+	 * @return Where the name starts once its prefix is left off
+	 */
+	private static int localName(final byte[] bytes, final int nameStart, final int nameEnd) {
+		final int colon = RawItemScanner.indexOf(bytes, (byte) ':', nameStart, nameEnd);
+		return colon < 0 ? nameStart : colon + 1;
+	}
+
+	/**
+	 * Write text or an attribute value as a JSON string, resolving character references and CDATA sections and leaving
+	 * out comments.
+	 */
+	private void writeText(final byte[] bytes, final int start, final int end) throws JAXBException {
+		put('"');
+		int i = start;
+		while (i < end) {
+			final byte b = bytes[i];
+			if (b == '<') {
+				if (FlatItemParser.startsWith(bytes, i, end, "<![CDATA[")) {
+					final int cdataEnd = RawItemScanner.indexOf(bytes, CDATA_END, i, end);
+					if (cdataEnd < 0) {
+						throw new JAXBException("CDATA section is not closed");
+					}
+					for (int j = i + CDATA_START.length; j < cdataEnd; j++) {
+						putEscaped(bytes[j]);
+					}
+					i = cdataEnd + CDATA_END.length;
+				} else {
+					i = FlatItemParser.skipMarkup(bytes, i, end);
+				}
+			} else if (b == '&') {
+				i = writeReference(bytes, i, end);
+			} else {
+				putEscaped(b);
+				i++;
+			}
+		}
+		put('"');
+	}
+
+	/**
+	 * @return The position after the character reference
+	 */
+	private int writeReference(final byte[] bytes, final int start, final int end) throws JAXBException {
+		final int semicolon = RawItemScanner.indexOf(bytes, (byte) ';', start, end);
+		if (semicolon < 0) {
+			throw new JAXBException("Unterminated character reference");
+		}
+		final String ref = new String(bytes, start + 1, semicolon - start - 1, StandardCharsets.US_ASCII);
+		switch (ref) {
+			case "amp":
+				put('&');
+				break;
+			case "lt":
+				put('<');
+				break;
+			case "gt":
+				put('>');
+				break;
+			case "quot":
+				putEscaped((byte) '"');
+				break;
+			case "apos":
+				put('\'');
+				break;
+			default:
+				if (ref.startsWith("#x")) {
+					putCodePoint(Integer.parseInt(ref.substring(2), 16));
+				} else if (ref.startsWith("#")) {
+					putCodePoint(Integer.parseInt(ref.substring(1)));
+				} else {
+					throw new JAXBException("Unknown entity &" + ref + ";");
+				}
+		}
+		return semicolon + 1;
+	}
+
+	private void putCodePoint(final int codePoint) {
+		if (codePoint < 0x80) {
+			putEscaped((byte) codePoint);
+		} else if (codePoint < 0x800) {
+			put(0xc0 | codePoint >> 6);
+			put(0x80 | codePoint & 0x3f);
+		} else if (codePoint < 0x10000) {
+			put(0xe0 | codePoint >> 12);
+			put(0x80 | codePoint >> 6 & 0x3f);
+			put(0x80 | codePoint & 0x3f);
+		} else {
+			put(0xf0 | codePoint >> 18);
+			put(0x80 | codePoint >> 12 & 0x3f);
+			put(0x80 | codePoint >> 6 & 0x3f);
+			put(0x80 | codePoint & 0x3f);
+		}
+	}
+
+	/**
+	 * Put a byte of UTF-8 text, escaped as JSON needs.
+	 */
+	private void putEscaped(final byte b) {
+		if (b == '"' || b == '\\') {
+			put('\\');
+			put(b);
+		} else if (b >= 0 && b < 0x20) {
+			put('\\');
+			switch (b) {
+				case '\n':
+					put('n');
+					break;
+				case '\r':
+					put('r');
+					break;
+				case '\t':
+					put('t');
+					break;
+				default:
+					put('u');
+					put('0');
+					put('0');
+					put(HEX[b >> 4]);
+					put(HEX[b & 0xf]);
+			}
+		} else {
+			put(b);
+		}
+	}
+
+	private void put(final int b) {
+		if (size == buffer.length) {
+			buffer = Arrays.copyOf(buffer, size * 2);
+		}
+		buffer[size++] = (byte) b;
+	}
+
+	private void put(final byte[] bytes, final int start, final int end) {
+		final int length = end - start;
+		if (size + length > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(size * 2, size + length));
+		}
+		System.arraycopy(bytes, start, buffer, size, length);
+		size += length;
+	}
+}
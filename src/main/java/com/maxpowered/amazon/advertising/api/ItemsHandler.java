@@ -0,0 +1,25 @@
+package com.maxpowered.amazon.advertising.api;
+
+import com.amazon.webservices.awsecommerceservice._2013_08_01.Request;
+
+/**
+ * Receives the contents of a response's Items elements one at a time, as they are read from the response stream.
+ *
+ * @param <T>
+ *            The form items are handed over in
+ */
+public interface ItemsHandler<T> {
+	/**
+	 * The request an Items element answers, with any per-item errors. Comes before the element's items.
+	 *
+	 * @param index
+	 *            Position of the Items element in the response, 0 for the first. A batch request gets one Items
+	 *            element per operation.
+	 */
+	void request(int index, Request request);
+
+	/**
+	 * One item of the Items element at the given position.
+	 */
+	void item(int index, T item);
+}
@@ -0,0 +1,65 @@
+package com.maxpowered.amazon.advertising.api;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+
+/**
+ * One JAXBContext for the API classes, shared by everything that reads or writes them, and pools of the unmarshallers
+ * and marshallers made from it.
+ *
+ * The context is thread safe but slow to create, unmarshallers and marshallers are cheap but may only be used by one
+ * thread at a time. Borrow one for each use and give it back when done. The pools grow to the number used at once, and
+ * work the same on virtual threads, where per-thread instances would be created for every request. Failing to create
+ * the context fails loading this class, rather than leaving every later parse to fail on its own.
+ */
+public final class JAXBPool {
+	private static final JAXBContext CONTEXT;
+	static {
+		try {
+			CONTEXT = JAXBContext.newInstance(Constants.API_PACKAGE);
+		} catch (final JAXBException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private static final Queue<Unmarshaller> UNMARSHALLERS = new ConcurrentLinkedQueue<Unmarshaller>();
+	private static final Queue<Marshaller> FRAGMENT_MARSHALLERS = new ConcurrentLinkedQueue<Marshaller>();
+
+	private JAXBPool() {
+	}
+
+	public static JAXBContext getContext() {
+		return CONTEXT;
+	}
+
+	public static Unmarshaller borrowUnmarshaller() throws JAXBException {
+		final Unmarshaller unmarshaller = UNMARSHALLERS.poll();
+		return unmarshaller != null ? unmarshaller : CONTEXT.createUnmarshaller();
+	}
+
+	public static void returnUnmarshaller(final Unmarshaller unmarshaller) {
+		UNMARSHALLERS.offer(unmarshaller);
+	}
+
+	/**
+	 * @return A marshaller that leaves out the XML declaration, for writing items one after another into the same
+	 *         document. Its properties must not be changed.
+	 */
+	public static Marshaller borrowFragmentMarshaller() throws JAXBException {
+		Marshaller marshaller = FRAGMENT_MARSHALLERS.poll();
+		if (marshaller == null) {
+			marshaller = CONTEXT.createMarshaller();
+			marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
+		}
+		return marshaller;
+	}
+
+	public static void returnFragmentMarshaller(final Marshaller marshaller) {
+		FRAGMENT_MARSHALLERS.offer(marshaller);
+	}
+}
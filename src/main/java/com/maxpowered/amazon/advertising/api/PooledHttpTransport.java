@@ -0,0 +1,192 @@
+package com.maxpowered.amazon.advertising.api;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Default transport. Keeps a bounded pool of persistent connections for each endpoint host, asks for gzip responses
+ * and applies connect, read and total timeouts to every request.
+ */
+public class PooledHttpTransport implements HttpTransport {
+	private static final Logger LOG = LoggerFactory.getLogger(PooledHttpTransport.class);
+
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_ENDPOINT = 8;
+	public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+	public static final int DEFAULT_READ_TIMEOUT = 30000;
+	public static final int DEFAULT_TOTAL_TIMEOUT = 60000;
+
+	/**
+	 * How much of an error response body to keep for the exception message.
+	 */
+	private static final int MAX_ERROR_BODY_CHARS = 1024;
+	private static final long MAX_IDLE_MILLIS = 30000;
+
+	private final PoolingHttpClientConnectionManager connectionManager;
+	private final CloseableHttpClient client;
+	private final ScheduledExecutorService timeoutScheduler;
+	private final int totalTimeout;
+
+	public PooledHttpTransport() {
+		this(DEFAULT_MAX_CONNECTIONS_PER_ENDPOINT, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT, DEFAULT_TOTAL_TIMEOUT);
+	}
+
+	/**
+	 * @param maxConnectionsPerEndpoint
+	 *            Connections kept open (and used at once) for each endpoint host
+	 * @param connectTimeout
+	 *            Milliseconds to wait for a connection, either from the pool or a new one
+	 * @param readTimeout
+	 *            Milliseconds to wait between bytes of the response
+	 * @param totalTimeout
+	 *            Milliseconds until a request is aborted, including reading the whole response
+	 */
+	@Autowired
+	public PooledHttpTransport(@Value("${http.maxConnectionsPerEndpoint}") final int maxConnectionsPerEndpoint,
+			@Value("${http.connectTimeout}") final int connectTimeout,
+			@Value("${http.readTimeout}") final int readTimeout,
+			@Value("${http.totalTimeout}") final int totalTimeout) {
+		if (maxConnectionsPerEndpoint < 1) {
+			throw new IllegalArgumentException("maxConnectionsPerEndpoint must be at least 1");
+		}
+		this.totalTimeout = totalTimeout;
+
+		connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setDefaultMaxPerRoute(maxConnectionsPerEndpoint);
+		connectionManager.setMaxTotal(maxConnectionsPerEndpoint * Endpoint.values().length);
+
+		final RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectionRequestTimeout(connectTimeout)
+				.setConnectTimeout(connectTimeout)
+				.setSocketTimeout(readTimeout)
+				.build();
+
+		// Content compression is on by default: Accept-Encoding: gzip,deflate is sent and responses are decompressed
+		client = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.evictExpiredConnections()
+				.evictIdleConnections(MAX_IDLE_MILLIS, TimeUnit.MILLISECONDS)
+				.build();
+
+		timeoutScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, "http-request-timeout");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	@Override
+	public InputStream get(final String url) throws IOException {
+		final HttpGet request = new HttpGet(url);
+		final ScheduledFuture<?> abort = timeoutScheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				LOG.warn("Aborting request that took longer than {}ms", totalTimeout);
+				request.abort();
+			}
+		}, totalTimeout, TimeUnit.MILLISECONDS);
+
+		CloseableHttpResponse response = null;
+		try {
+			response = client.execute(request);
+			final HttpEntity entity = response.getEntity();
+			final int statusCode = response.getStatusLine().getStatusCode();
+			if (statusCode != 200) {
+				final String body = entity == null ? "" : errorBody(entity);
+				throw new HttpStatusException(statusCode, response.getStatusLine().getReasonPhrase(), body);
+			}
+			if (entity == null) {
+				throw new IOException("Response had no body");
+			}
+
+			final InputStream body = new ResponseInputStream(entity.getContent(), entity, response, abort);
+			response = null;
+			return body;
+		} catch (final IOException e) {
+			abort.cancel(false);
+			throw e;
+		} finally {
+			if (response != null) {
+				// Only reached on error, after the entity was drained so the connection can be reused
+				response.close();
+			}
+		}
+	}
+
+	/**
+	 * Read the start of an error response for the exception message, and drain the rest so the connection goes back to
+	 * the pool.
+	 */
+	private static String errorBody(final HttpEntity entity) throws IOException {
+		try (InputStream in = entity.getContent()) {
+			final char[] buffer = new char[MAX_ERROR_BODY_CHARS];
+			final int read = IOUtils.read(new InputStreamReader(in, StandardCharsets.UTF_8), buffer);
+			EntityUtils.consume(entity);
+			return new String(buffer, 0, read);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		timeoutScheduler.shutdownNow();
+		client.close();
+	}
+
+	/**
+	 * Response body that gives its connection back to the pool when closed. Whatever the reader left unread is drained
+	 * first, otherwise the connection could not be reused.
+	 */
+	private static final class ResponseInputStream extends FilterInputStream {
+		private final HttpEntity entity;
+		private final CloseableHttpResponse response;
+		private final ScheduledFuture<?> abort;
+		private boolean closed = false;
+
+		private ResponseInputStream(final InputStream in, final HttpEntity entity,
+				final CloseableHttpResponse response, final ScheduledFuture<?> abort) {
+			super(in);
+			this.entity = entity;
+			this.response = response;
+			this.abort = abort;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				EntityUtils.consume(entity);
+			} finally {
+				abort.cancel(false);
+				response.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package com.maxpowered.amazon.advertising.api;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * The element paths to pick out of each item, like "ItemAttributes/Title", relative to the Item element. Paths should
+ * lead to elements holding text. ASIN is always included.
+ *
+ * The paths are kept as a tree of element names, so the parser can tell from a start tag alone whether to step into
+ * an element or skip it, see {@link FlatItem}.
+ */
+public class Projection {
+	public static final String ASIN = "ASIN";
+	public static final String TITLE = "ItemAttributes/Title";
+	public static final String LIST_PRICE = "ItemAttributes/ListPrice";
+	public static final String LOWEST_NEW_PRICE = "OfferSummary/LowestNewPrice";
+	public static final String AMOUNT = "/Amount";
+	public static final String CURRENCY_CODE = "/CurrencyCode";
+	public static final String FORMATTED_PRICE = "/FormattedPrice";
+	public static final String SMALL_IMAGE_URL = "SmallImage/URL";
+	public static final String MEDIUM_IMAGE_URL = "MediumImage/URL";
+	public static final String LARGE_IMAGE_URL = "LargeImage/URL";
+
+	/**
+	 * ASIN, title, list price, lowest new price and image URLs.
+	 */
+	public static final Projection DEFAULT = new Projection(ASIN, TITLE, LIST_PRICE + AMOUNT, LIST_PRICE
+			+ CURRENCY_CODE, LIST_PRICE + FORMATTED_PRICE, LOWEST_NEW_PRICE + AMOUNT, LOWEST_NEW_PRICE + CURRENCY_CODE,
+			LOWEST_NEW_PRICE + FORMATTED_PRICE, SMALL_IMAGE_URL, MEDIUM_IMAGE_URL, LARGE_IMAGE_URL);
+
+	private final List<String> paths;
+	private final Node root = new Node();
+
+	public Projection(final String... paths) {
+		this(Arrays.asList(paths));
+	}
+
+	public Projection(final List<String> paths) {
+		final List<String> all = Lists.newArrayList();
+		if (!paths.contains(ASIN)) {
+			all.add(ASIN);
+		}
+		for (final String path : paths) {
+			final String trimmed = path.trim();
+			if (!trimmed.isEmpty() && !all.contains(trimmed)) {
+				all.add(trimmed);
+			}
+		}
+		this.paths = Collections.unmodifiableList(all);
+
+		for (int i = 0; i < all.size(); i++) {
+			Node node = root;
+			for (final String name : all.get(i).split("/")) {
+				node = node.getOrAddChild(name.getBytes(StandardCharsets.UTF_8));
+			}
+			node.pathIndex = i;
+		}
+	}
+
+	public List<String> getPaths() {
+		return paths;
+	}
+
+	/**
+	 * @return The position of the path, or -1 if it is not part of the projection
+	 */
+	public int indexOf(final String path) {
+		return paths.indexOf(path);
+	}
+
+	Node getRoot() {
+		return root;
+	}
+
+	@Override
+	public String toString() {
+		return paths.toString();
+	}
+
+	/**
+	 * An element on the way to one or more projected paths.
+	 */
+	static final class Node {
+		private byte[][] names = new byte[0][];
+		private Node[] children = new Node[0];
+		/**
+		 * Index of the path ending at this element, -1 if none does.
+		 */
+		int pathIndex = -1;
+
+		/**
+		 * @return The child with the name found at the given position, or null if no path goes through it
+		 */
+		Node getChild(final byte[] bytes, final int offset, final int length) {
+			outer: for (int i = 0; i < names.length; i++) {
+				final byte[] name = names[i];
+				if (name.length != length) {
+					continue;
+				}
+				for (int j = 0; j < length; j++) {
+					if (bytes[offset + j] != name[j]) {
+						continue outer;
+					}
+				}
+				return children[i];
+			}
+			return null;
+		}
+
+		private Node getOrAddChild(final byte[] name) {
+			final Node existing = getChild(name, 0, name.length);
+			if (existing != null) {
+				return existing;
+			}
+			final Node child = new Node();
+			names = Arrays.copyOf(names, names.length + 1);
+			names[names.length - 1] = name;
+			children = Arrays.copyOf(children, children.length + 1);
+			children[children.length - 1] = child;
+			return child;
+		}
+	}
+}
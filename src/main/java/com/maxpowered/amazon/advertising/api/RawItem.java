@@ -0,0 +1,126 @@
+package com.maxpowered.amazon.advertising.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.transform.stream.StreamSource;
+
+import com.amazon.webservices.awsecommerceservice._2013_08_01.Item;
+
+/**
+ * An Item element as it appeared in the response, kept as bytes. It can be copied to an output as is, and is only
+ * unmarshalled into an {@link Item} or parsed into a {@link FlatItem} when someone asks for one.
+ *
+ * The response declares the API namespace once on its root element. The bytes of a single item do not, so it is added
+ * to the item's start tag when the item is copied out on its own. Not thread safe.
+ */
+public class RawItem {
+	private static final byte[] ASIN_START = "<ASIN>".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] ASIN_END = "</ASIN>".getBytes(StandardCharsets.US_ASCII);
+
+	private final byte[] response;
+	private final int offset;
+	private final int length;
+
+	private String asin;
+	private Item item;
+	private FlatItem flatItem;
+
+	/**
+	 * @param response
+	 *            The whole response, shared with the other items in it
+	 * @param offset
+	 *            Where the item's start tag begins
+	 * @param length
+	 *            Bytes up to and including the item's end tag
+	 */
+	public RawItem(final byte[] response, final int offset, final int length) {
+		this.response = response;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	/**
+	 * @return The item's ASIN, the first ASIN element in it (variations follow their parent's), or null if there is none
+	 */
+	public String getASIN() {
+		if (asin == null) {
+			final int start = RawItemScanner.indexOf(response, ASIN_START, offset, offset + length);
+			if (start >= 0) {
+				final int valueStart = start + ASIN_START.length;
+				final int end = RawItemScanner.indexOf(response, ASIN_END, valueStart, offset + length);
+				if (end >= 0) {
+					asin = new String(response, valueStart, end - valueStart, StandardCharsets.UTF_8);
+				}
+			}
+		}
+		return asin;
+	}
+
+	/**
+	 * @return The item unmarshalled, the first time this is called
+	 */
+	public Item getItem() throws JAXBException {
+		if (item == null) {
+			item = unmarshal(response, offset, length, RawItemScanner.ITEM, Item.class);
+		}
+		return item;
+	}
+
+	/**
+	 * @return The projected paths of the item, parsed the first time this is called for the projection
+	 */
+	public FlatItem getFlatItem(final Projection projection) throws JAXBException {
+		if (flatItem == null || flatItem.getProjection() != projection) {
+			flatItem = FlatItemParser.parse(response, offset, length, projection);
+		}
+		return flatItem;
+	}
+
+	/**
+	 * Copy the item's XML, with the namespace declared on it.
+	 */
+	public void writeTo(final OutputStream out) throws IOException {
+		final int nameEnd = offset + 1 + RawItemScanner.ITEM.length;
+		out.write(response, offset, nameEnd - offset);
+		out.write(RawItemScanner.NAMESPACE_ATTRIBUTE);
+		out.write(response, nameEnd, offset + length - nameEnd);
+	}
+
+	/**
+	 * Write the item as a line of JSON, see {@link ItemJsonWriter}.
+	 */
+	public void writeJsonTo(final ItemJsonWriter writer, final OutputStream out) throws JAXBException, IOException {
+		writer.writeLine(response, offset, length, out);
+	}
+
+	/**
+	 * @return The length of the item's XML as copied by {@link #writeTo(OutputStream)}
+	 */
+	public int size() {
+		return length + RawItemScanner.NAMESPACE_ATTRIBUTE.length;
+	}
+
+	/**
+	 * Unmarshal one element from a range of the response, adding the namespace declaration to its start tag.
+	 */
+	static <T> T unmarshal(final byte[] response, final int offset, final int length, final byte[] elementName,
+			final Class<T> clazz) throws JAXBException {
+		final int nameEnd = offset + 1 + elementName.length;
+		final InputStream in = new SequenceInputStream(new ByteArrayInputStream(response, offset, nameEnd - offset),
+				new SequenceInputStream(new ByteArrayInputStream(RawItemScanner.NAMESPACE_ATTRIBUTE),
+						new ByteArrayInputStream(response, nameEnd, offset + length - nameEnd)));
+		final Unmarshaller unmarshaller = JAXBPool.borrowUnmarshaller();
+		try {
+			return unmarshaller.unmarshal(new StreamSource(in), clazz).getValue();
+		} finally {
+			JAXBPool.returnUnmarshaller(unmarshaller);
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package com.maxpowered.amazon.advertising.api;
+
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.bind.JAXBException;
+
+import com.amazon.webservices.awsecommerceservice._2013_08_01.Request;
+
+/**
+ * Finds the Items, Request and Item elements of a response in one pass over its bytes, without parsing the XML.
+ *
+ * This relies on the shape of API responses: elements are not prefixed (the API namespace is the default one), there
+ * are no comments or CDATA sections, and '<' in text is always escaped. Item elements nested in an item, like
+ * variations, stay part of their parent.
+ */
+public final class RawItemScanner {
+	static final byte[] ITEMS = bytes("Items");
+	static final byte[] REQUEST = bytes("Request");
+	static final byte[] ITEM = bytes("Item");
+	static final byte[] NAMESPACE_ATTRIBUTE = bytes(" xmlns=\"" + Constants.API_NAMESPACE + "\"");
+
+	private static final byte[] REQUEST_END = bytes("</Request>");
+
+	private RawItemScanner() {
+	}
+
+	public static void scan(final byte[] response, final ItemsHandler<RawItem> handler) throws JAXBException {
+		int itemsIndex = -1;
+		int itemDepth = 0;
+		int itemStart = -1;
+		int i = 0;
+		while ((i = indexOf(response, (byte) '<', i, response.length)) >= 0) {
+			if (itemDepth == 0 && isStartTag(response, i, ITEMS)) {
+				itemsIndex++;
+			} else if (itemDepth == 0 && itemsIndex >= 0 && isStartTag(response, i, REQUEST)) {
+				final int end = indexOf(response, REQUEST_END, i, response.length) + REQUEST_END.length;
+				if (end < REQUEST_END.length) {
+					throw new JAXBException("Request element is not closed");
+				}
+				handler.request(itemsIndex, RawItem.unmarshal(response, i, end - i, REQUEST, Request.class));
+				i = end;
+				continue;
+			} else if (isStartTag(response, i, ITEM)) {
+				if (itemDepth++ == 0) {
+					itemStart = i;
+				}
+			} else if (isEndTag(response, i, ITEM)) {
+				if (--itemDepth == 0) {
+					final int end = indexOf(response, (byte) '>', i, response.length) + 1;
+					if (end == 0) {
+						throw new JAXBException("Response ended inside an Item end tag");
+					}
+					handler.item(itemsIndex, new RawItem(response, itemStart, end - itemStart));
+					i = end;
+					continue;
+				}
+			}
+			i++;
+		}
+		if (itemDepth != 0) {
+			throw new JAXBException("Response ended inside an Item element");
+		}
+	}
+
+	/**
+	 * @return true if the tag at the given '<' opens an element with the name
+	 */
+	private static boolean isStartTag(final byte[] bytes, final int tagStart, final byte[] name) {
+		return matchesName(bytes, tagStart + 1, name);
+	}
+
+	private static boolean isEndTag(final byte[] bytes, final int tagStart, final byte[] name) {
+		return tagStart + 1 < bytes.length && bytes[tagStart + 1] == '/' && matchesName(bytes, tagStart + 2, name);
+	}
+
+	/**
+	 * @return true if the element name at the position is the given one, and not just starting with it
+	 */
+	private static boolean matchesName(final byte[] bytes, final int start, final byte[] name) {
+		final int end = start + name.length;
+		if (end >= bytes.length) {
+			return false;
+		}
+		for (int i = 0; i < name.length; i++) {
+			if (bytes[start + i] != name[i]) {
+				return false;
+			}
+		}
+		final byte next = bytes[end];
+		return next == '>' || next == ' ' || next == '\t' || next == '\r' || next == '\n';
+	}
+
+	static int indexOf(final byte[] bytes, final byte b, final int from, final int to) {
+		for (int i = from; i < to; i++) {
+			if (bytes[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	static int indexOf(final byte[] bytes, final byte[] target, final int from, final int to) {
+		final int last = to - target.length;
+		outer: for (int i = from; i <= last; i++) {
+			for (int j = 0; j < target.length; j++) {
+				if (bytes[i + j] != target[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private static byte[] bytes(final String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,241 @@
+package com.maxpowered.amazon.advertising.api;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.input.TeeInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Logs API responses without slowing down the requests. The parser reads the response as it arrives while a copy of
+ * the first bytes is kept on the side, and once the response is closed the copy is queued for a background thread to
+ * write. Only a sample of responses are copied, and when the queue is full responses are dropped rather than waited
+ * for.
+ *
+ * Responses go to the log at info level, or to a file of their own, optionally gzipped.
+ */
+public class ResponseLog implements AutoCloseable {
+	private static final Logger LOG = LoggerFactory.getLogger(ResponseLog.class);
+
+	private static final long CLOSE_TIMEOUT_SECONDS = 10;
+
+	private final boolean enabled;
+	private final double sampleRate;
+	private final int maxBytes;
+	private final BlockingQueue<Entry> queue;
+	private final Writer fileWriter;
+	private final Thread writerThread;
+	private final Random random = new Random();
+	private final AtomicLong dropped = new AtomicLong();
+
+	private volatile boolean closed = false;
+
+	/**
+	 * @param enabled
+	 *            Log responses at all. They are also logged, with the same sampling, when debug logging is on.
+	 * @param sampleRate
+	 *            Fraction of responses logged, from 0 to 1
+	 * @param maxBytes
+	 *            Longest part of a response kept, the rest is cut off
+	 * @param queueSize
+	 *            Responses waiting to be written before more are dropped
+	 * @param file
+	 *            File to append responses to, or empty to write them to this class's log
+	 * @param compress
+	 *            Gzip the file
+	 */
+	@Autowired
+	public ResponseLog(@Value("${app.logFullResponse}") final boolean enabled,
+			@Value("${app.responseLog.sampleRate}") final double sampleRate,
+			@Value("${app.responseLog.maxBytes}") final int maxBytes,
+			@Value("${app.responseLog.queueSize}") final int queueSize,
+			@Value("${app.responseLog.file}") final String file,
+			@Value("${app.responseLog.compress}") final boolean compress) throws IOException {
+		if (sampleRate < 0 || sampleRate > 1) {
+			throw new IllegalArgumentException("sampleRate must be between 0 and 1");
+		}
+		this.enabled = enabled || LOG.isDebugEnabled();
+		this.sampleRate = sampleRate;
+		this.maxBytes = maxBytes;
+		queue = new ArrayBlockingQueue<Entry>(queueSize);
+
+		if (file == null || file.isEmpty()) {
+			fileWriter = null;
+		} else {
+			OutputStream out = new FileOutputStream(new File(file), true);
+			if (compress) {
+				// Appending adds another gzip member, which gunzip reads as one stream
+				out = new GZIPOutputStream(out);
+			}
+			fileWriter = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+		}
+
+		writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeEntries();
+			}
+		}, "response-log");
+		writerThread.setDaemon(true);
+		if (this.enabled) {
+			writerThread.start();
+		}
+	}
+
+	/**
+	 * @param response
+	 *            The response body
+	 * @param description
+	 *            What the response is for, logged with it
+	 * @return The response to read from. If it was picked for logging, what is read is copied up to the maximum size,
+	 *         and logged when it is closed.
+	 */
+	public InputStream tee(final InputStream response, final String description) {
+		if (!enabled || closed || !sampled()) {
+			return response;
+		}
+		return new TeeInputStream(response, new Capture(description), true);
+	}
+
+	/**
+	 * @return How many responses were not logged because the queue was full
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	private boolean sampled() {
+		if (sampleRate >= 1) {
+			return true;
+		}
+		synchronized (random) {
+			return random.nextDouble() < sampleRate;
+		}
+	}
+
+	private void writeEntries() {
+		try {
+			while (!closed || !queue.isEmpty()) {
+				final Entry entry = queue.poll(1, TimeUnit.SECONDS);
+				if (entry != null) {
+					write(entry);
+				}
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void write(final Entry entry) {
+		final String body = new String(entry.bytes, 0, entry.length, StandardCharsets.UTF_8);
+		final String truncated = entry.truncated ? " (cut off after " + entry.length + " bytes)" : "";
+		if (fileWriter == null) {
+			LOG.info("Got response for {}{}: {}", entry.description, truncated, body);
+			return;
+		}
+		try {
+			fileWriter.write("--- " + new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(new Date(entry.time))
+					+ " " + entry.description + truncated + System.lineSeparator());
+			fileWriter.write(body);
+			fileWriter.write(System.lineSeparator());
+			if (queue.isEmpty()) {
+				fileWriter.flush();
+			}
+		} catch (final IOException e) {
+			LOG.error("Error writing response log", e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException, InterruptedException {
+		closed = true;
+		if (writerThread.isAlive()) {
+			writerThread.join(TimeUnit.SECONDS.toMillis(CLOSE_TIMEOUT_SECONDS));
+		}
+		if (fileWriter != null) {
+			fileWriter.close();
+		}
+		if (dropped.get() > 0) {
+			LOG.info("Dropped {} responses from the response log because it fell behind", dropped.get());
+		}
+	}
+
+	/**
+	 * The copy of a response, queued when the response is closed.
+	 */
+	private final class Capture extends ByteArrayOutputStream {
+		private final String description;
+		private boolean truncated = false;
+		private boolean queued = false;
+
+		private Capture(final String description) {
+			super(Math.min(maxBytes, 8192));
+			this.description = description;
+		}
+
+		@Override
+		public synchronized void write(final int b) {
+			if (count < maxBytes) {
+				super.write(b);
+			} else {
+				truncated = true;
+			}
+		}
+
+		@Override
+		public synchronized void write(final byte[] b, final int off, final int len) {
+			final int kept = Math.min(len, maxBytes - count);
+			if (kept > 0) {
+				super.write(b, off, kept);
+			}
+			if (kept < len) {
+				truncated = true;
+			}
+		}
+
+		@Override
+		public synchronized void close() {
+			if (queued) {
+				return;
+			}
+			queued = true;
+			if (!queue.offer(new Entry(description, buf, count, truncated))) {
+				dropped.incrementAndGet();
+			}
+		}
+	}
+
+	private static final class Entry {
+		private final long time = System.currentTimeMillis();
+		private final String description;
+		private final byte[] bytes;
+		private final int length;
+		private final boolean truncated;
+
+		private Entry(final String description, final byte[] bytes, final int length, final boolean truncated) {
+			this.description = description;
+			this.bytes = bytes;
+			this.length = length;
+			this.truncated = truncated;
+		}
+	}
+}
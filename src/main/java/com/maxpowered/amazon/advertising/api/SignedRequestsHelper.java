@@ -23,34 +23,34 @@ package com.maxpowered.amazon.advertising.api;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.URL;
 import java.net.URLDecoder;
-import java.net.URLEncoder;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
-import java.util.SortedMap;
 import java.util.TimeZone;
-import java.util.TreeMap;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
-import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 
+import com.amazon.webservices.awsecommerceservice._2013_08_01.Item;
+import com.amazon.webservices.awsecommerceservice._2013_08_01.Request;
+
 /**
  * This class contains all the logic for signing requests to the Amazon Product Advertising API.
  */
@@ -78,13 +78,48 @@ public class SignedRequestsHelper {
 	 */
 	private static final String REQUEST_METHOD = "GET";
 
-	private static Unmarshaller unmarshaller;
+	/**
+	 * Characters left as-is by RFC 3986 percent-encoding. Everything else is written as %XX of its UTF-8 bytes.
+	 */
+	private static final boolean[] RFC_3986_UNRESERVED = new boolean[128];
 	static {
-		try {
-			unmarshaller = JAXBContext.newInstance(Constants.API_PACKAGE).createUnmarshaller();
-		} catch (final JAXBException ex) {
-			LOG.error("Error creating unmarshaller", ex);
+		for (char c = 'A'; c <= 'Z'; c++) {
+			RFC_3986_UNRESERVED[c] = true;
+		}
+		for (char c = 'a'; c <= 'z'; c++) {
+			RFC_3986_UNRESERVED[c] = true;
+		}
+		for (char c = '0'; c <= '9'; c++) {
+			RFC_3986_UNRESERVED[c] = true;
 		}
+		RFC_3986_UNRESERVED['-'] = true;
+		RFC_3986_UNRESERVED['_'] = true;
+		RFC_3986_UNRESERVED['.'] = true;
+		RFC_3986_UNRESERVED['~'] = true;
+	}
+
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+	private static final char[] BASE64_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+			.toCharArray();
+
+	/**
+	 * Timestamps only have second resolution, so every request signed within the same second shares one.
+	 */
+	private static volatile CachedTimestamp cachedTimestamp = new CachedTimestamp(Long.MIN_VALUE, null);
+
+	private static final String ITEMS_ELEMENT = "Items";
+	private static final String REQUEST_ELEMENT = "Request";
+	private static final String ITEM_ELEMENT = "Item";
+	/**
+	 * Number of elements enclosing an Items element: just the response root.
+	 */
+	private static final int ITEMS_DEPTH = 1;
+
+	private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+	static {
+		// Responses have no DTD, so don't let one be used to pull in external entities
+		XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
 	}
 
 	private final String endpoint;
@@ -93,7 +128,21 @@ public class SignedRequestsHelper {
 	private final String awsSecretKey;
 
 	private final SecretKeySpec secretKeySpec;
-	private final Mac mac;
+	/**
+	 * Initialized Mac that each signing thread clones. Mac is not thread-safe, so this one is never used directly.
+	 */
+	private final Mac macPrototype;
+	private final String urlPrefix;
+	private final byte[] stringToSignPrefix;
+
+	private volatile HttpTransport transport;
+
+	private final ThreadLocal<SigningBuffers> signingBuffers = new ThreadLocal<SigningBuffers>() {
+		@Override
+		protected SigningBuffers initialValue() {
+			return new SigningBuffers(newMac());
+		}
+	};
 
 	/**
 	 * You must provide the four values below to initialize the helper. This should be done through spring, however.
@@ -163,14 +212,20 @@ public class SignedRequestsHelper {
 
 		final byte[] secretyKeyBytes = this.awsSecretKey.getBytes(UTF8_CHARSET);
 		secretKeySpec = new SecretKeySpec(secretyKeyBytes, HMAC_SHA256_ALGORITHM);
-		mac = Mac.getInstance(HMAC_SHA256_ALGORITHM);
-		mac.init(secretKeySpec);
+		macPrototype = Mac.getInstance(HMAC_SHA256_ALGORITHM);
+		macPrototype.init(secretKeySpec);
+
+		urlPrefix = "http://" + this.endpoint + REQUEST_URI + "?";
+		stringToSignPrefix = (REQUEST_METHOD + "\n" + this.endpoint + "\n" + REQUEST_URI + "\n").getBytes(UTF8_CHARSET);
 	}
 
 	/**
 	 * This method signs requests in hashmap form. It returns a URL that should be used to fetch the response. The URL
 	 * returned should not be modified in any way, doing so will invalidate the signature and Amazon will reject the
 	 * request.
+	 *
+	 * Safe to call from multiple threads. The canonical query is built in per-thread buffers and the only String
+	 * allocated is the returned URL.
 	 */
 	public String sign(final Map<String, String> params) {
 		// Let's add the AWSAccessKeyId and Timestamp parameters to the request.
@@ -179,24 +234,40 @@ public class SignedRequestsHelper {
 		params.put("Timestamp", timestamp());
 		params.put("Version", Constants.API_VERSION);
 
-		// The parameters need to be processed in lexicographical order, so we'll
-		// use a TreeMap implementation for that.
-		final SortedMap<String, String> sortedParamMap = new TreeMap<String, String>(params);
+		final SigningBuffers buffers = signingBuffers.get();
 
-		// get the canonical form the query string
-		final String canonicalQS = canonicalize(sortedParamMap);
+		// The parameters need to be processed in lexicographical order
+		final int paramCount = params.size();
+		final String[] keys = buffers.keys(paramCount);
+		params.keySet().toArray(keys);
+		Arrays.sort(keys, 0, paramCount);
 
-		// create the string upon which the signature is calculated
-		final String toSign = REQUEST_METHOD + "\n" + endpoint + "\n" + REQUEST_URI + "\n" + canonicalQS;
+		// get the canonical form the query string
+		final StringBuilder canonicalQS = buffers.canonicalQS;
+		canonicalQS.setLength(0);
+		for (int i = 0; i < paramCount; i++) {
+			if (i > 0) {
+				canonicalQS.append('&');
+			}
+			percentEncodeRfc3986(keys[i], canonicalQS);
+			canonicalQS.append('=');
+			percentEncodeRfc3986(params.get(keys[i]), canonicalQS);
+		}
+		Arrays.fill(keys, 0, paramCount, null);
 
-		// get the signature
-		final String hmac = hmac(toSign);
-		final String sig = percentEncodeRfc3986(hmac);
+		// get the signature over "GET\n<endpoint>\n<uri>\n<canonical query>"
+		final Mac mac = buffers.mac;
+		mac.update(stringToSignPrefix);
+		mac.update(buffers.ascii(canonicalQS), 0, canonicalQS.length());
+		final byte[] rawHmac = mac.doFinal();
 
 		// construct the URL
-		final String url = "http://" + endpoint + REQUEST_URI + "?" + canonicalQS + "&Signature=" + sig;
+		final StringBuilder url = buffers.url;
+		url.setLength(0);
+		url.append(urlPrefix).append(canonicalQS).append("&Signature=");
+		appendBase64Rfc3986(rawHmac, url);
 
-		return url;
+		return url.toString();
 	}
 
 	/**
@@ -213,85 +284,141 @@ public class SignedRequestsHelper {
 	}
 
 	/**
-	 * Compute the HMAC.
-	 *
-	 * @param stringToSign
-	 *            String to compute the HMAC over.
-	 * @return base64-encoded hmac value.
+	 * Set how requests are sent. If none is set, a {@link PooledHttpTransport} with default settings is used.
+	 */
+	public void setTransport(final HttpTransport transport) {
+		this.transport = transport;
+	}
+
+	private HttpTransport getTransport() {
+		HttpTransport result = transport;
+		if (result == null) {
+			synchronized (this) {
+				result = transport;
+				if (result == null) {
+					result = transport = new PooledHttpTransport();
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return a Mac for the calling thread, initialized with the secret key.
 	 */
-	private String hmac(final String stringToSign) {
-		String signature = null;
-		byte[] data;
-		byte[] rawHmac;
+	private Mac newMac() {
 		try {
-			data = stringToSign.getBytes(UTF8_CHARSET);
-			rawHmac = mac.doFinal(data);
-			final Base64 encoder = new Base64();
-			signature = new String(encoder.encode(rawHmac));
-		} catch (final UnsupportedEncodingException e) {
-			throw new RuntimeException(UTF8_CHARSET + " is unsupported!", e);
+			return (Mac) macPrototype.clone();
+		} catch (final CloneNotSupportedException e) {
+			// Not every provider supports cloning, fall back to initializing a new instance
+			try {
+				final Mac mac = Mac.getInstance(HMAC_SHA256_ALGORITHM);
+				mac.init(secretKeySpec);
+				return mac;
+			} catch (NoSuchAlgorithmException | InvalidKeyException ex) {
+				throw new IllegalStateException("Could not create " + HMAC_SHA256_ALGORITHM + " instance", ex);
+			}
 		}
-		return signature;
 	}
 
 	/**
-	 * Generate a ISO-8601 format timestamp as required by Amazon.
+	 * Generate a ISO-8601 format timestamp as required by Amazon. The formatted value is cached for the current second.
 	 *
 	 * @return ISO-8601 format timestamp.
 	 */
-	private String timestamp() {
-		String timestamp = null;
-		final Calendar cal = Calendar.getInstance();
-		final DateFormat dfm = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
-		dfm.setTimeZone(TimeZone.getTimeZone("GMT"));
-		timestamp = dfm.format(cal.getTime());
-		return timestamp;
+	private static String timestamp() {
+		final long second = System.currentTimeMillis() / 1000;
+		CachedTimestamp timestamp = cachedTimestamp;
+		if (timestamp.second != second) {
+			final DateFormat dfm = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+			dfm.setTimeZone(TimeZone.getTimeZone("GMT"));
+			timestamp = new CachedTimestamp(second, dfm.format(new Date(second * 1000)));
+			cachedTimestamp = timestamp;
+		}
+		return timestamp.value;
 	}
 
 	/**
-	 * Canonicalize the query string as required by Amazon.
+	 * Percent-encode values according the RFC 3986, encoding characters outside of ASCII as UTF-8. This is what
+	 * URLEncoder does after replacing '+' with %20, '*' with %2A and %7E with '~', without the intermediate Strings.
 	 *
-	 * @param sortedParamMap
-	 *            Parameter name-value pairs in lexicographical order.
-	 * @return Canonical form of query string.
+	 * @param s
+	 *            decoded string
+	 * @param out
+	 *            buffer the encoded string is appended to
 	 */
-	private String canonicalize(final SortedMap<String, String> sortedParamMap) {
-		if (sortedParamMap.isEmpty()) {
-			return "";
-		}
-
-		final StringBuffer buffer = new StringBuffer();
-		final Iterator<Map.Entry<String, String>> iter = sortedParamMap.entrySet().iterator();
-
-		while (iter.hasNext()) {
-			final Map.Entry<String, String> kvpair = iter.next();
-			buffer.append(percentEncodeRfc3986(kvpair.getKey()));
-			buffer.append("=");
-			buffer.append(percentEncodeRfc3986(kvpair.getValue()));
-			if (iter.hasNext()) {
-				buffer.append("&");
+	private static void percentEncodeRfc3986(final String s, final StringBuilder out) {
+		final int length = s.length();
+		for (int i = 0; i < length; i++) {
+			final char c = s.charAt(i);
+			if (c < 0x80) {
+				if (RFC_3986_UNRESERVED[c]) {
+					out.append(c);
+				} else {
+					appendPercentEncoded(c, out);
+				}
+			} else if (c < 0x800) {
+				appendPercentEncoded(0xC0 | c >> 6, out);
+				appendPercentEncoded(0x80 | c & 0x3F, out);
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+				final int codePoint = Character.toCodePoint(c, s.charAt(++i));
+				appendPercentEncoded(0xF0 | codePoint >> 18, out);
+				appendPercentEncoded(0x80 | codePoint >> 12 & 0x3F, out);
+				appendPercentEncoded(0x80 | codePoint >> 6 & 0x3F, out);
+				appendPercentEncoded(0x80 | codePoint & 0x3F, out);
+			} else if (Character.isSurrogate(c)) {
+				// Unpaired surrogates can't be encoded, the UTF-8 encoder replaces them with '?'
+				appendPercentEncoded('?', out);
+			} else {
+				appendPercentEncoded(0xE0 | c >> 12, out);
+				appendPercentEncoded(0x80 | c >> 6 & 0x3F, out);
+				appendPercentEncoded(0x80 | c & 0x3F, out);
 			}
 		}
-		final String cannoical = buffer.toString();
-		return cannoical;
+	}
+
+	private static void appendPercentEncoded(final int b, final StringBuilder out) {
+		out.append('%').append(HEX_DIGITS[b >> 4 & 0xF]).append(HEX_DIGITS[b & 0xF]);
 	}
 
 	/**
-	 * Percent-encode values according the RFC 3986. The built-in Java URLEncoder does not encode according to the RFC,
-	 * so we make the extra replacements.
+	 * Base64-encode the raw HMAC and percent-encode the result, which only affects '+', '/' and '='.
 	 *
-	 * @param s
-	 *            decoded string
-	 * @return encoded string per RFC 3986
+	 * @param bytes
+	 *            raw HMAC
+	 * @param out
+	 *            buffer the encoded signature is appended to
 	 */
-	private String percentEncodeRfc3986(final String s) {
-		String out;
-		try {
-			out = URLEncoder.encode(s, UTF8_CHARSET).replace("+", "%20").replace("*", "%2A").replace("%7E", "~");
-		} catch (final UnsupportedEncodingException e) {
-			out = s;
+	private static void appendBase64Rfc3986(final byte[] bytes, final StringBuilder out) {
+		int i = 0;
+		for (; i + 2 < bytes.length; i += 3) {
+			final int bits = (bytes[i] & 0xFF) << 16 | (bytes[i + 1] & 0xFF) << 8 | bytes[i + 2] & 0xFF;
+			appendBase64Char(bits >> 18, out);
+			appendBase64Char(bits >> 12, out);
+			appendBase64Char(bits >> 6, out);
+			appendBase64Char(bits, out);
+		}
+		final int remaining = bytes.length - i;
+		if (remaining > 0) {
+			final int bits = (bytes[i] & 0xFF) << 16 | (remaining == 2 ? (bytes[i + 1] & 0xFF) << 8 : 0);
+			appendBase64Char(bits >> 18, out);
+			appendBase64Char(bits >> 12, out);
+			if (remaining == 2) {
+				appendBase64Char(bits >> 6, out);
+			} else {
+				appendPercentEncoded('=', out);
+			}
+			appendPercentEncoded('=', out);
+		}
+	}
+
+	private static void appendBase64Char(final int sixBits, final StringBuilder out) {
+		final char c = BASE64_ALPHABET[sixBits & 0x3F];
+		if (RFC_3986_UNRESERVED[c]) {
+			out.append(c);
+		} else {
+			appendPercentEncoded(c, out);
 		}
-		return out;
 	}
 
 	/**
@@ -339,6 +466,13 @@ public class SignedRequestsHelper {
 		return unmarshal(fetch(params), clazz);
 	}
 
+	/**
+	 * Sign and send the request.
+	 *
+	 * @return The response body. Closing it releases the connection.
+	 * @throws HttpStatusException
+	 *             if the response code was not 200
+	 */
 	public InputStream fetch(final Map<String, String> params) throws IOException {
 		if (!params.containsKey("Operation")) {
 			throw new RuntimeException("params must have an Operation");
@@ -347,19 +481,124 @@ public class SignedRequestsHelper {
 		// Sign the params in a URL as Amazon specifies.
 		final String urlString = sign(params);
 		LOG.info("Got signed request url string {}", urlString);
-		final URL url = new URL(urlString);
-		return url.openStream();
+		return getTransport().get(urlString);
 	}
 
 	public <T> T unmarshal(final InputStream responseStream, final Class<T> clazz) throws JAXBException,
 			XMLStreamException, IOException {
-		T response;
+		final Unmarshaller unmarshaller = JAXBPool.borrowUnmarshaller();
 		try {
-			response = clazz.cast(unmarshaller.unmarshal(responseStream));
+			return clazz.cast(unmarshaller.unmarshal(responseStream));
 		} finally {
+			JAXBPool.returnUnmarshaller(unmarshaller);
 			responseStream.close();
 		}
+	}
 
-		return response;
+	public void fetchAndUnmarshalItems(final Map<String, String> params, final ItemsHandler<Item> handler)
+			throws IOException, JAXBException, XMLStreamException {
+		unmarshalItems(fetch(params), handler);
+	}
+
+	/**
+	 * Stream the items of a response to the handler instead of unmarshalling the whole response. Only one item is held
+	 * in memory at a time, and items are handed over while the rest of the response is still arriving.
+	 */
+	public void unmarshalItems(final InputStream responseStream, final ItemsHandler<Item> handler)
+			throws JAXBException, XMLStreamException, IOException {
+		try {
+			final XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(responseStream);
+			final Unmarshaller itemUnmarshaller = JAXBPool.borrowUnmarshaller();
+			try {
+				int depth = 0;
+				int itemsIndex = -1;
+				while (reader.hasNext()) {
+					if (reader.isStartElement()) {
+						if (depth == ITEMS_DEPTH && ITEMS_ELEMENT.equals(reader.getLocalName())) {
+							itemsIndex++;
+						} else if (depth == ITEMS_DEPTH + 1 && itemsIndex >= 0) {
+							// Unmarshalling consumes the whole element and leaves the reader on the event after it
+							if (REQUEST_ELEMENT.equals(reader.getLocalName())) {
+								handler.request(itemsIndex, itemUnmarshaller.unmarshal(reader, Request.class).getValue());
+								continue;
+							} else if (ITEM_ELEMENT.equals(reader.getLocalName())) {
+								handler.item(itemsIndex, itemUnmarshaller.unmarshal(reader, Item.class).getValue());
+								continue;
+							}
+						}
+						depth++;
+					} else if (reader.isEndElement()) {
+						depth--;
+					}
+					reader.next();
+				}
+			} finally {
+				JAXBPool.returnUnmarshaller(itemUnmarshaller);
+				reader.close();
+			}
+		} finally {
+			responseStream.close();
+		}
+	}
+
+	/**
+	 * Hand the items of a response to the handler as raw bytes, without unmarshalling them. The response is read into
+	 * memory, which the items then share.
+	 */
+	public void scanItems(final InputStream responseStream, final ItemsHandler<RawItem> handler) throws JAXBException,
+			IOException {
+		final byte[] response;
+		try {
+			response = IOUtils.toByteArray(responseStream);
+		} finally {
+			responseStream.close();
+		}
+		RawItemScanner.scan(response, handler);
+	}
+
+	private static final class CachedTimestamp {
+		private final long second;
+		private final String value;
+
+		private CachedTimestamp(final long second, final String value) {
+			this.second = second;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Per-thread state for {@link #sign(Map)}. The buffers grow to fit the largest request seen and are reused.
+	 */
+	private static final class SigningBuffers {
+		private final Mac mac;
+		private final StringBuilder canonicalQS = new StringBuilder(512);
+		private final StringBuilder url = new StringBuilder(640);
+		private String[] keys = new String[16];
+		private byte[] ascii = new byte[512];
+
+		private SigningBuffers(final Mac mac) {
+			this.mac = mac;
+		}
+
+		private String[] keys(final int size) {
+			if (keys.length < size) {
+				keys = new String[Math.max(size, keys.length * 2)];
+			}
+			return keys;
+		}
+
+		/**
+		 * Copy an already percent-encoded (so pure ASCII) query into the byte buffer.
+		 */
+		private byte[] ascii(final StringBuilder encoded) {
+			final int length = encoded.length();
+			if (ascii.length < length) {
+				ascii = new byte[Math.max(length, ascii.length * 2)];
+			}
+			for (int i = 0; i < length; i++) {
+				ascii[i] = (byte) encoded.charAt(i);
+			}
+			return ascii;
+		}
 	}
 }
@@ -0,0 +1,130 @@
+package com.maxpowered.amazon.advertising.api.app;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Token bucket rate limiter whose rate adapts to the API's throttling, so requests can be sent close to the account's
+ * real limit.
+ *
+ * Tokens accumulate at the current rate up to the burst size. A throttled response cuts the rate in half (at most once
+ * per cooldown, so one burst of throttled responses only counts once) and empties the bucket. Every successful
+ * response raises it again by a small fixed step, up to the configured maximum. Waits are jittered so concurrent
+ * callers don't all fire at the same instant.
+ */
+public class AdaptiveRateLimiter {
+	private static final Logger LOG = LoggerFactory.getLogger(AdaptiveRateLimiter.class);
+
+	private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+	private static final double DECREASE_FACTOR = 0.5;
+	/**
+	 * Fraction of the maximum rate regained with each successful request.
+	 */
+	private static final double INCREASE_FRACTION = 0.02;
+	/**
+	 * The rate never drops below this fraction of the maximum rate.
+	 */
+	private static final double MIN_RATE_FRACTION = 0.05;
+	/**
+	 * Waits are randomly stretched or shortened by up to this fraction.
+	 */
+	private static final double JITTER_FRACTION = 0.1;
+	private static final long MIN_DECREASE_COOLDOWN_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final double maxRate;
+	private final double minRate;
+	private final double burst;
+	private final Random random = new Random();
+
+	private double rate;
+	private double tokens = 1;
+	private long lastRefillNanos = System.nanoTime();
+	private long lastDecreaseNanos = lastRefillNanos - MIN_DECREASE_COOLDOWN_NANOS;
+
+	/**
+	 * @param permitsPerSecond
+	 *            Maximum (and starting) rate
+	 * @param burst
+	 *            How many permits may be handed out at once after a quiet period
+	 */
+	public AdaptiveRateLimiter(final double permitsPerSecond, final double burst) {
+		if (permitsPerSecond <= 0) {
+			throw new IllegalArgumentException("permitsPerSecond must be positive");
+		}
+		if (burst < 1) {
+			throw new IllegalArgumentException("burst must be at least 1");
+		}
+		maxRate = permitsPerSecond;
+		minRate = permitsPerSecond * MIN_RATE_FRACTION;
+		rate = permitsPerSecond;
+		this.burst = burst;
+	}
+
+	/**
+	 * Wait until a request may be started.
+	 */
+	public void acquire() throws InterruptedException {
+		final long waitNanos;
+		synchronized (this) {
+			refill(System.nanoTime());
+			// Going negative reserves a future token, later callers queue up behind this one
+			tokens -= 1;
+			if (tokens >= 0) {
+				waitNanos = 0;
+			} else {
+				final double jitter = 1 + JITTER_FRACTION * (2 * random.nextDouble() - 1);
+				waitNanos = (long) (-tokens / rate * NANOS_PER_SECOND * jitter);
+			}
+		}
+		if (waitNanos > 0) {
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+		}
+	}
+
+	/**
+	 * A request went through. Raise the rate a step towards the maximum.
+	 */
+	public synchronized void onSuccess() {
+		if (rate < maxRate) {
+			refill(System.nanoTime());
+			rate = Math.min(maxRate, rate + maxRate * INCREASE_FRACTION);
+		}
+	}
+
+	/**
+	 * A request was throttled. Halve the rate and drop any saved up burst.
+	 */
+	public synchronized void onThrottled() {
+		final long now = System.nanoTime();
+		refill(now);
+		tokens = Math.min(tokens, 0);
+		final long cooldown = Math.max(MIN_DECREASE_COOLDOWN_NANOS, (long) (2 * NANOS_PER_SECOND / rate));
+		if (now - lastDecreaseNanos >= cooldown) {
+			rate = Math.max(minRate, rate * DECREASE_FACTOR);
+			lastDecreaseNanos = now;
+			LOG.warn("Throttled, reducing rate to {} requests per hour", getRequestsPerHour());
+		}
+	}
+
+	/**
+	 * @return The current effective rate in permits per second
+	 */
+	public synchronized double getRate() {
+		return rate;
+	}
+
+	/**
+	 * @return The current effective rate in requests per hour
+	 */
+	public synchronized long getRequestsPerHour() {
+		return Math.round(rate * TimeUnit.HOURS.toSeconds(1));
+	}
+
+	private void refill(final long now) {
+		tokens = Math.min(burst, tokens + (now - lastRefillNanos) / NANOS_PER_SECOND * rate);
+		lastRefillNanos = now;
+	}
+}
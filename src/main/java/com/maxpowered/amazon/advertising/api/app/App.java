@@ -57,6 +57,8 @@ public class App {
 	private static final int MAX_APP_THROTTLE = 25000;
 	private static final int DEFAULT_APP_THROTTLE = 2000;
 	private static final String PROPERTY_APP_THROTTLE = "app.throttle";
+	private static final String PROPERTY_APP_CONCURRENCY = "app.concurrency";
+	private static final int DEFAULT_APP_CONCURRENCY = 1;
 	private static final String PROPERTY_APP_OUTPUT = "app.output";
 	private static final String PROPERTY_APP_INPUT = "app.input";
 	private static final String PROCESSED_EXT = ".processed";
@@ -90,6 +92,8 @@ public class App {
 					String.valueOf(DEFAULT_APP_THROTTLE)));
 			// Maximum of 25000 requests per hour
 			throttleDefault = Math.min(throttleDefault, MAX_APP_THROTTLE);
+			final int concurrencyDefault = Integer.valueOf(getOptionDefaultBasedOnSpringProperty(ctx,
+					PROPERTY_APP_CONCURRENCY, String.valueOf(DEFAULT_APP_CONCURRENCY)));
 
 			/*
 			 * Get options from the CLI args
@@ -98,8 +102,9 @@ public class App {
 
 			options.addOption("h", false, "Display this help.");
 			options.addOption("i", true, "Set the file to read ASINs from. " + DEFAULT_STR + inputDefault);
-			options.addOption("p", true, "Set the file to store processed ASINs in. " + DEFAULT_STR + processedDefault
-					+ " or '" + PROCESSED_EXT + "' appended to the input file name.");
+			options.addOption("p", true, "Set the name to store processed ASINs under, in a directory with '.index' "
+					+ "appended. A text file of ASINs by that name is migrated into it. " + DEFAULT_STR
+					+ processedDefault + " or '" + PROCESSED_EXT + "' appended to the input file name.");
 			// Add a note that the output depends on the configured processors. If none are configured, it defaults to a
 			// std.out processor
 			options.addOption("o", true, "Set the file to write fetched info xml to via FileProcessor. " + DEFAULT_STR +
@@ -107,6 +112,8 @@ public class App {
 			options.addOption("1", false, "Override output file and always output fetched info xml to std.out.");
 			options.addOption("t", true, "Set the requests per hour throttle (max of " + MAX_APP_THROTTLE + "). "
 					+ DEFAULT_STR + throttleDefault);
+			options.addOption("c", true, "Set the number of requests that may run at once. Requests still start at the "
+					+ "throttled rate. " + DEFAULT_STR + concurrencyDefault);
 
 			final CommandLineParser parser = new DefaultParser();
 			CommandLine cmd = null;
@@ -131,6 +138,10 @@ public class App {
 			// We don't want to hit our limit, just under an hour worth of milliseconds
 			final int requestWait = 3540000 / throttle;
 
+			// Get concurrency
+			final int concurrency = cmd.hasOption("c") ? Integer.valueOf(cmd.getOptionValue("c")) : concurrencyDefault;
+			LOG.debug("Concurrency (default {}) is {} requests", concurrencyDefault, concurrency);
+
 			// Get input stream
 			String input;
 			if (cmd.hasOption("i")) {
@@ -149,7 +160,6 @@ public class App {
 			}
 			LOG.debug("Processed file name (default {}) is {}", processedDefault, processed);
 			final File processedFile = new File(processed);
-			processedFile.createNewFile();
 
 			try (
 					final InputStream inputStream = getInputStream(input)) {
@@ -186,6 +196,7 @@ public class App {
 				final ProductFetcher fetcher = ctx.getBeanFactory().getBean(ProductFetcher.class);
 				fetcher.setProcessedFile(processedFile);
 				fetcher.setRequestWait(requestWait);
+				fetcher.setConcurrency(concurrency);
 				fetcher.setInputStream(inputStream);
 				fetcher.setResponseGroups(responseGroupString);
 
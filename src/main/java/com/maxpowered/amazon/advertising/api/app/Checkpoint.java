@@ -0,0 +1,302 @@
+package com.maxpowered.amazon.advertising.api.app;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.maxpowered.amazon.advertising.api.processors.Durable;
+import com.maxpowered.util.LongHashSet;
+import com.maxpowered.util.LongIterator;
+
+/**
+ * Commits the outputs and the processed ASINs together, so that after a crash every processed ASIN has its items in
+ * the outputs and no other ASIN does.
+ *
+ * Processed ASINs are held back until a commit, which forces the {@link Durable} outputs to disk, then appends a record
+ * of their positions and the ASINs to the checkpoint file and forces that too, and only then adds the ASINs to the
+ * {@link ProcessedAsinIndex}. Commits happen once enough ASINs are waiting or enough time has passed, so one commit
+ * covers many lookups.
+ *
+ * On opening, the records of the previous run are read up to the first one a crash cut short or corrupted, their ASINs
+ * are added to the index in case they never got there, and the outputs are cut back to the positions of the last one.
+ * Each record is its length, a CRC-32 of it and the record itself.
+ */
+public class Checkpoint implements AutoCloseable {
+	private static final Logger LOG = LoggerFactory.getLogger(Checkpoint.class);
+
+	/**
+	 * Size past which the checkpoint file is started over, once the index has its ASINs on disk.
+	 */
+	private static final long MAX_FILE_BYTES = 16 << 20;
+	private static final String TMP_EXT = ".tmp";
+
+	private final File file;
+	private final ProcessedAsinIndex index;
+	private final List<Durable> outputs;
+	private final Object lock;
+	private final int maxAsins;
+	private final long maxMillis;
+	private final ScheduledExecutorService timer;
+
+	private LongHashSet pending = new LongHashSet();
+	private FileOutputStream fileOutputStream;
+	private DataOutputStream out;
+	private long lastCommitMillis = System.currentTimeMillis();
+	private long commits = 0;
+
+	/**
+	 * @param file
+	 *            The checkpoint file, recovered from if it exists
+	 * @param index
+	 *            Where committed ASINs are recorded as processed
+	 * @param outputs
+	 *            The outputs committed along with them
+	 * @param lock
+	 *            Held while writing to the outputs, so a commit never sees half an item. Commits are made holding it.
+	 * @param maxAsins
+	 *            Commit once this many ASINs are waiting
+	 * @param maxMillis
+	 *            Commit waiting ASINs at least this often
+	 */
+	public Checkpoint(final File file, final ProcessedAsinIndex index, final List<Durable> outputs, final Object lock,
+			final int maxAsins, final long maxMillis) throws IOException {
+		this.file = file;
+		this.index = index;
+		this.outputs = outputs;
+		this.lock = lock;
+		this.maxAsins = maxAsins;
+		this.maxMillis = maxMillis;
+
+		synchronized (lock) {
+			recover();
+			startFile(syncOutputs());
+		}
+
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+				.setNameFormat("checkpoint").build());
+		timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					commitIfDue();
+				} catch (final IOException e) {
+					LOG.error("Error committing checkpoint", e);
+				}
+			}
+		}, maxMillis, maxMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Hold back an ASIN until the next commit. Its items must have been written to the outputs already.
+	 */
+	public void add(final long asin) {
+		synchronized (lock) {
+			pending.add(asin);
+		}
+	}
+
+	/**
+	 * @return Whether the ASIN is processed, committed or not
+	 */
+	public boolean contains(final long asin) {
+		synchronized (lock) {
+			if (pending.contains(asin)) {
+				return true;
+			}
+		}
+		return index.contains(asin);
+	}
+
+	/**
+	 * Commit if enough ASINs are waiting or the last commit was long enough ago.
+	 */
+	public void commitIfDue() throws IOException {
+		synchronized (lock) {
+			if (pending.size() >= maxAsins
+					|| !pending.isEmpty() && System.currentTimeMillis() - lastCommitMillis >= maxMillis) {
+				commit();
+			}
+		}
+	}
+
+	public void commit() throws IOException {
+		synchronized (lock) {
+			final Map<String, Long> positions = syncOutputs();
+			writeRecord(out, positions, pending);
+			out.flush();
+			fileOutputStream.getChannel().force(false);
+
+			for (final LongIterator iter = pending.iterator(); iter.hasNext();) {
+				index.add(iter.next());
+			}
+			index.flush();
+			LOG.debug("Committed {} ASINs at {}", pending.size(), positions);
+			pending = new LongHashSet();
+			lastCommitMillis = System.currentTimeMillis();
+			commits++;
+
+			if (fileOutputStream.getChannel().size() > MAX_FILE_BYTES) {
+				// Once the index has them on disk, the records of these ASINs are not needed any more
+				index.sync();
+				startFile(positions);
+			}
+		}
+	}
+
+	public long getCommits() {
+		synchronized (lock) {
+			return commits;
+		}
+	}
+
+	private Map<String, Long> syncOutputs() throws IOException {
+		final Map<String, Long> positions = Maps.newLinkedHashMap();
+		for (final Durable output : outputs) {
+			positions.put(output.getCheckpointId(), output.sync());
+		}
+		return positions;
+	}
+
+	private void recover() throws IOException {
+		if (!file.exists()) {
+			return;
+		}
+		Map<String, Long> positions = null;
+		int records = 0;
+		long asins = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			while (true) {
+				final byte[] record = readRecord(in);
+				if (record == null) {
+					break;
+				}
+				final DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+				positions = Maps.newLinkedHashMap();
+				final int outputCount = recordIn.readInt();
+				for (int i = 0; i < outputCount; i++) {
+					positions.put(recordIn.readUTF(), recordIn.readLong());
+				}
+				final int asinCount = recordIn.readInt();
+				for (int i = 0; i < asinCount; i++) {
+					index.add(recordIn.readLong());
+				}
+				records++;
+				asins += asinCount;
+			}
+		}
+		index.sync();
+		LOG.info("Recovered {} checkpoints with {} processed ASINs from {}", records, asins, file);
+
+		if (positions == null) {
+			return;
+		}
+		for (final Durable output : outputs) {
+			final Long position = positions.get(output.getCheckpointId());
+			if (position == null) {
+				LOG.warn("No checkpoint for output {}, leaving it as it is", output.getCheckpointId());
+			} else {
+				output.recover(position);
+			}
+		}
+	}
+
+	/**
+	 * @return The next record, or null at the end of the file or if the rest was cut short or corrupted by a crash
+	 */
+	private byte[] readRecord(final DataInputStream in) throws IOException {
+		try {
+			final int length = in.readInt();
+			final long crc = in.readLong();
+			if (length < 0 || length > file.length()) {
+				LOG.warn("Ignoring the rest of {} after a record of bad length {}", file, length);
+				return null;
+			}
+			final byte[] record = new byte[length];
+			in.readFully(record);
+			if (crc(record) != crc) {
+				LOG.warn("Ignoring the rest of {} after a record with a bad checksum", file);
+				return null;
+			}
+			return record;
+		} catch (final EOFException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Replace the checkpoint file with one holding just the positions, and append to it from now on.
+	 */
+	private void startFile(final Map<String, Long> positions) throws IOException {
+		if (out != null) {
+			out.close();
+		}
+		final File tmp = new File(file.getPath() + TMP_EXT);
+		try (FileOutputStream tmpOut = new FileOutputStream(tmp)) {
+			final DataOutputStream dataOut = new DataOutputStream(tmpOut);
+			writeRecord(dataOut, positions, new LongHashSet());
+			dataOut.flush();
+			tmpOut.getFD().sync();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		fileOutputStream = new FileOutputStream(file, true);
+		out = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+	}
+
+	private static void writeRecord(final DataOutputStream out, final Map<String, Long> positions,
+			final LongHashSet asins) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + asins.size() * 8);
+		final DataOutputStream recordOut = new DataOutputStream(bytes);
+		recordOut.writeInt(positions.size());
+		for (final Map.Entry<String, Long> position : positions.entrySet()) {
+			recordOut.writeUTF(position.getKey());
+			recordOut.writeLong(position.getValue());
+		}
+		recordOut.writeInt(asins.size());
+		for (final LongIterator iter = asins.iterator(); iter.hasNext();) {
+			recordOut.writeLong(iter.next());
+		}
+		final byte[] record = bytes.toByteArray();
+		out.writeInt(record.length);
+		out.writeLong(crc(record));
+		out.write(record);
+	}
+
+	private static long crc(final byte[] bytes) {
+		final CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length);
+		return crc.getValue();
+	}
+
+	/**
+	 * Commit the ASINs still waiting.
+	 */
+	@Override
+	public void close() throws IOException {
+		timer.shutdown();
+		synchronized (lock) {
+			commit();
+			out.close();
+		}
+	}
+}
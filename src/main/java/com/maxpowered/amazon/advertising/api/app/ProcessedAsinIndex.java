@@ -0,0 +1,422 @@
+package com.maxpowered.amazon.advertising.api.app;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.maxpowered.amazon.advertising.api.AsinCodec;
+import com.maxpowered.util.LongHashSet;
+import com.maxpowered.util.LongIterator;
+import com.maxpowered.util.Utils;
+
+/**
+ * The ASINs that have been processed, kept on disk as packed longs (see {@link AsinCodec}) so a restart does not have
+ * to read them back in.
+ *
+ * The index is a directory of runs, files of sorted longs that are memory mapped and binary searched, and a log that
+ * new ASINs are appended to. The log is also kept in memory, and once it is full it is sorted into a new run. When
+ * there are more than a few runs, a background thread merges them into one. Opening the index maps the runs and reads
+ * only the log.
+ *
+ * A crash may leave an ASIN in more than one file, which does no harm and is cleaned up by the next merge. A text file
+ * of ASINs, one per line as the processed file used to be, is migrated into the index when it is opened and renamed to
+ * end in '.migrated'.
+ */
+public class ProcessedAsinIndex implements AutoCloseable {
+	private static final Logger LOG = LoggerFactory.getLogger(ProcessedAsinIndex.class);
+
+	private static final String RUN_PREFIX = "run-";
+	private static final String RUN_EXT = ".bin";
+	private static final String LOG_FILE = "log.bin";
+	private static final String TMP_EXT = ".tmp";
+	private static final String MIGRATED_EXT = ".migrated";
+	/**
+	 * ASINs in the log before it is written out as a run.
+	 */
+	private static final int LOG_MAX_ENTRIES = 1 << 20;
+	/**
+	 * Runs kept before they are merged.
+	 */
+	private static final int MAX_RUNS = 8;
+	/**
+	 * The most ASINs in one run, the most longs one buffer can map.
+	 */
+	private static final long MAX_RUN_ENTRIES = Integer.MAX_VALUE / 8;
+	private static final long CLOSE_TIMEOUT_MINUTES = 10;
+
+	private final File dir;
+	private final File logFile;
+	private final ExecutorService merger;
+	private final List<Run> runs = Lists.newArrayList();
+	private LongHashSet log = new LongHashSet();
+	private FileOutputStream logFileOut;
+	private DataOutputStream logOut;
+	private int nextRunNumber = 0;
+	private boolean merging = false;
+	private boolean closed = false;
+
+	/**
+	 * @param dir
+	 *            Directory the index is kept in, created if it does not exist
+	 * @param textFile
+	 *            File of ASINs to migrate into the index if it exists, or null
+	 */
+	public ProcessedAsinIndex(final File dir, final File textFile) throws IOException {
+		this.dir = dir;
+		logFile = new File(dir, LOG_FILE);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create directory " + dir);
+		}
+		merger = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true)
+				.setNameFormat("processed-index-merge").build());
+
+		openRuns();
+		loadLog();
+		logFileOut = new FileOutputStream(logFile, true);
+		logOut = new DataOutputStream(new BufferedOutputStream(logFileOut));
+		LOG.info("Opened {} with {} runs and {} ASINs in the log", dir, runs.size(), log.size());
+
+		if (textFile != null && textFile.isFile()) {
+			migrate(textFile);
+		}
+		mergeIfNeeded();
+	}
+
+	public synchronized boolean contains(final long asin) {
+		if (log.contains(asin)) {
+			return true;
+		}
+		for (final Run run : runs) {
+			if (run.contains(asin)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Add an ASIN code. It is only sure to be on disk after {@link #flush()}.
+	 *
+	 * @return Whether the ASIN was not in the index yet
+	 */
+	public synchronized boolean add(final long asin) throws IOException {
+		if (contains(asin)) {
+			return false;
+		}
+		logOut.writeLong(asin);
+		log.add(asin);
+		if (log.size() >= LOG_MAX_ENTRIES) {
+			writeLogRun();
+		}
+		return true;
+	}
+
+	public synchronized void flush() throws IOException {
+		logOut.flush();
+	}
+
+	/**
+	 * Flush the log and force it to disk.
+	 */
+	public synchronized void sync() throws IOException {
+		logOut.flush();
+		logFileOut.getFD().sync();
+	}
+
+	/**
+	 * @return The number of ASINs, counting any that a crash left in more than one file twice
+	 */
+	public synchronized long size() {
+		long size = log.size();
+		for (final Run run : runs) {
+			size += run.size;
+		}
+		return size;
+	}
+
+	private void openRuns() throws IOException {
+		for (final File file : dir.listFiles()) {
+			final String name = file.getName();
+			if (name.endsWith(TMP_EXT)) {
+				// Left by a crash while writing a run
+				Files.delete(file.toPath());
+			} else if (name.startsWith(RUN_PREFIX) && name.endsWith(RUN_EXT)) {
+				final int number = Integer.parseInt(name.substring(RUN_PREFIX.length(), name.length()
+						- RUN_EXT.length()));
+				runs.add(new Run(file, number));
+				nextRunNumber = Math.max(nextRunNumber, number + 1);
+			}
+		}
+		Collections.sort(runs, new Comparator<Run>() {
+			@Override
+			public int compare(final Run a, final Run b) {
+				return Integer.compare(a.number, b.number);
+			}
+		});
+	}
+
+	private void loadLog() throws IOException {
+		if (!logFile.exists()) {
+			return;
+		}
+		final long remainder = logFile.length() % 8;
+		if (remainder != 0) {
+			LOG.warn("Dropping {} bytes of an ASIN cut short by a crash from {}", remainder, logFile);
+			try (RandomAccessFile file = new RandomAccessFile(logFile, "rw")) {
+				file.setLength(logFile.length() - remainder);
+			}
+		}
+		final long entries = logFile.length() / 8;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)))) {
+			for (long i = 0; i < entries; i++) {
+				log.add(in.readLong());
+			}
+		}
+	}
+
+	/**
+	 * Sort the log into a new run and start an empty log.
+	 */
+	private void writeLogRun() throws IOException {
+		logOut.flush();
+		final long[] asins = new long[log.size()];
+		int i = 0;
+		for (final LongIterator iter = log.iterator(); iter.hasNext();) {
+			asins[i++] = iter.next();
+		}
+		Arrays.sort(asins);
+
+		final File file = runFile(nextRunNumber);
+		try (DataOutputStream out = createRun(file)) {
+			for (final long asin : asins) {
+				out.writeLong(asin);
+			}
+		}
+		runs.add(new Run(finishRun(file), nextRunNumber++));
+
+		// The ASINs are in the run now, so the log can start over
+		logOut.close();
+		logFileOut = new FileOutputStream(logFile);
+		logOut = new DataOutputStream(new BufferedOutputStream(logFileOut));
+		log = new LongHashSet();
+		mergeIfNeeded();
+	}
+
+	private void mergeIfNeeded() {
+		if (merging || closed || runs.size() <= MAX_RUNS) {
+			return;
+		}
+		// Merge the smallest runs that fit in one
+		final List<Run> bySize = Lists.newArrayList(runs);
+		Collections.sort(bySize, new Comparator<Run>() {
+			@Override
+			public int compare(final Run a, final Run b) {
+				return Long.compare(a.size, b.size);
+			}
+		});
+		final List<Run> toMerge = Lists.newArrayList();
+		long entries = 0;
+		for (final Run run : bySize) {
+			if (entries + run.size > MAX_RUN_ENTRIES) {
+				break;
+			}
+			toMerge.add(run);
+			entries += run.size;
+		}
+		if (toMerge.size() < 2) {
+			return;
+		}
+
+		merging = true;
+		final int number = nextRunNumber++;
+		merger.execute(new Runnable() {
+			@Override
+			public void run() {
+				merge(toMerge, number);
+			}
+		});
+	}
+
+	/**
+	 * Merge runs into a new one, dropping ASINs found in more than one, then replace them with it.
+	 */
+	private void merge(final List<Run> toMerge, final int number) {
+		final File file = runFile(number);
+		try {
+			final long start = System.currentTimeMillis();
+			final int[] positions = new int[toMerge.size()];
+			long last = AsinCodec.EMPTY;
+			long written = 0;
+			try (DataOutputStream out = createRun(file)) {
+				while (true) {
+					int next = -1;
+					long min = Long.MAX_VALUE;
+					for (int i = 0; i < toMerge.size(); i++) {
+						final Run run = toMerge.get(i);
+						if (positions[i] < run.size && (next < 0 || run.get(positions[i]) < min)) {
+							next = i;
+							min = run.get(positions[i]);
+						}
+					}
+					if (next < 0) {
+						break;
+					}
+					positions[next]++;
+					if (min != last) {
+						out.writeLong(min);
+						last = min;
+						written++;
+					}
+				}
+			}
+			final Run merged = new Run(finishRun(file), number);
+
+			synchronized (this) {
+				runs.removeAll(toMerge);
+				runs.add(merged);
+				merging = false;
+				for (final Run run : toMerge) {
+					// A run still mapped can't be deleted on some platforms, it is merged again next time
+					if (!run.file.delete()) {
+						LOG.warn("Could not delete merged run {}", run.file);
+					}
+				}
+				LOG.debug("Merged {} runs into {} with {} ASINs in {} ms", toMerge.size(), file, written,
+						System.currentTimeMillis() - start);
+				mergeIfNeeded();
+			}
+		} catch (final IOException e) {
+			LOG.error("Error merging runs of {}, they are left as they are", dir, e);
+			new File(file.getPath() + TMP_EXT).delete();
+			synchronized (this) {
+				merging = false;
+			}
+		}
+	}
+
+	private void migrate(final File textFile) throws IOException {
+		LOG.info("Migrating processed ASINs from {} to {}", textFile, dir);
+		long count = 0;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(textFile),
+				StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				final String asin = line.trim();
+				if (AsinCodec.isValid(asin) && add(AsinCodec.encode(asin))) {
+					count++;
+				}
+			}
+		}
+		// On disk before the text file is moved away, or a crash could lose ASINs that are never migrated again
+		sync();
+		final File migrated = new File(textFile.getPath() + MIGRATED_EXT);
+		Files.move(textFile.toPath(), migrated.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		LOG.info("Migrated {} processed ASINs, the old file is kept as {}", count, migrated);
+	}
+
+	private File runFile(final int number) {
+		return new File(dir, String.format("%s%010d%s", RUN_PREFIX, number, RUN_EXT));
+	}
+
+	/**
+	 * @return A stream to write a run to. It is written next to the run file and only takes its place once finished.
+	 */
+	private static DataOutputStream createRun(final File file) throws IOException {
+		final FileOutputStream fileOut = new FileOutputStream(file.getPath() + TMP_EXT);
+		return new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16)) {
+			@Override
+			public void close() throws IOException {
+				flush();
+				// The log is emptied once a run is written, so it has to be on disk
+				fileOut.getFD().sync();
+				super.close();
+			}
+		};
+	}
+
+	private static File finishRun(final File file) throws IOException {
+		Files.move(new File(file.getPath() + TMP_EXT).toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		return file;
+	}
+
+	@Override
+	public String toString() {
+		return dir.getPath();
+	}
+
+	@Override
+	public void close() throws IOException, InterruptedException {
+		synchronized (this) {
+			closed = true;
+		}
+		// Let a running merge finish rather than leave its work behind
+		merger.shutdown();
+		merger.awaitTermination(CLOSE_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+		synchronized (this) {
+			logOut.close();
+		}
+	}
+
+	/**
+	 * A memory mapped file of sorted ASIN codes.
+	 */
+	private static final class Run {
+		private final File file;
+		private final int number;
+		private final LongBuffer asins;
+		private final int size;
+
+		private Run(final File file, final int number) throws IOException {
+			this.file = file;
+			this.number = number;
+			asins = Utils.map(file, FileChannel.MapMode.READ_ONLY, file.length() / 8 * 8).asLongBuffer();
+			size = asins.limit();
+		}
+
+		private long get(final int index) {
+			return asins.get(index);
+		}
+
+		private boolean contains(final long asin) {
+			int low = 0;
+			int high = size - 1;
+			while (low <= high) {
+				final int mid = (low + high) >>> 1;
+				final long value = asins.get(mid);
+				if (value < asin) {
+					low = mid + 1;
+				} else if (value > asin) {
+					high = mid - 1;
+				} else {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
@@ -1,54 +1,122 @@
 package com.maxpowered.amazon.advertising.api.app;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
-
-import javax.xml.bind.JAXBException;
-import javax.xml.stream.XMLStreamException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.LineIterator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import com.amazon.webservices.awsecommerceservice._2013_08_01.Errors;
 import com.amazon.webservices.awsecommerceservice._2013_08_01.Item;
-import com.amazon.webservices.awsecommerceservice._2013_08_01.ItemLookupResponse;
+import com.amazon.webservices.awsecommerceservice._2013_08_01.ItemAttributes;
 import com.amazon.webservices.awsecommerceservice._2013_08_01.Request;
-import com.google.common.base.Joiner;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.maxpowered.amazon.advertising.api.APIRequestException;
 import com.maxpowered.amazon.advertising.api.APIResponseException;
 import com.maxpowered.amazon.advertising.api.AmazonProductsAPI;
+import com.maxpowered.amazon.advertising.api.AsinCodec;
+import com.maxpowered.amazon.advertising.api.ItemsHandler;
+import com.maxpowered.amazon.advertising.api.RawItem;
+import com.maxpowered.amazon.advertising.api.processors.Durable;
 import com.maxpowered.amazon.advertising.api.processors.OutputProcessor;
+import com.maxpowered.util.LongHashSet;
+import com.maxpowered.util.LongSet;
+import com.maxpowered.util.OffHeapLongHashSet;
 
+/**
+ * Looks up ASINs in groups of 20, as two ItemLookup operations batched into each request, writes the items to the
+ * output processor and records the ASINs as processed.
+ *
+ * Requests are started at the throttled rate no matter how long they take. With a concurrency above 1, up to that many
+ * requests run at once, so slow responses do not eat into the request budget. The rate backs off when the API throttles
+ * requests and recovers as they go through again, see {@link AdaptiveRateLimiter}.
+ *
+ * Processed ASINs are kept in a {@link ProcessedAsinIndex}, and committed together with the output by a
+ * {@link Checkpoint}. ASINs whose request failed go to a {@link RetryQueue} kept next to it, and are retried with
+ * exponential backoff alongside new ASINs until they go through or fail too often. The same goes for single ASINs
+ * missing from an otherwise successful response, unless the API reported them as invalid.
+ *
+ * The input is read lazily as groups are needed, so the first request goes out right away and the input is never held
+ * in memory. Each ASIN read is checked against the processed index, which is added to as requests complete, so an ASIN
+ * appearing twice in the input is only looked up once.
+ *
+ * ASINs are kept in sets of longs, see {@link AsinCodec}, optionally outside the heap. Input lines that aren't ASINs
+ * are skipped.
+ */
 public class ProductFetcher implements AutoCloseable {
 	private static final Logger LOG = LoggerFactory.getLogger(ProductFetcher.class);
-	private static final int THROTTLE_MAX_RETRIES = 3;
+	private static final int MAX_ASINS_PER_REQUEST = AmazonProductsAPI.MAX_ITEMS_PER_BATCH;
+	private static final String RETRY_EXT = ".retry";
+	private static final String INDEX_EXT = ".index";
+	private static final String CHECKPOINT_EXT = ".checkpoint";
+	private static final int RETRY_MAX_ATTEMPTS = 8;
+	private static final long RETRY_BASE_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(30);
+	private static final long RETRY_MAX_BACKOFF_MILLIS = TimeUnit.HOURS.toMillis(1);
+	/**
+	 * Longest sleep while waiting for retries to become due, so requests that are still running can add more.
+	 */
+	private static final long RETRY_POLL_MILLIS = 1000;
+	/**
+	 * Requests that may be sent back to back after a quiet period.
+	 */
+	private static final int REQUEST_BURST = 5;
 
-	private int throttledRetries = 0;
-	private FileOutputStream processedFileOutputStream;
-	private FileInputStream processedFileInputStream;
+	private final AtomicBoolean stopped = new AtomicBoolean();
+	private ProcessedAsinIndex processedIndex;
+	private Checkpoint checkpoint;
+	private int checkpointAsins = 1000;
+	private long checkpointMillis = 5000;
+	private RetryQueue retryQueue;
 	private String responseGroups;
 	private InputStream inputStream;
-	private int requestWait;
+	private AdaptiveRateLimiter rateLimiter;
+	private int concurrency = 1;
+	private boolean rawItems = false;
+	private boolean offHeapAsinSets = false;
 
 	private final AmazonProductsAPI api;
 	private final OutputProcessor outputProcessor;
+	/**
+	 * Held while writing to the output processor, which is not safe to call from several request threads at once, and
+	 * while committing it.
+	 */
+	private final Object outputLock = new Object();
 
-	private final Set<String> successfulAsins = Sets.newHashSet();
-	private final Set<String> attemptedAsins = Sets.newHashSet();
-	private Set<String> asins;
+	/**
+	 * Guards the ASIN sets, which are written from request threads.
+	 */
+	private final Object asinsLock = new Object();
+	private LongSet successfulAsins;
+	private LongSet attemptedAsins;
+	private LongSet invalidAsins;
+	/**
+	 * New ASINs handed out but not yet recorded as processed or queued for a retry.
+	 */
+	private LongSet inFlightAsins;
+	private final AtomicLong inputAsinCount = new AtomicLong();
+	private final AtomicLong skippedAsinCount = new AtomicLong();
+	private Iterator<String> newAsins;
 
 	@Autowired
 	ProductFetcher(final AmazonProductsAPI api, final OutputProcessor outputProcessor) {
@@ -56,9 +124,37 @@ public class ProductFetcher implements AutoCloseable {
 		this.outputProcessor = outputProcessor;
 	}
 
-	public void setProcessedFile(final File file) throws FileNotFoundException {
-		processedFileOutputStream = new FileOutputStream(file, true);
-		processedFileInputStream = new FileInputStream(file);
+	/**
+	 * Set where processed ASINs are recorded. They are indexed in a directory with '.index' appended to the name, and
+	 * a text file of ASINs by the name itself is migrated into it. They are committed along with the output through a
+	 * {@link Checkpoint} with '.checkpoint' appended, which also recovers the output of a run that crashed. ASINs to
+	 * retry are kept in a file with '.retry' appended.
+	 */
+	public void setProcessedFile(final File file) throws IOException {
+		processedIndex = new ProcessedAsinIndex(new File(file.getPath() + INDEX_EXT), file);
+		final List<Durable> outputs = outputProcessor == null ? Collections.<Durable> emptyList() : outputProcessor
+				.getDurables();
+		checkpoint = new Checkpoint(new File(file.getPath() + CHECKPOINT_EXT), processedIndex, outputs, outputLock,
+				checkpointAsins, checkpointMillis);
+		retryQueue = new RetryQueue(new File(file.getPath() + RETRY_EXT), RETRY_MAX_ATTEMPTS,
+				RETRY_BASE_BACKOFF_MILLIS, RETRY_MAX_BACKOFF_MILLIS);
+	}
+
+	/**
+	 * @param checkpointAsins
+	 *            Commit the output and processed ASINs once this many ASINs are processed. Set before the processed
+	 *            file.
+	 */
+	public void setCheckpointAsins(final int checkpointAsins) {
+		this.checkpointAsins = checkpointAsins;
+	}
+
+	/**
+	 * @param checkpointMillis
+	 *            Commit the output and processed ASINs at least this often. Set before the processed file.
+	 */
+	public void setCheckpointMillis(final long checkpointMillis) {
+		this.checkpointMillis = checkpointMillis;
 	}
 
 	public void setResponseGroups(final String responseGroups) {
@@ -69,120 +165,512 @@ public class ProductFetcher implements AutoCloseable {
 		this.inputStream = inputStream;
 	}
 
+	/**
+	 * @param requestWait
+	 *            Milliseconds between the starts of two requests at the maximum rate
+	 */
 	public void setRequestWait(final int requestWait) {
-		this.requestWait = requestWait;
+		rateLimiter = new AdaptiveRateLimiter(1000.0 / requestWait, REQUEST_BURST);
 	}
 
-	public void computeASINsToLookUp()
-			throws FileNotFoundException, IOException {
-		LOG.debug("Reading ASINS from {} and excluding those in {}", inputStream, processedFileInputStream);
-		final Set<String> all = Sets.newHashSet(IOUtils.readLines(inputStream, StandardCharsets.UTF_8));
-		LOG.info("Got {} input ASINs", all.size());
-		// Get any ASINs already processed
-		final Set<String> processed = Sets.newHashSet(IOUtils.readLines(processedFileInputStream,
-				StandardCharsets.UTF_8));
-		LOG.info("Got {} processed ASINs", processed.size());
+	/**
+	 * @return The request rate currently in effect, which is lower than the throttle after throttled responses. -1 if
+	 *         requests are not rate limited.
+	 */
+	public long getEffectiveRequestsPerHour() {
+		return rateLimiter == null ? -1 : rateLimiter.getRequestsPerHour();
+	}
 
-		asins = Sets.difference(all, processed);
+	/**
+	 * @param concurrency
+	 *            Maximum number of requests running at once
+	 */
+	public void setConcurrency(final int concurrency) {
+		if (concurrency < 1) {
+			throw new IllegalArgumentException("concurrency must be at least 1");
+		}
+		this.concurrency = concurrency;
 	}
 
-	public void recordProcessed(final List<String> asins)
-			throws IOException {
-		final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(processedFileOutputStream));
-		for (final String asin : asins) {
-			writer.write(asin);
-			writer.write(System.lineSeparator());
+	/**
+	 * @param rawItems
+	 *            Pass items on as the XML they arrived as. Only processors that need an Item object get one, so an
+	 *            output of XML files skips unmarshalling and marshalling every item.
+	 */
+	public void setRawItems(final boolean rawItems) {
+		this.rawItems = rawItems;
+	}
+
+	/**
+	 * @param offHeapAsinSets
+	 *            Keep the sets of looked up ASINs in direct memory rather than on the heap
+	 */
+	public void setOffHeapAsinSets(final boolean offHeapAsinSets) {
+		this.offHeapAsinSets = offHeapAsinSets;
+	}
+
+	private LongSet newAsinSet() {
+		return offHeapAsinSets ? new OffHeapLongHashSet() : new LongHashSet();
+	}
+
+	/**
+	 * Start reading the input. Input ASINs are read one group at a time by
+	 * {@link #fetchProductInformation()}.
+	 */
+	public void computeASINsToLookUp() throws IOException {
+		LOG.debug("Reading ASINS from {} and excluding those in {}", inputStream, processedIndex);
+		successfulAsins = newAsinSet();
+		attemptedAsins = newAsinSet();
+		invalidAsins = newAsinSet();
+		inFlightAsins = newAsinSet();
+		LOG.info("Got {} processed ASINs", processedIndex.size());
+
+		// ASINs waiting for a retry are looked up from the retry queue, unless they were processed after all
+		final List<String> processedRetries = Lists.newArrayList();
+		for (final String asin : retryQueue.asins()) {
+			if (!AsinCodec.isValid(asin) || checkpoint.contains(AsinCodec.encode(asin))) {
+				processedRetries.add(asin);
+			}
+		}
+		retryQueue.remove(processedRetries);
+		LOG.info("Got {} ASINs to retry", retryQueue.size());
+
+		newAsins = new NewAsinIterator(IOUtils.lineIterator(inputStream, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return The input ASINs left to look up, read as they are asked for
+	 */
+	Iterator<String> getNewAsins() {
+		return newAsins;
+	}
+
+	/**
+	 * Record ASINs as processed once their items are written, at the next commit of the checkpoint.
+	 */
+	public void recordProcessed(final List<String> asins) throws IOException {
+		synchronized (outputLock) {
+			for (final String asin : asins) {
+				checkpoint.add(AsinCodec.encode(asin));
+			}
+			checkpoint.commitIfDue();
 		}
-		writer.flush();
 	}
 
-	public void fetchProductInformation() throws FileNotFoundException, IOException, JAXBException, XMLStreamException {
+	/**
+	 * Look up every remaining ASIN. Groups are filled with ASINs due for a retry first, then new ones. Once the input
+	 * runs out, this keeps going until the retry queue is empty too.
+	 */
+	public void fetchProductInformation() throws FileNotFoundException, IOException {
 		// Search the list of remaining ASINs
 		computeASINsToLookUp();
 
-		final List<String> asinGroup = Lists.newArrayListWithCapacity(10);
-		for (final String asin : asins) {
-			asinGroup.add(asin);
+		final Semaphore runningRequests = new Semaphore(concurrency);
+		try {
+			while (!stopped.get()) {
+				final List<String> asinGroup = nextAsinGroup(newAsins);
+				if (asinGroup.isEmpty()) {
+					// Nothing running means nothing can be added to the retry queue any more
+					if (runningRequests.availablePermits() == concurrency && retryQueue.isEmpty()) {
+						break;
+					}
+					Thread.sleep(Math.min(retryQueue.millisUntilNextReady(), RETRY_POLL_MILLIS));
+					continue;
+				}
 
-			if (asinGroup.size() == 10) {
-				if (lookUpAsinGroup(asinGroup)) {
+				if (concurrency > 1) {
+					startLookUp(asinGroup, runningRequests);
+				} else if (lookUpAsinGroup(asinGroup)) {
 					break;
 				}
 			}
+
+			// Wait for the requests still running
+			runningRequests.acquire(concurrency);
+		} catch (final InterruptedException e) {
+			LOG.error("Interrupted!", e);
+			stopped.set(true);
 		}
-		lookUpAsinGroup(asinGroup);
 	}
 
-	public void logStatistics() {
-		LOG.info("Successfully retrieved {} ASINs", successfulAsins.size());
-		final Set<String> failedAsins = Sets.difference(attemptedAsins, successfulAsins);
-		LOG.info("Failed to retrieve {} ASINs", failedAsins.size());
-		LOG.debug("Failed to retrieve ASINSs: {}", failedAsins);
-		LOG.info("Success rate: {} / {} = {}%", successfulAsins.size(), attemptedAsins.size(),
-				(double) successfulAsins.size() / attemptedAsins.size());
-		LOG.info("Processed asins {} / {} = {}%", attemptedAsins.size(), asins.size(),
-				(double) attemptedAsins.size() / asins.size());
+	private List<String> nextAsinGroup(final Iterator<String> newAsins) {
+		final List<String> asinGroup = Lists.newArrayListWithCapacity(MAX_ASINS_PER_REQUEST);
+		asinGroup.addAll(retryQueue.pollReady(MAX_ASINS_PER_REQUEST));
+		while (asinGroup.size() < MAX_ASINS_PER_REQUEST && newAsins.hasNext()) {
+			final String asin = newAsins.next();
+			synchronized (asinsLock) {
+				inFlightAsins.add(AsinCodec.encode(asin));
+			}
+			asinGroup.add(asin);
+		}
+		return asinGroup;
 	}
 
-	public boolean lookUpAsinGroup(final List<String> asinGroup) throws IOException, JAXBException, XMLStreamException {
+	private void startLookUp(final List<String> asinGroup, final Semaphore runningRequests)
+			throws InterruptedException {
+		runningRequests.acquire();
+		acquireRequestPermit();
 		LOG.debug("Looking up ASINs {}", asinGroup);
-		ItemLookupResponse response;
+
+		final LookUpHandler<?> handler = newLookUpHandler(asinGroup);
+		final ListenableFuture<?> response;
 		try {
-			response = api.itemLookup(Joiner.on(",").join(asinGroup), responseGroups);
-		} catch (final APIResponseException e1) {
-			// Retry logic in case the throttling is too high
-			LOG.error("Probable throttling response, waiting extra time", e1);
-			asinGroup.clear();
-			throttledRetries++;
-			if (throttledRetries > THROTTLE_MAX_RETRIES) {
-				return true;
-			}
-			try {
-				Thread.sleep(requestWait * (throttledRetries + 1));
-			} catch (final InterruptedException e) {
-				LOG.error("Interrupted!", e);
-				return true;
-			}
-			return false;
+			response = handler.lookUpAsync();
+		} catch (final InterruptedException | RuntimeException e) {
+			runningRequests.release();
+			throw e;
 		}
+		Futures.addCallback(response, new FutureCallback<Object>() {
+			@Override
+			public void onSuccess(final Object result) {
+				try {
+					finishLookUp(asinGroup, handler);
+				} catch (final IOException e) {
+					LOG.error("Error recording processed ASINs, stopping", e);
+					stopped.set(true);
+				} finally {
+					runningRequests.release();
+				}
+			}
 
-		final Request itemRequest = response.getItems().get(0).getRequest();
-		if (itemRequest.getErrors() != null) {
-			for (final Errors.Error error : itemRequest.getErrors().getError()) {
-				LOG.error("Exception with API request for an item", new APIRequestException(error));
+			@Override
+			public void onFailure(final Throwable t) {
+				try {
+					if (t instanceof APIResponseException) {
+						handleFailedLookUp(asinGroup, handler, (APIResponseException) t);
+					} else {
+						LOG.error("Error looking up ASINs {}, stopping", asinGroup, t);
+						stopped.set(true);
+					}
+				} catch (final IOException e) {
+					LOG.error("Error queueing ASINs for retry, stopping", e);
+					stopped.set(true);
+				} finally {
+					runningRequests.release();
+				}
 			}
+		}, MoreExecutors.directExecutor());
+	}
+
+	private void acquireRequestPermit() throws InterruptedException {
+		if (rateLimiter != null) {
+			rateLimiter.acquire();
 		}
+	}
 
-		try {
-			for (final Item item : response.getItems().get(0).getItem()) {
-				LOG.debug("Got item titled {}", item.getItemAttributes().getTitle());
-				successfulAsins.add(item.getASIN());
-				outputProcessor.writeItem(item);
+	public void logStatistics() {
+		synchronized (asinsLock) {
+			LOG.info("Successfully retrieved {} ASINs", successfulAsins.size());
+			final LongSet failedAsins = LongHashSet.difference(attemptedAsins, successfulAsins);
+			LOG.info("Failed to retrieve {} ASINs", failedAsins.size());
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Failed to retrieve ASINSs: {}", AsinCodec.decodeAll(failedAsins));
 			}
-		} catch (final Exception e) {
-			LOG.error("Error getting items", e);
+			LOG.info("Invalid ASINs: {}", invalidAsins.size());
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Invalid ASINs: {}", AsinCodec.decodeAll(invalidAsins));
+			}
+			LOG.info("Success rate: {} / {} = {}%", successfulAsins.size(), attemptedAsins.size(),
+					(double) successfulAsins.size() / attemptedAsins.size());
+			LOG.info("Read {} input ASINs, skipped {} already processed, repeated or malformed", inputAsinCount.get(),
+					skippedAsinCount.get());
+			LOG.info("Processed asins {} / {} = {}%", attemptedAsins.size(), inputAsinCount.get(),
+					(double) attemptedAsins.size() / inputAsinCount.get());
+		}
+		if (retryQueue != null) {
+			LOG.info("ASINs left to retry: {}", retryQueue.size());
 		}
+		LOG.info("Effective request rate {} requests per hour", getEffectiveRequestsPerHour());
+		if (outputProcessor != null) {
+			outputProcessor.logStatistics();
+		}
+	}
 
-		recordProcessed(asinGroup);
-		attemptedAsins.addAll(asinGroup);
-		asinGroup.clear();
+	public boolean lookUpAsinGroup(final List<String> asinGroup) throws IOException {
 		try {
-			throttledRetries = 0;
-			Thread.sleep(requestWait);
+			acquireRequestPermit();
 		} catch (final InterruptedException e) {
 			LOG.error("Interrupted!", e);
 			return true;
 		}
-		return false;
+		LOG.debug("Looking up ASINs {}", asinGroup);
+		final LookUpHandler<?> handler = newLookUpHandler(asinGroup);
+		try {
+			handler.lookUp();
+		} catch (final APIResponseException e1) {
+			handleFailedLookUp(asinGroup, handler, e1);
+			asinGroup.clear();
+			return stopped.get();
+		}
+
+		finishLookUp(asinGroup, handler);
+		asinGroup.clear();
+		return stopped.get();
+	}
+
+	/**
+	 * Queue the ASINs to be retried later. Items already written before the response broke off are kept. A throttled
+	 * response also slows down every following request, from any thread.
+	 */
+	private void handleFailedLookUp(final List<String> asinGroup, final LookUpHandler<?> handler,
+			final APIResponseException e) throws IOException {
+		if (e.isThrottled()) {
+			LOG.error("Throttled response, slowing down", e);
+			if (rateLimiter != null) {
+				rateLimiter.onThrottled();
+			}
+		} else {
+			LOG.error("Error response", e);
+		}
+		recordLookUp(asinGroup, handler);
+	}
+
+	/**
+	 * Record what came back from a complete response, see {@link #recordLookUp(List, LookUpHandler)}.
+	 */
+	private void finishLookUp(final List<String> asinGroup, final LookUpHandler<?> handler) throws IOException {
+		recordLookUp(asinGroup, handler);
+		if (rateLimiter != null) {
+			rateLimiter.onSuccess();
+		}
+	}
+
+	/**
+	 * Write the items of the group and sort out which ASINs are done. Returned ASINs, and those the API reports as
+	 * invalid, are recorded as processed along with the items so they are never asked for again. Any other missing
+	 * ASIN is queued for a retry, to be sent again in a full group with other pending ASINs.
+	 */
+	private void recordLookUp(final List<String> asinGroup, final LookUpHandler<?> handler) throws IOException {
+		final List<String> done = Lists.newArrayListWithCapacity(asinGroup.size());
+		final List<String> missing = Lists.newArrayList();
+		for (final String asin : asinGroup) {
+			if (handler.returned.contains(asin) || handler.invalid.contains(asin)) {
+				done.add(asin);
+			} else {
+				missing.add(asin);
+			}
+		}
+
+		synchronized (outputLock) {
+			handler.writeItems();
+			recordProcessed(done);
+		}
+		retryQueue.remove(done);
+		final List<String> gaveUp = missing.isEmpty() ? Collections.<String> emptyList() : retryQueue.add(missing);
+		if (!missing.isEmpty()) {
+			LOG.info("ASINs {} missing from the response, retrying later", missing);
+		}
+		synchronized (asinsLock) {
+			addAll(attemptedAsins, done);
+			addAll(attemptedAsins, gaveUp);
+			addAll(invalidAsins, handler.invalid);
+			// Only now, once they are processed or in the retry queue, can repeats of them in the input be told apart
+			for (final String asin : asinGroup) {
+				inFlightAsins.remove(AsinCodec.encode(asin));
+			}
+		}
+	}
+
+	private static void addAll(final LongSet set, final Collection<String> asins) {
+		for (final String asin : asins) {
+			set.add(AsinCodec.encode(asin));
+		}
+	}
+
+	/**
+	 * @return The ASIN of the group an error message is about, or null if it names none of them
+	 */
+	private static String findAsin(final List<String> asinGroup, final String message) {
+		if (message != null) {
+			for (final String asin : asinGroup) {
+				if (message.contains(asin)) {
+					return asin;
+				}
+			}
+		}
+		return null;
 	}
 
 	@Override
 	public void close() throws Exception {
-		if (processedFileInputStream != null) {
-			processedFileInputStream.close();
+		if (checkpoint != null) {
+			checkpoint.close();
+		}
+		if (processedIndex != null) {
+			processedIndex.close();
+		}
+		if (retryQueue != null) {
+			retryQueue.close();
+		}
+	}
+
+	/**
+	 * Reads input ASINs one line at a time, skipping blank lines and ASINs that are processed, waiting for a retry or
+	 * being looked up already.
+	 */
+	private class NewAsinIterator extends AbstractIterator<String> {
+		private final LineIterator lines;
+
+		private NewAsinIterator(final LineIterator lines) {
+			this.lines = lines;
+		}
+
+		@Override
+		protected String computeNext() {
+			while (lines.hasNext()) {
+				final String asin = lines.nextLine().trim();
+				if (asin.isEmpty()) {
+					continue;
+				}
+				inputAsinCount.incrementAndGet();
+				if (!AsinCodec.isValid(asin)) {
+					LOG.warn("Skipping input line {}, which is not an ASIN", asin);
+					skippedAsinCount.incrementAndGet();
+					continue;
+				}
+				final long code = AsinCodec.encode(asin);
+				final boolean seen;
+				synchronized (asinsLock) {
+					seen = inFlightAsins.contains(code);
+				}
+				if (seen || checkpoint.contains(code) || retryQueue.contains(asin)) {
+					skippedAsinCount.incrementAndGet();
+					continue;
+				}
+				return asin;
+			}
+			return endOfData();
+		}
+	}
+
+	private LookUpHandler<?> newLookUpHandler(final List<String> asinGroup) {
+		return rawItems ? new RawItemLookUpHandler(asinGroup) : new ItemLookUpHandler(asinGroup);
+	}
+
+	/**
+	 * Runs the lookup of one group, keeping the items read from the response and noting which ASINs came back and
+	 * which the API reported as invalid. A batch request has one Items element per operation, each with its own
+	 * errors. The items are written to the output processor when the lookup is over, so that they are committed
+	 * together with their ASINs.
+	 */
+	private abstract class LookUpHandler<T> implements ItemsHandler<T> {
+		protected final List<String> asinGroup;
+		private final Set<String> returned = Sets.newHashSet();
+		private final Set<String> invalid = Sets.newHashSet();
+		private final List<T> items = Lists.newArrayListWithCapacity(MAX_ASINS_PER_REQUEST);
+
+		private LookUpHandler(final List<String> asinGroup) {
+			this.asinGroup = Lists.newArrayList(asinGroup);
 		}
-		if (processedFileOutputStream != null) {
-			processedFileOutputStream.close();
+
+		protected abstract void lookUp() throws APIResponseException;
+
+		protected abstract ListenableFuture<?> lookUpAsync() throws InterruptedException;
+
+		protected abstract void write(T item) throws Exception;
+
+		protected abstract String getASIN(T item);
+
+		@Override
+		public void request(final int index, final Request request) {
+			if (request.getErrors() == null) {
+				return;
+			}
+			for (final Errors.Error error : request.getErrors().getError()) {
+				final APIRequestException e = new APIRequestException(error);
+				final String asin = e.isInvalidItem() ? findAsin(asinGroup, e.getErrorMessage()) : null;
+				if (asin != null) {
+					LOG.warn("Invalid ASIN {}, not retrying: {}", asin, e.getMessage());
+					invalid.add(asin);
+				} else {
+					LOG.error("Exception with API request for an item", e);
+				}
+			}
+		}
+
+		@Override
+		public void item(final int index, final T item) {
+			try {
+				final String asin = getASIN(item);
+				if (AsinCodec.isValid(asin)) {
+					synchronized (asinsLock) {
+						successfulAsins.add(AsinCodec.encode(asin));
+					}
+				}
+				returned.add(asin);
+				items.add(item);
+			} catch (final Exception e) {
+				LOG.error("Error getting items", e);
+			}
+		}
+
+		private void writeItems() {
+			for (final T item : items) {
+				try {
+					write(item);
+				} catch (final Exception e) {
+					LOG.error("Error writing item", e);
+				}
+			}
+			items.clear();
+		}
+	}
+
+	private final class ItemLookUpHandler extends LookUpHandler<Item> {
+		private ItemLookUpHandler(final List<String> asinGroup) {
+			super(asinGroup);
+		}
+
+		@Override
+		protected void lookUp() throws APIResponseException {
+			api.itemLookup(asinGroup, responseGroups, this);
+		}
+
+		@Override
+		protected ListenableFuture<?> lookUpAsync() throws InterruptedException {
+			return api.itemLookupAsync(asinGroup, responseGroups, this);
+		}
+
+		@Override
+		protected String getASIN(final Item item) {
+			final ItemAttributes attributes = item.getItemAttributes();
+			LOG.debug("Got item {} titled {}", item.getASIN(), attributes == null ? null : attributes.getTitle());
+			return item.getASIN();
+		}
+
+		@Override
+		protected void write(final Item item) {
+			outputProcessor.writeItem(item);
+		}
+	}
+
+	/**
+	 * Passes items on as the XML they arrived as, see {@link #setRawItems(boolean)}.
+	 */
+	private final class RawItemLookUpHandler extends LookUpHandler<RawItem> {
+		private RawItemLookUpHandler(final List<String> asinGroup) {
+			super(asinGroup);
+		}
+
+		@Override
+		protected void lookUp() throws APIResponseException {
+			api.itemLookupRaw(asinGroup, responseGroups, this);
+		}
+
+		@Override
+		protected ListenableFuture<?> lookUpAsync() throws InterruptedException {
+			return api.itemLookupRawAsync(asinGroup, responseGroups, this);
+		}
+
+		@Override
+		protected String getASIN(final RawItem item) {
+			LOG.debug("Got item {}", item.getASIN());
+			return item.getASIN();
+		}
+
+		@Override
+		protected void write(final RawItem item) {
+			outputProcessor.writeRawItem(item);
 		}
 	}
 }
@@ -0,0 +1,294 @@
+package com.maxpowered.amazon.advertising.api.app;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * ASINs whose lookup failed and that should be tried again later, kept on disk so they survive restarts.
+ *
+ * Each ASIN remembers how many attempts failed and waits twice as long before each retry, up to a maximum. After too
+ * many failed attempts it is given up on. The file is a journal of "ASIN attempts nextAttemptMillis" lines for failures
+ * and "-ASIN" lines for ASINs that went through or were given up on, forced to disk after each change. It is compacted
+ * when opened and whenever the journal grows much larger than the queue.
+ *
+ * ASINs waiting for their next attempt are also kept ordered by when it is due, so taking the due ones does not scan
+ * the whole queue.
+ */
+public class RetryQueue implements AutoCloseable {
+	private static final Logger LOG = LoggerFactory.getLogger(RetryQueue.class);
+
+	private static final char FIELD_SEPARATOR = '\t';
+	private static final char REMOVED_PREFIX = '-';
+	/**
+	 * The journal is compacted once it has this many lines and is more than 4 times larger than the queue.
+	 */
+	private static final int COMPACT_MIN_LINES = 10000;
+
+	private final File file;
+	private final int maxAttempts;
+	private final long baseBackoffMillis;
+	private final long maxBackoffMillis;
+
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	/**
+	 * The entries not taken, by when their next attempt is due
+	 */
+	private final NavigableSet<Entry> waiting = new TreeSet<Entry>();
+	private FileOutputStream journalOut;
+	private Writer journal;
+	private int journalLines;
+
+	/**
+	 * @param file
+	 *            Where the queue is kept. Loaded if it exists.
+	 * @param maxAttempts
+	 *            Give up on an ASIN after this many failed attempts
+	 * @param baseBackoffMillis
+	 *            Wait before the first retry, doubled for every further one
+	 * @param maxBackoffMillis
+	 *            Longest wait between retries
+	 */
+	public RetryQueue(final File file, final int maxAttempts, final long baseBackoffMillis,
+			final long maxBackoffMillis) throws IOException {
+		this.file = file;
+		this.maxAttempts = maxAttempts;
+		this.baseBackoffMillis = baseBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+
+		if (file.exists()) {
+			load();
+			LOG.info("Got {} ASINs to retry from {}", entries.size(), file);
+		}
+		waiting.addAll(entries.values());
+		compact();
+	}
+
+	/**
+	 * Queue ASINs after a failed attempt.
+	 *
+	 * @return The ASINs that failed too many times and were dropped from the queue
+	 */
+	public synchronized List<String> add(final Collection<String> asins) throws IOException {
+		final List<String> gaveUp = Lists.newArrayList();
+		final long now = System.currentTimeMillis();
+		for (final String asin : asins) {
+			final Entry old = entries.get(asin);
+			if (old != null) {
+				waiting.remove(old);
+			}
+			final int attempts = old == null ? 1 : old.attempts + 1;
+			if (attempts >= maxAttempts) {
+				entries.remove(asin);
+				writeRemoved(asin);
+				gaveUp.add(asin);
+				continue;
+			}
+			final Entry entry = new Entry(asin, attempts, now + backoff(attempts));
+			entries.put(asin, entry);
+			waiting.add(entry);
+			writeEntry(entry);
+		}
+		syncJournal();
+		if (!gaveUp.isEmpty()) {
+			LOG.warn("Giving up on ASINs {} after {} failed attempts", gaveUp, maxAttempts);
+		}
+		compactIfNeeded();
+		return gaveUp;
+	}
+
+	/**
+	 * Take ASINs that are due for another attempt. They stay in the queue, but won't be handed out again until they
+	 * are added (failed again) or removed (went through).
+	 *
+	 * @param max
+	 *            Most ASINs to return
+	 */
+	public synchronized List<String> pollReady(final int max) {
+		final List<String> ready = Lists.newArrayListWithCapacity(max);
+		final long now = System.currentTimeMillis();
+		while (ready.size() < max && !waiting.isEmpty() && waiting.first().nextAttemptMillis <= now) {
+			ready.add(waiting.pollFirst().asin);
+		}
+		return ready;
+	}
+
+	/**
+	 * Drop ASINs that went through. ASINs not in the queue are ignored.
+	 */
+	public synchronized void remove(final Collection<String> asins) throws IOException {
+		boolean removed = false;
+		for (final String asin : asins) {
+			final Entry entry = entries.remove(asin);
+			if (entry != null) {
+				waiting.remove(entry);
+				writeRemoved(asin);
+				removed = true;
+			}
+		}
+		if (removed) {
+			syncJournal();
+			compactIfNeeded();
+		}
+	}
+
+	/**
+	 * @return Milliseconds until the next ASIN is due, 0 if one is due now, or Long.MAX_VALUE if none are waiting
+	 */
+	public synchronized long millisUntilNextReady() {
+		if (waiting.isEmpty()) {
+			return Long.MAX_VALUE;
+		}
+		return Math.max(0, waiting.first().nextAttemptMillis - System.currentTimeMillis());
+	}
+
+	public synchronized boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized boolean contains(final String asin) {
+		return entries.containsKey(asin);
+	}
+
+	/**
+	 * @return A copy of the ASINs in the queue
+	 */
+	public synchronized Set<String> asins() {
+		return Sets.newHashSet(entries.keySet());
+	}
+
+	private long backoff(final int attempts) {
+		final long backoff = baseBackoffMillis << Math.min(attempts - 1, 30);
+		return backoff < 0 ? maxBackoffMillis : Math.min(backoff, maxBackoffMillis);
+	}
+
+	private void writeEntry(final Entry entry) throws IOException {
+		journal.write(entry.asin);
+		journal.write(FIELD_SEPARATOR);
+		journal.write(String.valueOf(entry.attempts));
+		journal.write(FIELD_SEPARATOR);
+		journal.write(String.valueOf(entry.nextAttemptMillis));
+		journal.write(System.lineSeparator());
+		journalLines++;
+	}
+
+	private void writeRemoved(final String asin) throws IOException {
+		journal.write(REMOVED_PREFIX);
+		journal.write(asin);
+		journal.write(System.lineSeparator());
+		journalLines++;
+	}
+
+	private void load() throws IOException {
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+				StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty()) {
+					continue;
+				}
+				if (line.charAt(0) == REMOVED_PREFIX) {
+					entries.remove(line.substring(1));
+					continue;
+				}
+				final String[] fields = line.split(String.valueOf(FIELD_SEPARATOR));
+				try {
+					entries.put(fields[0], new Entry(fields[0], Integer.parseInt(fields[1]), Long.parseLong(fields[2])));
+				} catch (final NumberFormatException | ArrayIndexOutOfBoundsException e) {
+					// Most likely a line cut short by a crash
+					LOG.warn("Ignoring bad line in {}: {}", file, line);
+				}
+			}
+		}
+	}
+
+	private void compactIfNeeded() throws IOException {
+		if (journalLines > COMPACT_MIN_LINES && journalLines > 4 * entries.size()) {
+			compact();
+		}
+	}
+
+	/**
+	 * Rewrite the journal with one line per queued ASIN and reopen it for appending.
+	 */
+	private void compact() throws IOException {
+		if (journal != null) {
+			journal.close();
+		}
+		final File compacted = new File(file.getPath() + ".tmp");
+		openJournal(compacted, false);
+		journalLines = 0;
+		for (final Entry entry : entries.values()) {
+			writeEntry(entry);
+		}
+		syncJournal();
+		journal.close();
+		Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		openJournal(file, true);
+	}
+
+	private void openJournal(final File journalFile, final boolean append) throws IOException {
+		journalOut = new FileOutputStream(journalFile, append);
+		journal = new BufferedWriter(new OutputStreamWriter(journalOut, StandardCharsets.UTF_8));
+	}
+
+	private void syncJournal() throws IOException {
+		journal.flush();
+		journalOut.getFD().sync();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		journal.close();
+	}
+
+	private static final class Entry implements Comparable<Entry> {
+		private final String asin;
+		private final int attempts;
+		private final long nextAttemptMillis;
+
+		private Entry(final String asin, final int attempts, final long nextAttemptMillis) {
+			this.asin = asin;
+			this.attempts = attempts;
+			this.nextAttemptMillis = nextAttemptMillis;
+		}
+
+		/**
+		 * By when the next attempt is due, then by ASIN, as each ASIN has one entry
+		 */
+		@Override
+		public int compareTo(final Entry other) {
+			if (nextAttemptMillis != other.nextAttemptMillis) {
+				return nextAttemptMillis < other.nextAttemptMillis ? -1 : 1;
+			}
+			return asin.compareTo(other.asin);
+		}
+	}
+}
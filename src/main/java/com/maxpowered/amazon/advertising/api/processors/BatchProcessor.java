@@ -0,0 +1,13 @@
+package com.maxpowered.amazon.advertising.api.processors;
+
+import java.util.List;
+
+import com.amazon.webservices.awsecommerceservice._2013_08_01.Item;
+
+/**
+ * A processor that writes several items more cheaply than one at a time, like a database sending them in one
+ * statement. Gets the items that piled up in its queue together, see {@link OutputProcessor#setBatchSize(int)}.
+ */
+public interface BatchProcessor extends Processor {
+	void writeItems(List<Item> items) throws Exception;
+}
@@ -0,0 +1,432 @@
+package com.maxpowered.amazon.advertising.api.processors;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazon.webservices.awsecommerceservice._2013_08_01.Item;
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.maxpowered.amazon.advertising.api.AsinCodec;
+import com.maxpowered.amazon.advertising.api.JAXBPool;
+import com.maxpowered.amazon.advertising.api.RawItem;
+import com.maxpowered.util.BytesOutputStream;
+import com.maxpowered.util.LongHashSet;
+import com.maxpowered.util.LongIterator;
+import com.maxpowered.util.LongLongHashMap;
+
+/**
+ * Tells which items are new or changed since they were last seen, in this run or an earlier one, so that unchanged
+ * items need not be written again, see {@link OutputProcessor#setChangeDetector(ChangeDetector)}.
+ *
+ * Each item is fingerprinted by a 64-bit hash of each child element of the Item element, leaving out ignored ones,
+ * combined in order. The fingerprints are kept in memory by packed ASIN (see {@link AsinCodec}) and saved to a file
+ * when closed, so a crash only means items of that run count as changed again.
+ *
+ * A new fingerprint only counts once the checkpoint commits, see {@link Durable}, so the items it stands for are in
+ * the outputs. Until then it is held back, and if the run ends without committing it, it is not saved and the item is
+ * passed on again next time.
+ *
+ * Raw items are fingerprinted as they arrived and item objects as they are marshalled, which differ in whitespace and
+ * escaping, so fingerprints saved with the other setting of app.rawItems are dropped and every item counts as new once.
+ *
+ * To log which child elements changed, a second 64-bit signature is kept with each fingerprint, only while changes are
+ * logged: each child element's name picks one of its 16 four-bit parts and the element's hash is mixed into it. The
+ * parts that differ point to the elements that changed, as long as no two elements share a part, so the changes logged
+ * are a close guess.
+ */
+public class ChangeDetector implements Durable, AutoCloseable {
+	private static final Logger LOG = LoggerFactory.getLogger(ChangeDetector.class);
+
+	private static final long MAGIC_V1 = 0x46696e6765727031L;
+	private static final long MAGIC = 0x46696e6765727032L;
+	private static final int RAW = 1;
+	private static final int SIGNATURES = 2;
+	private static final String TMP_EXT = ".tmp";
+	private static final HashFunction HASH = Hashing.murmur3_128();
+	private static final int SIGNATURE_PARTS = 16;
+	private static final byte[] ASIN = "ASIN".getBytes(StandardCharsets.UTF_8);
+
+	private boolean enabled = false;
+	private File file;
+	private byte[][] ignoredFields = new byte[0][];
+	private boolean logChanges = false;
+
+	private LongLongHashMap fingerprints;
+	private LongLongHashMap signatures;
+	/**
+	 * Fingerprints and signatures of items passed on since the last commit
+	 */
+	private LongLongHashMap newFingerprints = new LongLongHashMap();
+	private LongLongHashMap newSignatures = new LongLongHashMap();
+	private boolean raw;
+	private final BytesOutputStream buffer = new BytesOutputStream(16384);
+	private long newItems = 0;
+	private long changedItems = 0;
+	private long unchangedItems = 0;
+
+	/**
+	 * @param enabled
+	 *            Detect changes at all. When not, every item counts as changed and nothing is kept.
+	 */
+	public void setEnabled(final boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @param file
+	 *            File the fingerprints are read from, if it exists, and saved to
+	 */
+	public void setFile(final String file) {
+		this.file = new File(file);
+	}
+
+	/**
+	 * @param names
+	 *            Child elements of Item left out of fingerprints, so changes to them alone do not count
+	 */
+	public void setIgnoredFields(final String[] names) {
+		final List<byte[]> ignored = Lists.newArrayList();
+		for (final String name : names) {
+			if (!name.trim().isEmpty()) {
+				ignored.add(name.trim().getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		ignoredFields = ignored.toArray(new byte[ignored.size()][]);
+	}
+
+	/**
+	 * @param logChanges
+	 *            Log which child elements of each changed item changed
+	 */
+	public void setLogChanges(final boolean logChanges) {
+		this.logChanges = logChanges;
+	}
+
+	/**
+	 * @return Whether the item is new or changed since it was last seen. Its fingerprint is updated.
+	 */
+	public synchronized boolean changed(final RawItem item) throws IOException {
+		if (!enabled) {
+			return true;
+		}
+		load(true);
+		buffer.reset();
+		item.writeTo(buffer);
+		return changed(item.getASIN());
+	}
+
+	/**
+	 * @return Whether the item is new or changed since it was last seen. Its fingerprint is updated.
+	 */
+	public boolean changed(final Item item) throws JAXBException, IOException {
+		if (!enabled) {
+			return true;
+		}
+		final Marshaller marshaller = JAXBPool.borrowFragmentMarshaller();
+		try {
+			synchronized (this) {
+				load(false);
+				buffer.reset();
+				marshaller.marshal(item, buffer);
+				return changed(item.getASIN());
+			}
+		} finally {
+			JAXBPool.returnFragmentMarshaller(marshaller);
+		}
+	}
+
+	/**
+	 * Compare the fingerprint of the item XML in the buffer with the ASIN's last one.
+	 */
+	private boolean changed(final String asin) throws IOException {
+		if (asin == null || !AsinCodec.isValid(asin)) {
+			return true;
+		}
+		final Fields fields = new Fields(buffer.bytes(), buffer.size());
+		final long code = AsinCodec.encode(asin);
+		final boolean seenNow = newFingerprints.containsKey(code);
+		final boolean seen = seenNow || fingerprints.containsKey(code);
+		final long fingerprint = fields.fingerprint;
+		if (seen && (seenNow ? newFingerprints : fingerprints).get(code, 0) == fingerprint) {
+			unchangedItems++;
+			return false;
+		}
+		if (seen && logChanges) {
+			final LongLongHashMap oldSignatures = seenNow ? newSignatures : signatures;
+			if (oldSignatures.containsKey(code)) {
+				LOG.info("Item {} changed in {}", asin, fields.changedSince(oldSignatures.get(code, 0)));
+			} else {
+				LOG.info("Item {} changed", asin);
+			}
+		}
+		newFingerprints.put(code, fingerprint);
+		if (logChanges) {
+			newSignatures.put(code, fields.signature);
+		}
+		if (seen) {
+			changedItems++;
+		} else {
+			newItems++;
+		}
+		return true;
+	}
+
+	/**
+	 * Read the fingerprints, the first time an item is compared.
+	 *
+	 * @param raw
+	 *            Whether the items are raw items. Fingerprints saved from the other kind are dropped.
+	 */
+	private void load(final boolean raw) throws IOException {
+		if (fingerprints != null) {
+			return;
+		}
+		this.raw = raw;
+		fingerprints = new LongLongHashMap();
+		signatures = logChanges ? new LongLongHashMap() : null;
+		if (file == null || !file.exists()) {
+			return;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			final long magic = in.readLong();
+			if (magic != MAGIC && magic != MAGIC_V1) {
+				throw new IOException(file + " is not a fingerprint file");
+			}
+			// Version 1 files always have signatures and do not say which kind of item they are from
+			final int flags = magic == MAGIC_V1 ? SIGNATURES | (raw ? RAW : 0) : in.readByte();
+			if (((flags & RAW) != 0) != raw) {
+				final String kind = raw ? "unmarshalled" : "raw";
+				LOG.warn("Fingerprints in {} are of {} items, all items count as new", file, kind);
+				return;
+			}
+			final boolean hasSignatures = (flags & SIGNATURES) != 0;
+			final int count = in.readInt();
+			fingerprints = new LongLongHashMap(count);
+			if (logChanges && hasSignatures) {
+				signatures = new LongLongHashMap(count);
+			}
+			for (int i = 0; i < count; i++) {
+				final long code = in.readLong();
+				fingerprints.put(code, in.readLong());
+				if (hasSignatures) {
+					final long signature = in.readLong();
+					if (logChanges) {
+						signatures.put(code, signature);
+					}
+				}
+			}
+		}
+		LOG.info("Read fingerprints of {} items from {}", fingerprints.size(), file);
+	}
+
+	private void save() throws IOException {
+		final File tmp = new File(file.getPath() + TMP_EXT);
+		try (FileOutputStream fileOut = new FileOutputStream(tmp)) {
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+			out.writeLong(MAGIC);
+			out.writeByte((raw ? RAW : 0) | (signatures != null ? SIGNATURES : 0));
+			out.writeInt(fingerprints.size());
+			for (final LongIterator iter = fingerprints.keyIterator(); iter.hasNext();) {
+				final long code = iter.next();
+				out.writeLong(code);
+				out.writeLong(fingerprints.get(code, 0));
+				if (signatures != null) {
+					out.writeLong(signatures.get(code, 0));
+				}
+			}
+			out.flush();
+			fileOut.getFD().sync();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		LOG.info("Saved fingerprints of {} items to {}", fingerprints.size(), file);
+	}
+
+	@Override
+	public String getCheckpointId() {
+		return "changes";
+	}
+
+	/**
+	 * Count the fingerprints of the items passed on since the last commit, now that the outputs have them. Listed
+	 * after the outputs, so it is only called once they are synced.
+	 *
+	 * @return 0, nothing is cut back
+	 */
+	@Override
+	public synchronized long sync() {
+		if (fingerprints != null) {
+			for (final LongIterator iter = newFingerprints.keyIterator(); iter.hasNext();) {
+				final long code = iter.next();
+				fingerprints.put(code, newFingerprints.get(code, 0));
+				if (signatures != null && newSignatures.containsKey(code)) {
+					signatures.put(code, newSignatures.get(code, 0));
+				}
+			}
+		}
+		newFingerprints = new LongLongHashMap();
+		newSignatures = new LongLongHashMap();
+		return 0;
+	}
+
+	/**
+	 * Nothing to do, fingerprints of a run that crashed are not saved.
+	 */
+	@Override
+	public void recover(final long position) {
+	}
+
+	public synchronized void logStatistics() {
+		if (enabled) {
+			LOG.info("Change detection: {} new items, {} changed, {} unchanged and not written", newItems,
+					changedItems, unchangedItems);
+		}
+	}
+
+	/**
+	 * Save the fingerprints, leaving out those not committed.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (fingerprints != null && file != null) {
+			save();
+		}
+	}
+
+	/**
+	 * The child elements of an Item element, found by counting start and end tags, and their hashes.
+	 */
+	private final class Fields {
+		private final byte[] xml;
+		private final List<int[]> names = Lists.newArrayList();
+		private long fingerprint = 0;
+		private long signature = 0;
+
+		private Fields(final byte[] xml, final int length) {
+			this.xml = xml;
+			int depth = 0;
+			int fieldStart = -1;
+			int nameEnd = -1;
+			for (int i = 0; i < length; i++) {
+				if (xml[i] != '<') {
+					continue;
+				}
+				int tagEnd = i + 1;
+				while (tagEnd < length && xml[tagEnd] != '>') {
+					tagEnd++;
+				}
+				if (tagEnd == length) {
+					break;
+				}
+				if (xml[i + 1] == '/') {
+					depth--;
+					if (depth == 1 && fieldStart >= 0) {
+						addField(fieldStart, nameEnd, tagEnd + 1);
+						fieldStart = -1;
+					}
+				} else if (xml[i + 1] != '?' && xml[i + 1] != '!') {
+					final boolean empty = xml[tagEnd - 1] == '/';
+					if (depth == 1) {
+						fieldStart = i;
+						nameEnd = i + 1;
+						while (nameEnd < tagEnd && xml[nameEnd] != ' ' && xml[nameEnd] != '/') {
+							nameEnd++;
+						}
+						if (empty) {
+							addField(fieldStart, nameEnd, tagEnd + 1);
+							fieldStart = -1;
+						}
+					}
+					if (!empty) {
+						depth++;
+					}
+				}
+				i = tagEnd;
+			}
+			fingerprint = LongHashSet.hash(fingerprint);
+		}
+
+		private void addField(final int start, final int nameEnd, final int end) {
+			// The ASIN is the key the fingerprint is kept under already
+			if (nameIs(start + 1, nameEnd, ASIN)) {
+				return;
+			}
+			for (final byte[] ignored : ignoredFields) {
+				if (nameIs(start + 1, nameEnd, ignored)) {
+					return;
+				}
+			}
+			final long hash = HASH.hashBytes(xml, start, end - start).asLong();
+			fingerprint = fingerprint * 0x9e3779b97f4a7c15L + hash;
+			final int part = part(start + 1, nameEnd);
+			signature ^= (hash & 0xf) << part * 4;
+			names.add(new int[] { start + 1, nameEnd });
+		}
+
+		private boolean nameIs(final int nameStart, final int nameEnd, final byte[] name) {
+			if (nameEnd - nameStart != name.length) {
+				return false;
+			}
+			for (int i = 0; i < name.length; i++) {
+				if (xml[nameStart + i] != name[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * @return The part of the signature the element name picks
+		 */
+		private int part(final int nameStart, final int nameEnd) {
+			long h = 0;
+			for (int i = nameStart; i < nameEnd; i++) {
+				h = h * 31 + xml[i];
+			}
+			return (int) (LongHashSet.hash(h) & SIGNATURE_PARTS - 1);
+		}
+
+		/**
+		 * @return The names of the elements whose parts of the signature differ from an older signature
+		 */
+		private List<String> changedSince(final long oldSignature) {
+			final long differing = oldSignature ^ signature;
+			final List<String> changed = Lists.newArrayList();
+			long explained = 0;
+			for (final int[] name : names) {
+				final long mask = 0xfL << part(name[0], name[1]) * 4;
+				if ((differing & mask) != 0) {
+					changed.add(new String(xml, name[0], name[1] - name[0], StandardCharsets.UTF_8));
+					explained |= mask;
+				}
+			}
+			if ((differing & ~explained) != 0) {
+				changed.add("(removed elements)");
+			}
+			if (changed.isEmpty()) {
+				changed.add("(unknown elements)");
+			}
+			return changed;
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package com.maxpowered.amazon.advertising.api.processors;
+
+import java.io.IOException;
+
+/**
+ * A processor whose output can be forced to disk and cut back to where it was then, so it can be committed together
+ * with the processed ASINs. After a crash, the output is cut back to the last commit and the ASINs written after it
+ * are looked up again, so items are neither lost nor written twice.
+ */
+public interface Durable {
+	/**
+	 * @return What identifies the output across runs, like its file name
+	 */
+	String getCheckpointId();
+
+	/**
+	 * Write out anything buffered and force it to disk.
+	 *
+	 * @return The position to recover to if this run crashes, or -1 if the output can't be recovered
+	 */
+	long sync() throws IOException;
+
+	/**
+	 * Cut back the output of a run that crashed to a position {@link #sync()} returned, before anything else is
+	 * written.
+	 */
+	void recover(long position) throws IOException;
+}
@@ -0,0 +1,13 @@
+package com.maxpowered.amazon.advertising.api.processors;
+
+import java.util.List;
+
+import com.maxpowered.amazon.advertising.api.FlatItem;
+
+/**
+ * A {@link FlatProcessor} that writes several items more cheaply than one at a time, like {@link BatchProcessor} does
+ * with whole items.
+ */
+public interface FlatBatchProcessor extends FlatProcessor {
+	void writeFlatItems(List<FlatItem> items) throws Exception;
+}
@@ -0,0 +1,18 @@
+package com.maxpowered.amazon.advertising.api.processors;
+
+import java.util.List;
+
+import com.maxpowered.amazon.advertising.api.FlatItem;
+
+/**
+ * A processor that only needs the projected fields of items, see {@link OutputProcessor#setProjection(String[])}.
+ * Still gets whole items through {@link #writeItem} when items are not passed on raw.
+ */
+public interface FlatProcessor extends Processor {
+	void writeFlatItem(FlatItem item) throws Exception;
+
+	/**
+	 * @return The paths the processor reads from flat items, which the projection has to include
+	 */
+	List<String> getProjectedPaths();
+}
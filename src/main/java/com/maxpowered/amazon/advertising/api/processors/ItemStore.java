@@ -0,0 +1,610 @@
+package com.maxpowered.amazon.advertising.api.processors;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.transform.stream.StreamSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+import com.amazon.webservices.awsecommerceservice._2013_08_01.Item;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.maxpowered.amazon.advertising.api.AsinCodec;
+import com.maxpowered.amazon.advertising.api.JAXBPool;
+import com.maxpowered.amazon.advertising.api.RawItem;
+
+/**
+ * Keeps the latest XML of each item by ASIN, so items can be read back one at a time without going through the output
+ * files, and so later runs can tell cheaply which ASINs it has.
+ *
+ * Items are deflated and appended as records to segment files in a directory, and a new segment is started once the
+ * current one is big enough. An {@link ItemStoreIndex} maps each ASIN to its latest record, so a read is one probe of
+ * the mapped index and one read of the record. Writing an item again leaves its old record behind, and a background
+ * thread rewrites finished segments that are mostly such old records with just their live ones.
+ *
+ * Each record is the length of the deflated XML, the length of the XML, the packed ASIN (see {@link AsinCodec}), a
+ * CRC-32 of the deflated XML and the deflated XML. After a crash, the index is rebuilt from the records and a record
+ * the crash cut short is dropped. Items written again after a crash just replace their records, so nothing needs
+ * cutting back, see {@link Durable}. The store is opened when first used. Thread safe.
+ */
+public class ItemStore implements RawProcessor, Durable, AutoCloseable {
+	private static final Logger LOG = LoggerFactory.getLogger(ItemStore.class);
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_EXT = ".dat";
+	private static final String INDEX_FILE = "index.bin";
+	private static final String TMP_EXT = ".tmp";
+	private static final int RECORD_HEADER_BYTES = 20;
+	/**
+	 * Locations hold the segment number above these bits and the offset in it below.
+	 */
+	private static final int SEGMENT_SHIFT = 32;
+	private static final long CLOSE_TIMEOUT_MINUTES = 10;
+
+	private final File dir;
+	private long segmentBytes = 256 << 20;
+	private double compactRatio = 0.5;
+
+	private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private final Inflater inflater = new Inflater();
+	private final ByteArrayOutputStream xmlBuffer = new ByteArrayOutputStream(16384);
+	private byte[] deflateBuffer = new byte[16384];
+	private ItemStoreIndex index;
+	private Segment active;
+	private ExecutorService compactor;
+	private boolean compacting = false;
+	private boolean closed = false;
+
+	@Autowired
+	ItemStore(@Value("${app.itemStore}") final String dir) {
+		this.dir = new File(dir).getAbsoluteFile();
+	}
+
+	/**
+	 * @param segmentBytes
+	 *            Start a new segment once the current one is this big, at most 2GB
+	 */
+	public void setSegmentBytes(final long segmentBytes) {
+		if (segmentBytes <= 0 || segmentBytes > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("segmentBytes must be between 1 and " + Integer.MAX_VALUE);
+		}
+		this.segmentBytes = segmentBytes;
+	}
+
+	/**
+	 * @param compactRatio
+	 *            Rewrite finished segments once less than this fraction of them is the latest records of their items
+	 */
+	public void setCompactRatio(final double compactRatio) {
+		this.compactRatio = compactRatio;
+	}
+
+	@Override
+	public void writeItem(final Item item) throws JAXBException, IOException {
+		final Marshaller marshaller = JAXBPool.borrowFragmentMarshaller();
+		try {
+			synchronized (this) {
+				xmlBuffer.reset();
+				marshaller.marshal(item, xmlBuffer);
+				write(item.getASIN());
+			}
+		} finally {
+			JAXBPool.returnFragmentMarshaller(marshaller);
+		}
+	}
+
+	@Override
+	public synchronized void writeRawItem(final RawItem item) throws IOException {
+		xmlBuffer.reset();
+		item.writeTo(xmlBuffer);
+		write(item.getASIN());
+	}
+
+	/**
+	 * Append the XML in the buffer as the latest record of the ASIN.
+	 */
+	private void write(final String asin) throws IOException {
+		if (asin == null || !AsinCodec.isValid(asin)) {
+			LOG.warn("Not storing item with ASIN {}", asin);
+			return;
+		}
+		open();
+		final long code = AsinCodec.encode(asin);
+		final byte[] xml = xmlBuffer.toByteArray();
+		final int deflatedLength = deflate(xml);
+		final int recordBytes = RECORD_HEADER_BYTES + deflatedLength;
+		if (active.size > 0 && active.size + recordBytes > segmentBytes) {
+			roll();
+		}
+
+		final ByteBuffer record = ByteBuffer.allocate(recordBytes);
+		record.putInt(deflatedLength).putInt(xml.length).putLong(code).putInt(crc(deflateBuffer, deflatedLength));
+		record.put(deflateBuffer, 0, deflatedLength);
+		record.flip();
+		final long offset = active.size;
+		while (record.hasRemaining()) {
+			active.channel.write(record, offset + record.position());
+		}
+		active.size += recordBytes;
+		active.liveBytes += recordBytes;
+
+		final int slot = index.find(code);
+		if (slot >= 0) {
+			segment(index.locationAt(slot)).liveBytes -= RECORD_HEADER_BYTES + index.lengthAt(slot);
+		}
+		index.put(code, location(active.number, offset), deflatedLength);
+	}
+
+	/**
+	 * @return Whether the store has an item with the ASIN
+	 */
+	public synchronized boolean contains(final String asin) throws IOException {
+		open();
+		return AsinCodec.isValid(asin) && index.find(AsinCodec.encode(asin)) >= 0;
+	}
+
+	/**
+	 * @return The latest XML of the item with the ASIN, with the API namespace declared on it, or null if there is none
+	 */
+	public synchronized byte[] get(final String asin) throws IOException {
+		open();
+		return AsinCodec.isValid(asin) ? get(AsinCodec.encode(asin)) : null;
+	}
+
+	/**
+	 * @return The latest item with the ASIN, or null if there is none
+	 */
+	public Item getItem(final String asin) throws IOException, JAXBException {
+		final byte[] xml = get(asin);
+		if (xml == null) {
+			return null;
+		}
+		final Unmarshaller unmarshaller = JAXBPool.borrowUnmarshaller();
+		try {
+			return unmarshaller.unmarshal(new StreamSource(new ByteArrayInputStream(xml)), Item.class).getValue();
+		} finally {
+			JAXBPool.returnUnmarshaller(unmarshaller);
+		}
+	}
+
+	/**
+	 * @return The latest XML of every item in the store when this is called, in no particular order
+	 */
+	public Iterator<byte[]> scan() throws IOException {
+		final long[] codes;
+		synchronized (this) {
+			open();
+			codes = new long[index.size()];
+			int count = 0;
+			for (int slot = 0; slot < index.slots(); slot++) {
+				if (index.asinAt(slot) != AsinCodec.EMPTY) {
+					codes[count++] = index.asinAt(slot);
+				}
+			}
+		}
+		return new AbstractIterator<byte[]>() {
+			private int next = 0;
+
+			@Override
+			protected byte[] computeNext() {
+				try {
+					while (next < codes.length) {
+						final byte[] xml;
+						synchronized (ItemStore.this) {
+							xml = get(codes[next++]);
+						}
+						if (xml != null) {
+							return xml;
+						}
+					}
+					return endOfData();
+				} catch (final IOException e) {
+					throw new IllegalStateException("Error reading item store " + dir, e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return The number of items in the store
+	 */
+	public synchronized int size() throws IOException {
+		open();
+		return index.size();
+	}
+
+	private byte[] get(final long code) throws IOException {
+		final int slot = index.find(code);
+		if (slot < 0) {
+			return null;
+		}
+		final long location = index.locationAt(slot);
+		final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + index.lengthAt(slot));
+		read(segment(location).channel, record, offset(location));
+		final int deflatedLength = record.getInt(0);
+		final int xmlLength = record.getInt(4);
+		if (record.getLong(8) != code || crc(record.array(), RECORD_HEADER_BYTES, deflatedLength) != record.getInt(16)) {
+			throw new IOException("Corrupt record for " + AsinCodec.decode(code) + " in " + segment(location).file);
+		}
+		final byte[] xml = new byte[xmlLength];
+		inflater.reset();
+		inflater.setInput(record.array(), RECORD_HEADER_BYTES, deflatedLength);
+		try {
+			if (inflater.inflate(xml) != xmlLength) {
+				throw new IOException("Short record for " + AsinCodec.decode(code) + " in " + segment(location).file);
+			}
+		} catch (final DataFormatException e) {
+			throw new IOException("Corrupt record for " + AsinCodec.decode(code) + " in " + segment(location).file, e);
+		}
+		return xml;
+	}
+
+	/**
+	 * @return The length of the XML deflated into {@link #deflateBuffer}
+	 */
+	private int deflate(final byte[] xml) {
+		deflater.reset();
+		deflater.setInput(xml);
+		deflater.finish();
+		int length = 0;
+		while (!deflater.finished()) {
+			if (length == deflateBuffer.length) {
+				deflateBuffer = Arrays.copyOf(deflateBuffer, deflateBuffer.length * 2);
+			}
+			length += deflater.deflate(deflateBuffer, length, deflateBuffer.length - length);
+		}
+		return length;
+	}
+
+	/**
+	 * Open the segments and the index, rebuilding the index if the store was not closed cleanly.
+	 */
+	private void open() throws IOException {
+		if (index != null) {
+			return;
+		}
+		if (closed) {
+			throw new IllegalStateException("Item store " + dir + " is closed");
+		}
+		Files.createDirectories(dir.toPath());
+		for (final File file : dir.listFiles()) {
+			final String name = file.getName();
+			if (name.endsWith(TMP_EXT)) {
+				Files.delete(file.toPath());
+			} else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_EXT)) {
+				final int number = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length()
+						- SEGMENT_EXT.length()));
+				segments.put(number, new Segment(number, file));
+			}
+		}
+
+		index = new ItemStoreIndex(new File(dir, INDEX_FILE));
+		if (!index.wasClean() && !segments.isEmpty()) {
+			rebuild();
+		}
+		for (int slot = 0; slot < index.slots(); slot++) {
+			if (index.asinAt(slot) != AsinCodec.EMPTY) {
+				segment(index.locationAt(slot)).liveBytes += RECORD_HEADER_BYTES + index.lengthAt(slot);
+			}
+		}
+		active = segments.isEmpty() ? newSegment(1) : segments.lastEntry().getValue();
+		LOG.info("Opened item store {} with {} items in {} segments", dir, index.size(), segments.size());
+		compactLater();
+	}
+
+	/**
+	 * Index the records of every segment, in the order they were written, and cut off a record a crash cut short.
+	 */
+	private void rebuild() throws IOException {
+		LOG.info("Rebuilding the index of item store {}, it was not closed cleanly", dir);
+		index.clear();
+		final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+		for (final Segment segment : segments.values()) {
+			long offset = 0;
+			while (offset + RECORD_HEADER_BYTES <= segment.size) {
+				header.clear();
+				read(segment.channel, header, offset);
+				final int deflatedLength = header.getInt(0);
+				final long end = offset + RECORD_HEADER_BYTES + deflatedLength;
+				if (deflatedLength < 0 || end > segment.size || header.getLong(8) == AsinCodec.EMPTY) {
+					break;
+				}
+				if (segment.number == segments.lastKey()) {
+					// Only the last segment can have been cut short
+					final ByteBuffer deflated = ByteBuffer.allocate(deflatedLength);
+					read(segment.channel, deflated, offset + RECORD_HEADER_BYTES);
+					if (crc(deflated.array(), 0, deflatedLength) != header.getInt(16)) {
+						break;
+					}
+				}
+				index.put(header.getLong(8), location(segment.number, offset), deflatedLength);
+				offset = end;
+			}
+			if (offset < segment.size) {
+				LOG.warn("Cutting {} bytes of unreadable records from {}", segment.size - offset, segment.file);
+				segment.channel.truncate(offset);
+				segment.size = offset;
+			}
+		}
+	}
+
+	/**
+	 * Finish the current segment and start the next.
+	 */
+	private void roll() throws IOException {
+		active.channel.force(false);
+		active = newSegment(active.number + 1);
+		compactLater();
+	}
+
+	private Segment newSegment(final int number) throws IOException {
+		final Segment segment = new Segment(number, new File(dir, String.format("%s%010d%s", SEGMENT_PREFIX, number,
+				SEGMENT_EXT)));
+		segments.put(number, segment);
+		LOG.debug("Started segment {}", segment.file);
+		return segment;
+	}
+
+	/**
+	 * Compact finished segments on the background thread, unless it is at it already.
+	 */
+	private void compactLater() {
+		if (compacting || closed || compactionCandidate() == null) {
+			return;
+		}
+		if (compactor == null) {
+			compactor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true)
+					.setNameFormat("item-store-compaction").build());
+		}
+		compacting = true;
+		compactor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Segment segment;
+					while ((segment = nextCompaction()) != null) {
+						compact(segment);
+					}
+				} catch (final IOException e) {
+					LOG.error("Error compacting item store {}", dir, e);
+				} finally {
+					synchronized (ItemStore.this) {
+						compacting = false;
+					}
+				}
+			}
+		});
+	}
+
+	private synchronized Segment nextCompaction() {
+		return closed ? null : compactionCandidate();
+	}
+
+	/**
+	 * @return A finished segment mostly of old records, or null if there is none
+	 */
+	private Segment compactionCandidate() {
+		for (final Segment segment : segments.values()) {
+			if (segment != active && segment.liveBytes < segment.size * compactRatio) {
+				return segment;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Rewrite a finished segment with just its latest records, and point the index at their new places. The copying is
+	 * done without holding the store, the segment does not change while it is finished.
+	 */
+	private void compact(final Segment segment) throws IOException {
+		final long startBytes = segment.size;
+		final File tmp = new File(segment.file.getPath() + TMP_EXT);
+		final List<long[]> moves = Lists.newArrayList();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+				FileOutputStream fileOut = new FileOutputStream(tmp)) {
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+			long offset = 0;
+			long newOffset = 0;
+			while (offset < startBytes) {
+				final int deflatedLength = in.readInt();
+				final int xmlLength = in.readInt();
+				final long code = in.readLong();
+				final int crc = in.readInt();
+				final byte[] deflated = new byte[deflatedLength];
+				in.readFully(deflated);
+				if (isLatest(code, location(segment.number, offset))) {
+					out.writeInt(deflatedLength);
+					out.writeInt(xmlLength);
+					out.writeLong(code);
+					out.writeInt(crc);
+					out.write(deflated);
+					moves.add(new long[] { code, location(segment.number, offset), location(segment.number, newOffset),
+							deflatedLength });
+					newOffset += RECORD_HEADER_BYTES + deflatedLength;
+				}
+				offset += RECORD_HEADER_BYTES + deflatedLength;
+			}
+			out.flush();
+			fileOut.getFD().sync();
+		} catch (final EOFException e) {
+			Files.deleteIfExists(tmp.toPath());
+			throw new IOException("Segment " + segment.file + " ends in the middle of a record", e);
+		}
+
+		synchronized (this) {
+			if (closed) {
+				Files.delete(tmp.toPath());
+				return;
+			}
+			segment.channel.close();
+			long liveBytes = 0;
+			if (moves.isEmpty()) {
+				segments.remove(segment.number);
+				Files.delete(tmp.toPath());
+				Files.delete(segment.file.toPath());
+			} else {
+				Files.move(tmp.toPath(), segment.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				segment.open();
+				for (final long[] move : moves) {
+					// Items written again while copying keep their newer records
+					final int slot = index.find(move[0]);
+					if (slot >= 0 && index.locationAt(slot) == move[1]) {
+						index.setLocation(slot, move[2], (int) move[3]);
+						liveBytes += RECORD_HEADER_BYTES + move[3];
+					}
+				}
+			}
+			segment.liveBytes = liveBytes;
+			LOG.debug("Compacted {} from {} to {} bytes", segment.file, startBytes, segment.size);
+		}
+	}
+
+	private synchronized boolean isLatest(final long code, final long location) {
+		final int slot = index.find(code);
+		return slot >= 0 && index.locationAt(slot) == location;
+	}
+
+	private Segment segment(final long location) throws IOException {
+		final Segment segment = segments.get((int) (location >>> SEGMENT_SHIFT));
+		if (segment == null) {
+			throw new IOException("Item store index points to missing segment " + (location >>> SEGMENT_SHIFT));
+		}
+		return segment;
+	}
+
+	private static long location(final int segment, final long offset) {
+		return (long) segment << SEGMENT_SHIFT | offset;
+	}
+
+	private static long offset(final long location) {
+		return location & (1L << SEGMENT_SHIFT) - 1;
+	}
+
+	private static void read(final FileChannel channel, final ByteBuffer buffer, final long position)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException("Record past the end of the segment");
+			}
+		}
+	}
+
+	private static int crc(final byte[] bytes, final int length) {
+		return crc(bytes, 0, length);
+	}
+
+	private static int crc(final byte[] bytes, final int offset, final int length) {
+		final CRC32 crc = new CRC32();
+		crc.update(bytes, offset, length);
+		return (int) crc.getValue();
+	}
+
+	@Override
+	public String getCheckpointId() {
+		return dir.getPath();
+	}
+
+	/**
+	 * Force the current segment to disk. The index is rebuilt from the records after a crash.
+	 *
+	 * @return 0, the store is never cut back
+	 */
+	@Override
+	public synchronized long sync() throws IOException {
+		open();
+		active.channel.force(false);
+		return 0;
+	}
+
+	/**
+	 * Nothing to do, items written after the checkpoint replace their records when they are written again.
+	 */
+	@Override
+	public void recover(final long position) {
+	}
+
+	/**
+	 * Wait for compaction to stop, then force the segments and the index to disk.
+	 */
+	@Override
+	public void close() throws IOException, InterruptedException {
+		synchronized (this) {
+			closed = true;
+		}
+		if (compactor != null) {
+			compactor.shutdown();
+			compactor.awaitTermination(CLOSE_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+		}
+		synchronized (this) {
+			if (index == null) {
+				return;
+			}
+			active.channel.force(false);
+			index.close();
+			for (final Segment segment : segments.values()) {
+				segment.channel.close();
+			}
+			LOG.info("Closed item store {} with {} items in {} segments", dir, index.size(), segments.size());
+			index = null;
+			segments.clear();
+		}
+	}
+
+	/**
+	 * A segment file, and how many of its bytes are the latest records of their items.
+	 */
+	private static final class Segment {
+		private final int number;
+		private final File file;
+		private FileChannel channel;
+		private long size;
+		private long liveBytes = 0;
+
+		private Segment(final int number, final File file) throws IOException {
+			this.number = number;
+			this.file = file;
+			open();
+		}
+
+		private void open() throws IOException {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			size = channel.size();
+		}
+	}
+}
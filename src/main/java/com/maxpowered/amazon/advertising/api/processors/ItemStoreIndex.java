@@ -0,0 +1,211 @@
+package com.maxpowered.amazon.advertising.api.processors;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import com.maxpowered.amazon.advertising.api.AsinCodec;
+import com.maxpowered.util.LongHashSet;
+import com.maxpowered.util.Utils;
+
+/**
+ * The index of an {@link ItemStore}, a hash table in a memory-mapped file from packed ASIN (see {@link AsinCodec}) to
+ * where the ASIN's latest record is and how long it is. Slots are probed linearly, and once half of them are taken the
+ * table is copied into a new file twice the size, which then replaces the old one.
+ *
+ * The header holds whether the index was closed cleanly. It is only forced to disk when it is closed, so after a crash
+ * it has to be rebuilt from the records. Not thread safe.
+ */
+class ItemStoreIndex implements AutoCloseable {
+	private static final long MAGIC = 0x4974656d49647831L;
+	private static final int MAGIC_OFFSET = 0;
+	private static final int SLOTS_OFFSET = 8;
+	private static final int SIZE_OFFSET = 12;
+	private static final int CLEAN_OFFSET = 16;
+	private static final int HEADER_BYTES = 32;
+	/**
+	 * Each slot is the ASIN, its location and the length of its record, then padding.
+	 */
+	private static final int SLOT_BYTES = 24;
+	private static final int LOCATION_OFFSET = 8;
+	private static final int LENGTH_OFFSET = 16;
+	private static final int MIN_SLOTS = 1 << 10;
+	/**
+	 * The most slots one buffer can map.
+	 */
+	private static final int MAX_SLOTS = Integer.highestOneBit((Integer.MAX_VALUE - HEADER_BYTES) / SLOT_BYTES);
+	private static final String TMP_EXT = ".tmp";
+
+	private final File file;
+	private final boolean wasClean;
+	private MappedByteBuffer buffer;
+	private int mask;
+	private int size;
+
+	/**
+	 * Open the index, or start an empty one if the file does not exist or is not an index.
+	 */
+	ItemStoreIndex(final File file) throws IOException {
+		this.file = file;
+		if (file.exists()) {
+			buffer = map(file, file.length());
+		}
+		if (buffer != null && buffer.capacity() >= HEADER_BYTES && buffer.getLong(MAGIC_OFFSET) == MAGIC
+				&& buffer.capacity() == bytesFor(buffer.getInt(SLOTS_OFFSET))) {
+			mask = buffer.getInt(SLOTS_OFFSET) - 1;
+			size = buffer.getInt(SIZE_OFFSET);
+			wasClean = buffer.getInt(CLEAN_OFFSET) != 0;
+		} else {
+			wasClean = false;
+			clear();
+		}
+		// Until it is closed, a crash leaves the index out of date
+		buffer.putInt(CLEAN_OFFSET, 0);
+		buffer.force();
+	}
+
+	/**
+	 * @return Whether the index was closed cleanly last time, so it is up to date with the records
+	 */
+	boolean wasClean() {
+		return wasClean;
+	}
+
+	/**
+	 * @return The slot holding the ASIN, or -1 if it is not in the index
+	 */
+	int find(final long asin) {
+		for (int slot = slotFor(asin);; slot = slot + 1 & mask) {
+			final long slotAsin = asinAt(slot);
+			if (slotAsin == asin) {
+				return slot;
+			} else if (slotAsin == AsinCodec.EMPTY) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Set where the ASIN's latest record is.
+	 */
+	void put(final long asin, final long location, final int length) throws IOException {
+		if (asin == AsinCodec.EMPTY) {
+			throw new IllegalArgumentException("Can't index an empty ASIN");
+		}
+		if ((size + 1) * 2L > mask + 1) {
+			grow();
+		}
+		int slot = slotFor(asin);
+		while (asinAt(slot) != AsinCodec.EMPTY && asinAt(slot) != asin) {
+			slot = slot + 1 & mask;
+		}
+		if (asinAt(slot) == AsinCodec.EMPTY) {
+			buffer.putLong(offset(slot), asin);
+			size++;
+			buffer.putInt(SIZE_OFFSET, size);
+		}
+		setLocation(slot, location, length);
+	}
+
+	void setLocation(final int slot, final long location, final int length) {
+		buffer.putLong(offset(slot) + LOCATION_OFFSET, location);
+		buffer.putInt(offset(slot) + LENGTH_OFFSET, length);
+	}
+
+	/**
+	 * @return The number of slots, for going through the ASINs in them
+	 */
+	int slots() {
+		return mask + 1;
+	}
+
+	/**
+	 * @return The ASIN in the slot, or {@link AsinCodec#EMPTY}
+	 */
+	long asinAt(final int slot) {
+		return buffer.getLong(offset(slot));
+	}
+
+	long locationAt(final int slot) {
+		return buffer.getLong(offset(slot) + LOCATION_OFFSET);
+	}
+
+	int lengthAt(final int slot) {
+		return buffer.getInt(offset(slot) + LENGTH_OFFSET);
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Empty the index, for rebuilding it.
+	 */
+	void clear() throws IOException {
+		replace(MIN_SLOTS);
+	}
+
+	private void grow() throws IOException {
+		if (mask + 1 == MAX_SLOTS) {
+			throw new IllegalStateException("Item store index can't hold more than " + MAX_SLOTS / 2 + " items");
+		}
+		final MappedByteBuffer old = buffer;
+		final int oldSlots = mask + 1;
+		replace(oldSlots * 2);
+		for (int slot = 0; slot < oldSlots; slot++) {
+			final long asin = old.getLong(offset(slot));
+			if (asin != AsinCodec.EMPTY) {
+				put(asin, old.getLong(offset(slot) + LOCATION_OFFSET), old.getInt(offset(slot) + LENGTH_OFFSET));
+			}
+		}
+	}
+
+	/**
+	 * Map a new empty table in place of the old one. It is made in a file of its own and moved over the old one, so the
+	 * old one stays whole until it is replaced.
+	 */
+	private void replace(final int slots) throws IOException {
+		final File tmp = new File(file.getPath() + TMP_EXT);
+		Files.deleteIfExists(tmp.toPath());
+		buffer = map(tmp, bytesFor(slots));
+		buffer.putLong(MAGIC_OFFSET, MAGIC);
+		buffer.putInt(SLOTS_OFFSET, slots);
+		buffer.putInt(SIZE_OFFSET, 0);
+		mask = slots - 1;
+		size = 0;
+		buffer.force();
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private int slotFor(final long asin) {
+		return (int) LongHashSet.hash(asin) & mask;
+	}
+
+	private static int offset(final int slot) {
+		return HEADER_BYTES + slot * SLOT_BYTES;
+	}
+
+	private static long bytesFor(final int slots) {
+		return HEADER_BYTES + (long) slots * SLOT_BYTES;
+	}
+
+	private static MappedByteBuffer map(final File file, final long bytes) throws IOException {
+		if (bytes > Integer.MAX_VALUE) {
+			return null;
+		}
+		return Utils.map(file, MapMode.READ_WRITE, bytes);
+	}
+
+	/**
+	 * Force the index to disk and mark it as up to date with the records.
+	 */
+	@Override
+	public void close() {
+		buffer.force();
+		buffer.putInt(CLEAN_OFFSET, 1);
+		buffer.force();
+	}
+}
@@ -0,0 +1,71 @@
+package com.maxpowered.amazon.advertising.api.processors;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+import com.amazon.webservices.awsecommerceservice._2013_08_01.Item;
+import com.google.common.collect.Lists;
+import com.maxpowered.amazon.advertising.api.ItemJsonWriter;
+import com.maxpowered.amazon.advertising.api.JAXBPool;
+import com.maxpowered.amazon.advertising.api.Projection;
+import com.maxpowered.amazon.advertising.api.RawItem;
+import com.maxpowered.util.BytesOutputStream;
+
+/**
+ * Writes items as JSON, one item per line, to files, see {@link RollingOutputProcessor}, or to a stream. Every line
+ * stands on its own, so files can be split anywhere between lines.
+ *
+ * Raw items are turned into JSON straight from their XML, see {@link ItemJsonWriter}. Item objects are marshalled to
+ * XML first.
+ */
+public class JsonLinesProcessor extends RollingOutputProcessor implements RawProcessor {
+	private static final byte[] NONE = new byte[0];
+
+	private ItemJsonWriter writer = new ItemJsonWriter(null);
+	private final BytesOutputStream marshalled = new BytesOutputStream(16384);
+
+	@Autowired
+	JsonLinesProcessor(@Value("${app.json.output}") final String outputFile) {
+		super(outputFile, NONE, NONE);
+	}
+
+	@Override
+	public void writeItem(final Item item) throws JAXBException, IOException {
+		final Marshaller marshaller = JAXBPool.borrowFragmentMarshaller();
+		try {
+			marshalled.reset();
+			marshaller.marshal(item, marshalled);
+		} finally {
+			JAXBPool.returnFragmentMarshaller(marshaller);
+		}
+		writer.writeLine(marshalled.bytes(), 0, marshalled.size(), start());
+		itemWritten();
+	}
+
+	@Override
+	public void writeRawItem(final RawItem item) throws JAXBException, IOException {
+		item.writeJsonTo(writer, start());
+		itemWritten();
+	}
+
+	/**
+	 * @param paths
+	 *            The element paths written, relative to the Item element, each with everything in it. None to write
+	 *            whole items.
+	 */
+	public void setFields(final String[] paths) {
+		final List<String> fields = Lists.newArrayList();
+		for (final String path : paths) {
+			if (!path.trim().isEmpty()) {
+				fields.add(path);
+			}
+		}
+		writer = new ItemJsonWriter(fields.isEmpty() ? null : new Projection(fields));
+	}
+}
@@ -1,17 +1,480 @@
 package com.maxpowered.amazon.advertising.api.processors;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.SQLDataException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.amazon.webservices.awsecommerceservice._2013_08_01.Image;
 import com.amazon.webservices.awsecommerceservice._2013_08_01.Item;
+import com.amazon.webservices.awsecommerceservice._2013_08_01.Price;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.maxpowered.amazon.advertising.api.FlatItem;
+import com.maxpowered.amazon.advertising.api.Projection;
+import com.maxpowered.util.Utils;
 
-public class MySqlProcessor implements Processor {
+/**
+ * Writes items to a MySQL database, into the tables of schema.sql, through a pooled {@link DataSource}. Items are
+ * upserted, so writing an item again just updates its rows.
+ *
+ * Rows are held back and written together, with multi-row INSERT ... ON DUPLICATE KEY UPDATE statements in one
+ * transaction, once enough are waiting or the oldest has waited long enough, and before each checkpoint. Nothing needs
+ * cutting back after a crash, the ASINs written after the last checkpoint are looked up and upserted again.
+ *
+ * Rows the database refuses for their values (SQLState class 22, like a title too long for its column) are written
+ * again in halves, down to single rows, and a row refused on its own is logged and dropped. Rows that fail for other
+ * reasons, like a lost connection, are kept and tried again with the next ones, up to a limit.
+ *
+ * Statements are prepared for a full batch of rows and for each power of two below it, and the rest of a batch is
+ * written with those, so a pool that keeps prepared statements (like DBCP's poolPreparedStatements) reuses a handful.
+ */
+public class MySqlProcessor implements FlatBatchProcessor, BatchProcessor, Durable, AutoCloseable {
 	private static final Logger LOG = LoggerFactory.getLogger(MySqlProcessor.class);
 
+	private static final String SCHEMA_RESOURCE = "schema.sql";
+	private static final String SMALL = "Small";
+	private static final String MEDIUM = "Medium";
+	private static final String LARGE = "Large";
+
+	private static final Upsert ITEMS = new Upsert("items", new String[] { "asin", "title", "price_amount",
+			"price_currency", "price_formatted", "updated" }, new int[] { Types.VARCHAR, Types.VARCHAR, Types.BIGINT,
+			Types.VARCHAR, Types.VARCHAR, Types.TIMESTAMP }, 1);
+	private static final Upsert IMAGES = new Upsert("item_images", new String[] { "asin", "size", "url" }, new int[] {
+			Types.VARCHAR, Types.VARCHAR, Types.VARCHAR }, 2);
+
+	private DataSource dataSource;
+	private int batchRows = 500;
+	private int maxPendingRows = 100000;
+	private long flushMillis = 1000;
+	private boolean createSchema = true;
+
+	/**
+	 * Rows waiting to be written, by ASIN, so an item written twice before a flush is only sent once.
+	 */
+	private final Map<String, Row> pending = Maps.newLinkedHashMap();
+	private long oldestMillis;
+	private boolean schemaChecked = false;
+	private ScheduledExecutorService timer;
+	private long rowsWritten = 0;
+	private long rowsDropped = 0;
+	private long flushes = 0;
+
+	public void setDataSource(final DataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+
+	/**
+	 * @param batchRows
+	 *            Most rows sent in one statement, and rows waiting before they are written
+	 */
+	public void setBatchRows(final int batchRows) {
+		if (batchRows < 1) {
+			throw new IllegalArgumentException("batchRows must be at least 1");
+		}
+		this.batchRows = batchRows;
+	}
+
+	/**
+	 * @param maxPendingRows
+	 *            Most rows kept waiting while the database fails, after which writing more fails
+	 */
+	public void setMaxPendingRows(final int maxPendingRows) {
+		this.maxPendingRows = maxPendingRows;
+	}
+
+	/**
+	 * @param flushMillis
+	 *            Longest a row waits before it is written
+	 */
+	public void setFlushMillis(final long flushMillis) {
+		this.flushMillis = flushMillis;
+	}
+
+	/**
+	 * @param createSchema
+	 *            Create the tables of schema.sql that are missing before writing the first rows
+	 */
+	public void setCreateSchema(final boolean createSchema) {
+		this.createSchema = createSchema;
+	}
+
+	@Override
+	public void writeItem(final Item item) throws SQLException, IOException {
+		add(toRow(item));
+	}
+
+	@Override
+	public void writeItems(final List<Item> items) throws SQLException, IOException {
+		synchronized (this) {
+			for (final Item item : items) {
+				addRow(toRow(item));
+			}
+			flushIfFull();
+		}
+	}
+
+	@Override
+	public void writeFlatItem(final FlatItem item) throws SQLException, IOException {
+		add(toRow(item));
+	}
+
+	/**
+	 * @return Every path of the default projection, which the rows are made of. Without one, its column would be
+	 *         upserted as NULL over the value already in the database.
+	 */
+	@Override
+	public List<String> getProjectedPaths() {
+		return Projection.DEFAULT.getPaths();
+	}
+
+	@Override
+	public void writeFlatItems(final List<FlatItem> items) throws SQLException, IOException {
+		synchronized (this) {
+			for (final FlatItem item : items) {
+				addRow(toRow(item));
+			}
+			flushIfFull();
+		}
+	}
+
+	private synchronized void add(final Row row) throws SQLException, IOException {
+		addRow(row);
+		flushIfFull();
+	}
+
+	private void addRow(final Row row) throws IOException {
+		if (row.asin == null) {
+			LOG.warn("Not writing item without an ASIN to the database");
+			return;
+		}
+		if (pending.size() >= maxPendingRows && !pending.containsKey(row.asin)) {
+			throw new IOException(pending.size() + " rows are waiting for the database already, not taking item "
+					+ row.asin);
+		}
+		if (pending.isEmpty()) {
+			oldestMillis = System.currentTimeMillis();
+			startTimer();
+		}
+		pending.put(row.asin, row);
+	}
+
+	private void flushIfFull() throws SQLException, IOException {
+		if (pending.size() >= batchRows) {
+			flush();
+		}
+	}
+
+	private void startTimer() {
+		if (timer != null || flushMillis <= 0) {
+			return;
+		}
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+				.setNameFormat("mysql-flush").build());
+		timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					synchronized (MySqlProcessor.this) {
+						if (!pending.isEmpty() && System.currentTimeMillis() - oldestMillis >= flushMillis) {
+							flush();
+						}
+					}
+				} catch (final SQLException | IOException e) {
+					LOG.error("Error writing {} rows to the database, keeping them to try again", pending.size(), e);
+				}
+			}
+		}, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Write the waiting rows, in one transaction unless the database refuses some of their values. Rows that fail for
+	 * other reasons are kept for the next flush.
+	 */
+	public synchronized void flush() throws SQLException, IOException {
+		if (pending.isEmpty()) {
+			return;
+		}
+		final List<Row> rows = Lists.newArrayList(pending.values());
+		final long start = System.nanoTime();
+		try (Connection connection = dataSource.getConnection()) {
+			if (createSchema && !schemaChecked) {
+				createSchema(connection);
+				schemaChecked = true;
+			}
+			write(connection, rows);
+		}
+		LOG.debug("Wrote {} items to the database in {} ms", rows.size(), (System.nanoTime() - start) / 1000000);
+		flushes++;
+	}
+
+	/**
+	 * Write rows in one transaction, or if the database refuses values of some, each half in turn. A row refused on its
+	 * own is dropped.
+	 */
+	private void write(final Connection connection, final List<Row> rows) throws SQLException {
+		try {
+			writeTransaction(connection, rows);
+		} catch (final SQLException e) {
+			if (!isDataException(e)) {
+				throw e;
+			}
+			if (rows.size() == 1) {
+				LOG.error("Dropping item {}, the database refuses its values", rows.get(0).asin, e);
+				pending.remove(rows.get(0).asin);
+				rowsDropped++;
+				return;
+			}
+			LOG.debug("The database refuses values of some of {} items, writing them in halves", rows.size());
+			write(connection, rows.subList(0, rows.size() / 2));
+			write(connection, rows.subList(rows.size() / 2, rows.size()));
+		}
+	}
+
+	private void writeTransaction(final Connection connection, final List<Row> rows) throws SQLException {
+		final List<Object[]> itemRows = Lists.newArrayListWithCapacity(rows.size());
+		final List<Object[]> imageRows = Lists.newArrayList();
+		for (final Row row : rows) {
+			itemRows.add(new Object[] { row.asin, row.title, row.priceAmount, row.priceCurrency, row.priceFormatted,
+					new Timestamp(row.millis) });
+			addImage(imageRows, row.asin, SMALL, row.smallImageUrl);
+			addImage(imageRows, row.asin, MEDIUM, row.mediumImageUrl);
+			addImage(imageRows, row.asin, LARGE, row.largeImageUrl);
+		}
+		connection.setAutoCommit(false);
+		try {
+			final int statements = ITEMS.execute(connection, itemRows, batchRows)
+					+ IMAGES.execute(connection, imageRows, batchRows);
+			connection.commit();
+			LOG.trace("Wrote {} items and {} images in {} statements", itemRows.size(), imageRows.size(), statements);
+		} catch (final SQLException e) {
+			connection.rollback();
+			throw e;
+		} finally {
+			connection.setAutoCommit(true);
+		}
+		for (final Row row : rows) {
+			pending.remove(row.asin);
+		}
+		rowsWritten += rows.size();
+	}
+
+	/**
+	 * @return Whether the database refused a value, SQLState class 22, so writing the same row again fails again
+	 */
+	private static boolean isDataException(final SQLException e) {
+		return e instanceof SQLDataException || e.getSQLState() != null && e.getSQLState().startsWith("22");
+	}
+
+	private static void addImage(final List<Object[]> imageRows, final String asin, final String size,
+			final String url) {
+		if (url != null) {
+			imageRows.add(new Object[] { asin, size, url });
+		}
+	}
+
+	private static void createSchema(final Connection connection) throws SQLException, IOException {
+		final String schema;
+		try (InputStream in = MySqlProcessor.class.getClassLoader().getResourceAsStream(SCHEMA_RESOURCE)) {
+			if (in == null) {
+				throw new IOException("Missing " + SCHEMA_RESOURCE + " on the class path");
+			}
+			schema = IOUtils.toString(in, "UTF-8");
+		}
+		try (Statement statement = connection.createStatement()) {
+			for (final String sql : schema.replaceAll("(?m)^--.*$", "").split(";")) {
+				if (!sql.trim().isEmpty()) {
+					statement.execute(sql);
+				}
+			}
+		}
+	}
+
+	private static Row toRow(final Item item) {
+		final Row row = new Row(item.getASIN());
+		if (item.getItemAttributes() != null) {
+			row.title = item.getItemAttributes().getTitle();
+		}
+		row.setPrice(Utils.getPrice(item));
+		row.smallImageUrl = url(item.getSmallImage());
+		row.mediumImageUrl = url(item.getMediumImage());
+		row.largeImageUrl = url(item.getLargeImage());
+		return row;
+	}
+
+	private static Row toRow(final FlatItem item) {
+		final Row row = new Row(item.getASIN());
+		row.title = item.get(Projection.TITLE);
+		row.setPrice(Utils.getPrice(item));
+		row.smallImageUrl = item.get(Projection.SMALL_IMAGE_URL);
+		row.mediumImageUrl = item.get(Projection.MEDIUM_IMAGE_URL);
+		row.largeImageUrl = item.get(Projection.LARGE_IMAGE_URL);
+		return row;
+	}
+
+	private static String url(final Image image) {
+		return image == null ? null : image.getURL();
+	}
+
+	@Override
+	public String getCheckpointId() {
+		return "mysql";
+	}
+
+	/**
+	 * Write the waiting rows, so the ASINs committed with them have them in the database.
+	 *
+	 * @return 0, the database is never cut back
+	 */
+	@Override
+	public long sync() throws IOException {
+		try {
+			flush();
+		} catch (final SQLException e) {
+			throw new IOException("Error writing rows to the database", e);
+		}
+		return 0;
+	}
+
+	/**
+	 * Nothing to do, rows written after the checkpoint are upserted again.
+	 */
+	@Override
+	public void recover(final long position) {
+	}
+
+	/**
+	 * Write the rows still waiting.
+	 */
 	@Override
-	public void writeItem(final Item item) {
-		// TODO Auto-generated method stub
-		LOG.info("MySQLProcessor logging item: {}", item);
+	public synchronized void close() throws SQLException, IOException {
+		if (timer != null) {
+			timer.shutdown();
+		}
+		flush();
+		LOG.info("Wrote {} items to the database in {} flushes, dropped {} it refused", rowsWritten, flushes,
+				rowsDropped);
+	}
+
+	/**
+	 * The columns of one item, taken from an {@link Item} or a {@link FlatItem}.
+	 */
+	private static final class Row {
+		private final String asin;
+		private final long millis = System.currentTimeMillis();
+		private String title;
+		private Long priceAmount;
+		private String priceCurrency;
+		private String priceFormatted;
+		private String smallImageUrl;
+		private String mediumImageUrl;
+		private String largeImageUrl;
+
+		private Row(final String asin) {
+			this.asin = asin;
+		}
+
+		private void setPrice(final Price price) {
+			if (price != null) {
+				priceAmount = price.getAmount() == null ? null : price.getAmount().longValue();
+				priceCurrency = price.getCurrencyCode();
+				priceFormatted = price.getFormattedPrice();
+			}
+		}
 	}
 
+	/**
+	 * A multi-row upsert into one table. The statement for each number of rows is built once.
+	 */
+	private static final class Upsert {
+		private final String insert;
+		private final String update;
+		private final String valuesRow;
+		private final int[] types;
+		private final Map<Integer, String> sqlByRows = Maps.newHashMap();
+
+		/**
+		 * @param keyColumns
+		 *            How many of the first columns are the primary key, the others are updated
+		 */
+		private Upsert(final String table, final String[] columns, final int[] types, final int keyColumns) {
+			this.types = types;
+			insert = "INSERT INTO " + table + " (" + Joiner.on(", ").join(columns) + ") VALUES ";
+			final List<String> updates = Lists.newArrayList();
+			for (int i = keyColumns; i < columns.length; i++) {
+				updates.add(columns[i] + " = VALUES(" + columns[i] + ")");
+			}
+			update = " ON DUPLICATE KEY UPDATE " + Joiner.on(", ").join(updates);
+			final List<String> placeholders = Lists.newArrayList();
+			for (int i = 0; i < columns.length; i++) {
+				placeholders.add("?");
+			}
+			valuesRow = "(" + Joiner.on(", ").join(placeholders) + ")";
+		}
+
+		/**
+		 * Write rows in statements of batchRows rows, then of the powers of two that add up to the rest.
+		 *
+		 * @return The number of statements run
+		 */
+		private int execute(final Connection connection, final List<Object[]> rows, final int batchRows)
+				throws SQLException {
+			int statements = 0;
+			int from = 0;
+			while (from < rows.size()) {
+				final int remaining = rows.size() - from;
+				final int count = remaining >= batchRows ? batchRows : Integer.highestOneBit(remaining);
+				try (PreparedStatement statement = connection.prepareStatement(sql(count))) {
+					int parameter = 1;
+					for (final Object[] row : rows.subList(from, from + count)) {
+						for (int i = 0; i < row.length; i++) {
+							if (row[i] == null) {
+								statement.setNull(parameter++, types[i]);
+							} else {
+								statement.setObject(parameter++, row[i], types[i]);
+							}
+						}
+					}
+					statement.executeUpdate();
+				}
+				statements++;
+				from += count;
+			}
+			return statements;
+		}
+
+		private synchronized String sql(final int rows) {
+			String sql = sqlByRows.get(rows);
+			if (sql == null) {
+				final StringBuilder sb = new StringBuilder(insert);
+				for (int i = 0; i < rows; i++) {
+					if (i > 0) {
+						sb.append(", ");
+					}
+					sb.append(valuesRow);
+				}
+				sql = sb.append(update).toString();
+				sqlByRows.put(rows, sql);
+			}
+			return sql;
+		}
+	}
 }
@@ -1,20 +1,135 @@
 package com.maxpowered.amazon.advertising.api.processors;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.amazon.webservices.awsecommerceservice._2013_08_01.Item;
 import com.google.common.collect.Lists;
+import com.maxpowered.amazon.advertising.api.FlatItem;
+import com.maxpowered.amazon.advertising.api.Projection;
+import com.maxpowered.amazon.advertising.api.RawItem;
 
-public class OutputProcessor implements Processor {
+/**
+ * Hands every item to each of the configured processors. Raw items are passed on as is to processors that take them,
+ * parsed into the projected fields (once) for processors that only need those, and unmarshalled (once) for the others.
+ *
+ * When asynchronous, each processor gets its own queue and thread, see {@link ProcessorQueue}, so a slow processor
+ * only holds up fetching once its queue is full. With a {@link ChangeDetector}, items that have not changed since they
+ * were last seen are not passed on at all. Not safe to call from several threads at once.
+ */
+public class OutputProcessor implements RawProcessor, AutoCloseable {
 	private static final Logger LOG = LoggerFactory.getLogger(OutputProcessor.class);
 
 	public List<Processor> processors;
+	private Projection projection = Projection.DEFAULT;
+	private boolean async = false;
+	private int queueSize = 1000;
+	private int batchSize = 100;
+	private ChangeDetector changeDetector;
+	private final Map<Processor, ProcessorQueue> queues = new IdentityHashMap<Processor, ProcessorQueue>();
+	/**
+	 * The first error reading an item for each processor, or writing it when not asynchronous. The queues keep their
+	 * own errors.
+	 */
+	private final Map<Processor, Exception> failures = new IdentityHashMap<Processor, Exception>();
 
 	public void setProcessors(final List<Processor> processors) {
 		this.processors = processors;
+		checkProjection();
+	}
+
+	/**
+	 * @param paths
+	 *            The element paths {@link FlatProcessor}s get, relative to the Item element
+	 */
+	public void setProjection(final String[] paths) {
+		projection = new Projection(paths);
+		checkProjection();
+	}
+
+	/**
+	 * Fail at startup, instead of writing items without fields, if the projection lacks paths a
+	 * {@link FlatProcessor} reads.
+	 */
+	private void checkProjection() {
+		if (processors == null) {
+			return;
+		}
+		for (final Processor processor : processors) {
+			if (processor instanceof FlatProcessor) {
+				final List<String> missing = Lists.newArrayList();
+				for (final String path : ((FlatProcessor) processor).getProjectedPaths()) {
+					if (projection.indexOf(path) < 0) {
+						missing.add(path);
+					}
+				}
+				if (!missing.isEmpty()) {
+					throw new IllegalArgumentException("The projection (app.projection) lacks paths "
+							+ processor.getClass().getSimpleName() + " reads: " + missing);
+				}
+			}
+		}
+	}
+
+	public Projection getProjection() {
+		return projection;
+	}
+
+	/**
+	 * @param async
+	 *            Write to each processor on a thread of its own
+	 */
+	public void setAsync(final boolean async) {
+		this.async = async;
+	}
+
+	/**
+	 * @param queueSize
+	 *            Items waiting for an asynchronous processor before adding more waits
+	 */
+	public void setQueueSize(final int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	/**
+	 * @param batchSize
+	 *            Most items given to a {@link BatchProcessor} or a {@link FlatBatchProcessor} at once
+	 */
+	public void setBatchSize(final int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @param changeDetector
+	 *            Decides which items are new or changed and passed on, or null to pass on every item
+	 */
+	public void setChangeDetector(final ChangeDetector changeDetector) {
+		this.changeDetector = changeDetector;
+	}
+
+	/**
+	 * @return The processors that can be committed along with the processed ASINs, then the change detector, which
+	 *         counts items as seen once they are committed
+	 */
+	public List<Durable> getDurables() {
+		final List<Durable> durables = Lists.newArrayList();
+		if (processors != null) {
+			for (final Processor processor : processors) {
+				if (processor instanceof Durable) {
+					durables.add(new CheckedDurable(processor, async ? queueFor(processor) : null));
+				}
+			}
+		}
+		if (changeDetector != null && changeDetector.isEnabled()) {
+			durables.add(changeDetector);
+		}
+		return durables;
 	}
 
 	public void addProcessor(final Processor processor) {
@@ -22,16 +137,169 @@ public class OutputProcessor implements Processor {
 			processors = Lists.newArrayList();
 		}
 		processors.add(processor);
+		checkProjection();
 	}
 
 	@Override
 	public void writeItem(final Item item) {
+		try {
+			if (changeDetector != null && !changeDetector.changed(item)) {
+				return;
+			}
+		} catch (final Exception e) {
+			LOG.error("Error detecting changes to item {}, passing it on", item.getASIN(), e);
+		}
+		for (final Processor processor : processors) {
+			dispatch(processor, item);
+		}
+	}
+
+	@Override
+	public void writeRawItem(final RawItem item) {
+		try {
+			if (changeDetector != null && !changeDetector.changed(item)) {
+				return;
+			}
+		} catch (final IOException e) {
+			LOG.error("Error detecting changes to item {}, passing it on", item.getASIN(), e);
+		}
 		for (final Processor processor : processors) {
 			try {
-				processor.writeItem(item);
+				if (processor instanceof FlatProcessor) {
+					dispatch(processor, item.getFlatItem(projection));
+				} else if (processor instanceof RawProcessor) {
+					dispatch(processor, item);
+				} else {
+					dispatch(processor, item.getItem());
+				}
 			} catch (final Exception e) {
-				LOG.error("Error writing to processor: {}", processor, e);
+				LOG.error("Error reading item for processor: {}", processor, e);
+				failed(processor, e);
 			}
 		}
 	}
+
+	/**
+	 * Write the item to the processor, or queue it if asynchronous.
+	 */
+	private void dispatch(final Processor processor, final Object item) {
+		try {
+			if (async) {
+				queueFor(processor).put(item);
+			} else {
+				write(processor, item);
+			}
+		} catch (final InterruptedException e) {
+			LOG.error("Interrupted queueing item for processor: {}", processor, e);
+			Thread.currentThread().interrupt();
+		} catch (final Exception e) {
+			LOG.error("Error writing to processor: {}", processor, e);
+			if (!async) {
+				failed(processor, e);
+			}
+		}
+	}
+
+	private synchronized void failed(final Processor processor, final Exception e) {
+		if (!failures.containsKey(processor)) {
+			failures.put(processor, e);
+		}
+	}
+
+	private synchronized Exception failureOf(final Processor processor) {
+		return failures.get(processor);
+	}
+
+	/**
+	 * Write an item to a processor by the method for what it is.
+	 */
+	static void write(final Processor processor, final Object item) throws Exception {
+		if (item instanceof FlatItem) {
+			((FlatProcessor) processor).writeFlatItem((FlatItem) item);
+		} else if (item instanceof RawItem) {
+			((RawProcessor) processor).writeRawItem((RawItem) item);
+		} else {
+			processor.writeItem((Item) item);
+		}
+	}
+
+	private synchronized ProcessorQueue queueFor(final Processor processor) {
+		ProcessorQueue queue = queues.get(processor);
+		if (queue == null) {
+			queue = new ProcessorQueue(processor, queueSize, batchSize);
+			queues.put(processor, queue);
+		}
+		return queue;
+	}
+
+	public synchronized void logStatistics() {
+		if (changeDetector != null) {
+			changeDetector.logStatistics();
+		}
+		for (final ProcessorQueue queue : queues.values()) {
+			LOG.info("{}: wrote {} items in {} batches, {} queued (at most {}), {} ms from queueing to written on "
+					+ "average, {} ms at most", queue.getProcessor().getClass().getSimpleName(), queue.getWritten(),
+					queue.getBatches(), queue.getDepth(), queue.getMaxDepth(),
+					String.format("%.1f", queue.getAverageLatencyMillis()),
+					String.format("%.1f", queue.getMaxLatencyMillis()));
+		}
+	}
+
+	/**
+	 * Write the items still queued and stop the processor threads.
+	 */
+	@Override
+	public synchronized void close() throws InterruptedException {
+		for (final ProcessorQueue queue : queues.values()) {
+			queue.close();
+		}
+		queues.clear();
+	}
+
+	/**
+	 * Syncs a processor once the items queued for it are written, and fails if writing any item to it failed, so the
+	 * ASINs of items it never got are not committed.
+	 */
+	private final class CheckedDurable implements Durable {
+		private final Processor processor;
+		private final Durable durable;
+		private final ProcessorQueue queue;
+
+		/**
+		 * @param queue
+		 *            The processor's queue, or null when not asynchronous
+		 */
+		private CheckedDurable(final Processor processor, final ProcessorQueue queue) {
+			this.processor = processor;
+			durable = (Durable) processor;
+			this.queue = queue;
+		}
+
+		@Override
+		public String getCheckpointId() {
+			return durable.getCheckpointId();
+		}
+
+		@Override
+		public long sync() throws IOException {
+			if (queue != null) {
+				try {
+					queue.awaitEmpty();
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted waiting for queued items to be written");
+				}
+			}
+			final Exception failure = failureOf(processor);
+			if (failure != null) {
+				throw new IOException("Error passing items to processor " + processor, failure);
+			}
+			return durable.sync();
+		}
+
+		@Override
+		public void recover(final long position) throws IOException {
+			durable.recover(position);
+		}
+	}
 }
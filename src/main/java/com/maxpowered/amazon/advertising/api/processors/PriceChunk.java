@@ -0,0 +1,289 @@
+package com.maxpowered.amazon.advertising.api.processors;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+import com.maxpowered.amazon.advertising.api.AsinCodec;
+import com.maxpowered.amazon.advertising.api.processors.PriceHistoryStore.PricePoint;
+import com.maxpowered.util.Utils;
+
+/**
+ * A memory-mapped file of price points in columns, see {@link PriceHistoryStore}. The rows are sorted by ASIN, and by
+ * time for each ASIN, so the history of one ASIN is a binary search away.
+ *
+ * After a header come the dictionaries, the currencies and the amounts, then the columns: the packed ASINs (see
+ * {@link AsinCodec}), the times as seconds after the chunk's first time, and for the list price, the lowest new price
+ * and the currency, the index of the value in its dictionary. Amount indexes take 2 bytes when there are few enough
+ * amounts and 4 otherwise. Index 0 means there is no value. Immutable once written.
+ */
+class PriceChunk {
+	private static final long MAGIC = 0x5072696365437831L;
+	private static final int HEADER_BYTES = 40;
+	/**
+	 * Stands for a missing amount in {@link Rows}.
+	 */
+	static final long NO_AMOUNT = Long.MIN_VALUE;
+
+	private final File file;
+	private final MappedByteBuffer buffer;
+	private final int rows;
+	private final int amountWidth;
+	private final long minTime;
+	private final long maxTime;
+	private final String[] currencies;
+	private final long[] amounts;
+	private final int asinOffset;
+	private final int timeOffset;
+	private final int listPriceOffset;
+	private final int lowestNewPriceOffset;
+	private final int currencyOffset;
+
+	PriceChunk(final File file) throws IOException {
+		this.file = file;
+		buffer = Utils.map(file, MapMode.READ_ONLY, file.length());
+		if (buffer.capacity() < HEADER_BYTES || buffer.getLong(0) != MAGIC) {
+			throw new IOException(file + " is not a price chunk");
+		}
+		rows = buffer.getInt(8);
+		amountWidth = buffer.getInt(12);
+		minTime = buffer.getLong(16);
+		maxTime = buffer.getLong(24);
+		currencies = new String[buffer.getInt(32) + 1];
+		amounts = new long[buffer.getInt(36) + 1];
+
+		int offset = HEADER_BYTES;
+		for (int i = 1; i < currencies.length; i++) {
+			final byte[] bytes = new byte[buffer.getShort(offset)];
+			offset += 2;
+			for (int j = 0; j < bytes.length; j++) {
+				bytes[j] = buffer.get(offset++);
+			}
+			currencies[i] = new String(bytes, StandardCharsets.UTF_8);
+		}
+		for (int i = 1; i < amounts.length; i++) {
+			amounts[i] = buffer.getLong(offset);
+			offset += 8;
+		}
+		asinOffset = offset;
+		timeOffset = asinOffset + rows * 8;
+		listPriceOffset = timeOffset + rows * 4;
+		lowestNewPriceOffset = listPriceOffset + rows * amountWidth;
+		currencyOffset = lowestNewPriceOffset + rows * amountWidth;
+		if (currencyOffset + rows > buffer.capacity()) {
+			throw new IOException(file + " is shorter than its " + rows + " rows");
+		}
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	int rows() {
+		return rows;
+	}
+
+	/**
+	 * Add the points of an ASIN, oldest first.
+	 */
+	void history(final long asin, final List<PricePoint> points) {
+		int low = 0;
+		int high = rows;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (asinAt(mid) < asin) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		for (int row = low; row < rows && asinAt(row) == asin; row++) {
+			points.add(point(row));
+		}
+	}
+
+	/**
+	 * Add the points from a time up to but not including another, in seconds.
+	 */
+	void scan(final long fromTime, final long toTime, final List<PricePoint> points) {
+		if (maxTime < fromTime || minTime >= toTime) {
+			return;
+		}
+		for (int row = 0; row < rows; row++) {
+			final long time = timeAt(row);
+			if (time >= fromTime && time < toTime) {
+				points.add(point(row));
+			}
+		}
+	}
+
+	private long asinAt(final int row) {
+		return buffer.getLong(asinOffset + row * 8);
+	}
+
+	private long timeAt(final int row) {
+		return minTime + (buffer.getInt(timeOffset + row * 4) & 0xffffffffL);
+	}
+
+	private long amountAt(final int columnOffset, final int row) {
+		final int index = amountWidth == 2 ? buffer.getShort(columnOffset + row * 2) & 0xffff : buffer
+				.getInt(columnOffset + row * 4);
+		return index == 0 ? NO_AMOUNT : amounts[index];
+	}
+
+	private PricePoint point(final int row) {
+		return new PricePoint(AsinCodec.decode(asinAt(row)), timeAt(row), amountAt(listPriceOffset, row), amountAt(
+				lowestNewPriceOffset, row), currencies[buffer.get(currencyOffset + row) & 0xff]);
+	}
+
+	/**
+	 * Write rows to a new chunk file and force it to disk.
+	 */
+	static void write(final File file, final Rows rows) throws IOException {
+		final Integer[] order = new Integer[rows.size];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		// Stable, so each ASIN's rows stay in the order they were added
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(final Integer a, final Integer b) {
+				return Long.compare(rows.asins[a], rows.asins[b]);
+			}
+		});
+
+		long minTime = Long.MAX_VALUE;
+		long maxTime = Long.MIN_VALUE;
+		final Map<String, Integer> currencyIndexes = Maps.newLinkedHashMap();
+		final Map<Long, Integer> amountIndexes = Maps.newLinkedHashMap();
+		for (int i = 0; i < rows.size; i++) {
+			minTime = Math.min(minTime, rows.times[i]);
+			maxTime = Math.max(maxTime, rows.times[i]);
+			if (rows.currencies[i] != null && !currencyIndexes.containsKey(rows.currencies[i])) {
+				currencyIndexes.put(rows.currencies[i], currencyIndexes.size() + 1);
+			}
+			addAmount(amountIndexes, rows.listPrices[i]);
+			addAmount(amountIndexes, rows.lowestNewPrices[i]);
+		}
+		if (currencyIndexes.size() > 255) {
+			throw new IOException("Too many currencies for one price chunk: " + currencyIndexes.size());
+		}
+		if (maxTime - minTime > 0xffffffffL) {
+			throw new IOException("Price points too far apart for one price chunk");
+		}
+		final int amountWidth = amountIndexes.size() < 0xffff ? 2 : 4;
+
+		try (FileOutputStream fileOut = new FileOutputStream(file)) {
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16));
+			out.writeLong(MAGIC);
+			out.writeInt(rows.size);
+			out.writeInt(amountWidth);
+			out.writeLong(minTime);
+			out.writeLong(maxTime);
+			out.writeInt(currencyIndexes.size());
+			out.writeInt(amountIndexes.size());
+			for (final String currency : currencyIndexes.keySet()) {
+				final byte[] bytes = currency.getBytes(StandardCharsets.UTF_8);
+				out.writeShort(bytes.length);
+				out.write(bytes);
+			}
+			for (final long amount : amountIndexes.keySet()) {
+				out.writeLong(amount);
+			}
+			for (final int row : order) {
+				out.writeLong(rows.asins[row]);
+			}
+			for (final int row : order) {
+				out.writeInt((int) (rows.times[row] - minTime));
+			}
+			for (final long[] column : Arrays.asList(rows.listPrices, rows.lowestNewPrices)) {
+				for (final int row : order) {
+					final int index = column[row] == NO_AMOUNT ? 0 : amountIndexes.get(column[row]);
+					if (amountWidth == 2) {
+						out.writeShort(index);
+					} else {
+						out.writeInt(index);
+					}
+				}
+			}
+			for (final int row : order) {
+				out.writeByte(rows.currencies[row] == null ? 0 : currencyIndexes.get(rows.currencies[row]));
+			}
+			out.flush();
+			fileOut.getFD().sync();
+		}
+	}
+
+	/**
+	 * Give the amount the next index, starting at 1, unless it has one already or is missing.
+	 */
+	private static void addAmount(final Map<Long, Integer> indexes, final long amount) {
+		if (amount != NO_AMOUNT && !indexes.containsKey(amount)) {
+			indexes.put(amount, indexes.size() + 1);
+		}
+	}
+
+	/**
+	 * Price points in memory, one array per column, in the order they were added.
+	 */
+	static final class Rows {
+		private long[] asins = new long[1024];
+		private long[] times = new long[1024];
+		private long[] listPrices = new long[1024];
+		private long[] lowestNewPrices = new long[1024];
+		private String[] currencies = new String[1024];
+		private int size = 0;
+
+		void add(final long asin, final long time, final long listPrice, final long lowestNewPrice,
+				final String currency) {
+			if (size == asins.length) {
+				asins = Arrays.copyOf(asins, size * 2);
+				times = Arrays.copyOf(times, size * 2);
+				listPrices = Arrays.copyOf(listPrices, size * 2);
+				lowestNewPrices = Arrays.copyOf(lowestNewPrices, size * 2);
+				currencies = Arrays.copyOf(currencies, size * 2);
+			}
+			asins[size] = asin;
+			times[size] = time;
+			listPrices[size] = listPrice;
+			lowestNewPrices[size] = lowestNewPrice;
+			currencies[size] = currency;
+			size++;
+		}
+
+		int size() {
+			return size;
+		}
+
+		void history(final long asin, final List<PricePoint> points) {
+			for (int row = 0; row < size; row++) {
+				if (asins[row] == asin) {
+					points.add(point(row));
+				}
+			}
+		}
+
+		void scan(final long fromTime, final long toTime, final List<PricePoint> points) {
+			for (int row = 0; row < size; row++) {
+				if (times[row] >= fromTime && times[row] < toTime) {
+					points.add(point(row));
+				}
+			}
+		}
+
+		private PricePoint point(final int row) {
+			return new PricePoint(AsinCodec.decode(asins[row]), times[row], listPrices[row], lowestNewPrices[row],
+					currencies[row]);
+		}
+	}
+}
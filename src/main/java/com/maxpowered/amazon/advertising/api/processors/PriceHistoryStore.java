@@ -0,0 +1,373 @@
+package com.maxpowered.amazon.advertising.api.processors;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+import com.amazon.webservices.awsecommerceservice._2013_08_01.Item;
+import com.amazon.webservices.awsecommerceservice._2013_08_01.Price;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import com.maxpowered.amazon.advertising.api.AsinCodec;
+import com.maxpowered.amazon.advertising.api.FlatItem;
+import com.maxpowered.amazon.advertising.api.Projection;
+import com.maxpowered.util.Utils;
+
+/**
+ * Records the list price and lowest new price of every item written, with the time, so the prices of an item over time
+ * can be read back without going through old output files.
+ *
+ * New points go to a journal and are kept in memory. Once there are enough of them they are sorted and written out as
+ * a {@link PriceChunk}, a memory-mapped file of columns, and the journal starts over. The history of an ASIN is a
+ * binary search in each chunk, and scanning a time range skips chunks outside it. Each journal is named after the chunk
+ * it becomes, so one whose chunk was written before a crash is dropped rather than read again.
+ *
+ * A price seen twice is just two points in the history, so nothing needs cutting back after a crash, see
+ * {@link Durable}. The store is opened when first used. Thread safe.
+ */
+public class PriceHistoryStore implements FlatProcessor, Durable, AutoCloseable {
+	private static final Logger LOG = LoggerFactory.getLogger(PriceHistoryStore.class);
+	private static final List<String> PROJECTED_PATHS = Arrays.asList(Projection.LIST_PRICE + Projection.AMOUNT,
+			Projection.LIST_PRICE + Projection.CURRENCY_CODE, Projection.LOWEST_NEW_PRICE + Projection.AMOUNT,
+			Projection.LOWEST_NEW_PRICE + Projection.CURRENCY_CODE);
+
+	private static final String CHUNK_PREFIX = "chunk-";
+	private static final String JOURNAL_PREFIX = "journal-";
+	private static final String EXT = ".bin";
+	private static final String TMP_EXT = ".tmp";
+
+	private final File dir;
+	private int chunkRows = 1 << 20;
+
+	private final TreeMap<Integer, PriceChunk> chunks = new TreeMap<Integer, PriceChunk>();
+	private PriceChunk.Rows journalRows;
+	private int journalNumber;
+	private FileOutputStream journalFileOut;
+	private DataOutputStream journalOut;
+	private boolean closed = false;
+
+	@Autowired
+	PriceHistoryStore(@Value("${app.priceHistory}") final String dir) {
+		this.dir = new File(dir).getAbsoluteFile();
+	}
+
+	/**
+	 * @param chunkRows
+	 *            Points kept in the journal before they are written out as a chunk
+	 */
+	public void setChunkRows(final int chunkRows) {
+		this.chunkRows = chunkRows;
+	}
+
+	@Override
+	public void writeItem(final Item item) throws IOException {
+		add(item.getASIN(), Utils.getListPrice(item), Utils.getLowestNewPrice(item));
+	}
+
+	@Override
+	public void writeFlatItem(final FlatItem item) throws IOException {
+		add(item.getASIN(), Utils.getListPrice(item), Utils.getLowestNewPrice(item));
+	}
+
+	/**
+	 * @return The amounts and currencies of the list price and the lowest new price
+	 */
+	@Override
+	public List<String> getProjectedPaths() {
+		return PROJECTED_PATHS;
+	}
+
+	private synchronized void add(final String asin, final Price listPrice, final Price lowestNewPrice)
+			throws IOException {
+		if (asin == null || !AsinCodec.isValid(asin)) {
+			LOG.warn("Not recording prices of item with ASIN {}", asin);
+			return;
+		}
+		open();
+		final long code = AsinCodec.encode(asin);
+		final long time = System.currentTimeMillis() / 1000;
+		final long listAmount = amount(listPrice);
+		final long lowestNewAmount = amount(lowestNewPrice);
+		String currency = listPrice == null ? null : listPrice.getCurrencyCode();
+		if (currency == null && lowestNewPrice != null) {
+			currency = lowestNewPrice.getCurrencyCode();
+		}
+
+		journalOut.writeLong(code);
+		journalOut.writeLong(time);
+		journalOut.writeLong(listAmount);
+		journalOut.writeLong(lowestNewAmount);
+		journalOut.writeUTF(currency == null ? "" : currency);
+		journalRows.add(code, time, listAmount, lowestNewAmount, currency);
+		if (journalRows.size() >= chunkRows) {
+			writeChunk();
+		}
+	}
+
+	private static long amount(final Price price) {
+		return price == null || price.getAmount() == null ? PriceChunk.NO_AMOUNT : price.getAmount().longValue();
+	}
+
+	/**
+	 * @return Every point of the ASIN, oldest first
+	 */
+	public synchronized List<PricePoint> history(final String asin) throws IOException {
+		open();
+		final List<PricePoint> points = Lists.newArrayList();
+		if (AsinCodec.isValid(asin)) {
+			final long code = AsinCodec.encode(asin);
+			for (final PriceChunk chunk : chunks.values()) {
+				chunk.history(code, points);
+			}
+			journalRows.history(code, points);
+		}
+		return points;
+	}
+
+	/**
+	 * @param fromMillis
+	 *            Time of the first points included
+	 * @param toMillis
+	 *            Time of the first points after them, not included
+	 * @return The points in a time range, a chunk at a time, in each by ASIN and then by time
+	 */
+	public Iterator<PricePoint> scan(final long fromMillis, final long toMillis) throws IOException {
+		final long fromTime = fromMillis / 1000;
+		final long toTime = (toMillis + 999) / 1000;
+		final List<PriceChunk> scanned;
+		final List<PricePoint> journalPoints = Lists.newArrayList();
+		synchronized (this) {
+			open();
+			scanned = Lists.newArrayList(chunks.values());
+			journalRows.scan(fromTime, toTime, journalPoints);
+		}
+		return new AbstractIterator<PricePoint>() {
+			private final Iterator<PriceChunk> chunkIter = scanned.iterator();
+			private Iterator<PricePoint> points = journalPoints.iterator();
+
+			@Override
+			protected PricePoint computeNext() {
+				while (!points.hasNext()) {
+					if (!chunkIter.hasNext()) {
+						return endOfData();
+					}
+					final List<PricePoint> chunkPoints = Lists.newArrayList();
+					chunkIter.next().scan(fromTime, toTime, chunkPoints);
+					points = chunkPoints.iterator();
+				}
+				return points.next();
+			}
+		};
+	}
+
+	/**
+	 * Map the chunks, drop journals already written out as chunks and read the current one.
+	 */
+	private void open() throws IOException {
+		if (journalRows != null) {
+			return;
+		}
+		if (closed) {
+			throw new IllegalStateException("Price history " + dir + " is closed");
+		}
+		Files.createDirectories(dir.toPath());
+		for (final File file : dir.listFiles()) {
+			final String name = file.getName();
+			if (name.endsWith(TMP_EXT)) {
+				Files.delete(file.toPath());
+			} else if (name.startsWith(CHUNK_PREFIX) && name.endsWith(EXT)) {
+				chunks.put(number(name, CHUNK_PREFIX), new PriceChunk(file));
+			}
+		}
+		journalNumber = chunks.isEmpty() ? 1 : chunks.lastKey() + 1;
+		for (final File file : dir.listFiles()) {
+			final String name = file.getName();
+			if (name.startsWith(JOURNAL_PREFIX) && name.endsWith(EXT) && number(name, JOURNAL_PREFIX) < journalNumber) {
+				LOG.info("Deleting journal {}, it was written out as a chunk already", file);
+				Files.delete(file.toPath());
+			}
+		}
+		readJournal();
+		int points = journalRows.size();
+		for (final PriceChunk chunk : chunks.values()) {
+			points += chunk.rows();
+		}
+		LOG.info("Opened price history {} with {} points", dir, points);
+	}
+
+	/**
+	 * Read the points of the current journal, cutting off a point a crash cut short, and append to it from now on.
+	 */
+	private void readJournal() throws IOException {
+		final File file = journalFile(journalNumber);
+		journalRows = new PriceChunk.Rows();
+		long validBytes = 0;
+		if (file.exists()) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+				while (true) {
+					final long code = in.readLong();
+					final long time = in.readLong();
+					final long listAmount = in.readLong();
+					final long lowestNewAmount = in.readLong();
+					final String currency = in.readUTF();
+					journalRows.add(code, time, listAmount, lowestNewAmount, currency.isEmpty() ? null : currency);
+					validBytes += 32 + 2 + currency.getBytes(StandardCharsets.UTF_8).length;
+				}
+			} catch (final EOFException e) {
+				// The end, or a point cut short
+			}
+			if (validBytes < file.length()) {
+				LOG.warn("Cutting {} bytes of a point cut short from {}", file.length() - validBytes, file);
+				try (FileChannel channel = new FileOutputStream(file, true).getChannel()) {
+					channel.truncate(validBytes);
+				}
+			}
+		}
+		journalFileOut = new FileOutputStream(file, true);
+		journalOut = new DataOutputStream(new BufferedOutputStream(journalFileOut));
+	}
+
+	/**
+	 * Write the journal's points out as a chunk and start the next journal.
+	 */
+	private void writeChunk() throws IOException {
+		final File file = chunkFile(journalNumber);
+		final File tmp = new File(file.getPath() + TMP_EXT);
+		PriceChunk.write(tmp, journalRows);
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		chunks.put(journalNumber, new PriceChunk(file));
+		LOG.debug("Wrote {} price points to {}", journalRows.size(), file);
+
+		journalOut.close();
+		Files.delete(journalFile(journalNumber).toPath());
+		journalNumber++;
+		readJournal();
+	}
+
+	private File chunkFile(final int number) {
+		return new File(dir, String.format("%s%010d%s", CHUNK_PREFIX, number, EXT));
+	}
+
+	private File journalFile(final int number) {
+		return new File(dir, String.format("%s%010d%s", JOURNAL_PREFIX, number, EXT));
+	}
+
+	private static int number(final String name, final String prefix) {
+		return Integer.parseInt(name.substring(prefix.length(), name.length() - EXT.length()));
+	}
+
+	@Override
+	public String getCheckpointId() {
+		return dir.getPath();
+	}
+
+	/**
+	 * Force the journal to disk.
+	 *
+	 * @return 0, the history is never cut back
+	 */
+	@Override
+	public synchronized long sync() throws IOException {
+		open();
+		journalOut.flush();
+		journalFileOut.getChannel().force(false);
+		return 0;
+	}
+
+	/**
+	 * Nothing to do, prices written after the checkpoint are just recorded again.
+	 */
+	@Override
+	public void recover(final long position) {
+	}
+
+	/**
+	 * Force the journal to disk. Its points are read back when the store is next opened.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (journalRows != null) {
+			sync();
+			journalOut.close();
+			journalRows = null;
+		}
+		closed = true;
+	}
+
+	/**
+	 * The prices of an item at one time. Amounts are in the currency's smallest unit, like cents.
+	 */
+	public static final class PricePoint {
+		private final String asin;
+		private final long timeMillis;
+		private final Long listPrice;
+		private final Long lowestNewPrice;
+		private final String currency;
+
+		PricePoint(final String asin, final long time, final long listPrice, final long lowestNewPrice,
+				final String currency) {
+			this.asin = asin;
+			timeMillis = time * 1000;
+			this.listPrice = listPrice == PriceChunk.NO_AMOUNT ? null : listPrice;
+			this.lowestNewPrice = lowestNewPrice == PriceChunk.NO_AMOUNT ? null : lowestNewPrice;
+			this.currency = currency;
+		}
+
+		public String getASIN() {
+			return asin;
+		}
+
+		/**
+		 * @return When the prices were seen, to the second
+		 */
+		public long getTimeMillis() {
+			return timeMillis;
+		}
+
+		/**
+		 * @return The list price, or null if the item had none
+		 */
+		public Long getListPrice() {
+			return listPrice;
+		}
+
+		/**
+		 * @return The lowest new price, or null if the item had none
+		 */
+		public Long getLowestNewPrice() {
+			return lowestNewPrice;
+		}
+
+		/**
+		 * @return The currency of the list price, or of the lowest new price if there is no list price
+		 */
+		public String getCurrency() {
+			return currency;
+		}
+
+		@Override
+		public String toString() {
+			return "PricePoint{" + asin + " at " + timeMillis + ": list " + listPrice + ", lowest new "
+					+ lowestNewPrice + " " + currency + "}";
+		}
+	}
+}
@@ -0,0 +1,278 @@
+package com.maxpowered.amazon.advertising.api.processors;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazon.webservices.awsecommerceservice._2013_08_01.Item;
+import com.google.common.collect.Lists;
+import com.maxpowered.amazon.advertising.api.FlatItem;
+
+/**
+ * Hands items to one processor on a thread of its own, through a bounded queue. Adding to a full queue waits, so a
+ * processor that falls behind slows down the fetcher instead of filling up the heap. Items are written in the order
+ * they were added, in batches of whatever piled up for a {@link BatchProcessor} or a {@link FlatBatchProcessor}.
+ *
+ * Items are already what the processor takes: a {@link FlatItem} for a {@link FlatProcessor}, a
+ * {@link com.maxpowered.amazon.advertising.api.RawItem} for a {@link RawProcessor} or an {@link Item}.
+ *
+ * The first error writing items is kept, and waiting for the queue to be written fails with it from then on, so a
+ * checkpoint never covers items that did not reach the processor. If the thread dies, adding and waiting fail instead
+ * of blocking for good.
+ */
+class ProcessorQueue implements AutoCloseable {
+	private static final Logger LOG = LoggerFactory.getLogger(ProcessorQueue.class);
+
+	private static final long POLL_MILLIS = 100;
+
+	private final Processor processor;
+	private final BlockingQueue<Entry> queue;
+	private final int batchSize;
+	private final Thread worker;
+	/**
+	 * Guards the count of items added but not written yet.
+	 */
+	private final Object pendingLock = new Object();
+	private int pending = 0;
+	private volatile boolean closed = false;
+	/**
+	 * Set when the worker thread stops, guarded by {@link #pendingLock}.
+	 */
+	private boolean stopped = false;
+	private volatile Throwable failure;
+
+	private volatile int maxDepth = 0;
+	private volatile long written = 0;
+	private volatile long batches = 0;
+	private volatile long totalLatencyNanos = 0;
+	private volatile long maxLatencyNanos = 0;
+
+	ProcessorQueue(final Processor processor, final int queueSize, final int batchSize) {
+		this.processor = processor;
+		this.batchSize = batchSize;
+		queue = new ArrayBlockingQueue<Entry>(queueSize);
+		worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeEntries();
+			}
+		}, "processor-" + processor.getClass().getSimpleName());
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Queue an item, waiting while the queue is full.
+	 *
+	 * @throws IOException
+	 *             If the worker thread stopped, so the item would never be written
+	 */
+	void put(final Object item) throws InterruptedException, IOException {
+		if (closed) {
+			throw new IllegalStateException("Queue for " + processor + " is closed");
+		}
+		synchronized (pendingLock) {
+			checkRunning();
+			pending++;
+		}
+		final Entry entry = new Entry(item);
+		try {
+			while (!queue.offer(entry, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+				synchronized (pendingLock) {
+					checkRunning();
+				}
+			}
+		} catch (final InterruptedException | IOException e) {
+			itemsDone(1);
+			throw e;
+		}
+		final int depth = queue.size();
+		if (depth > maxDepth) {
+			maxDepth = depth;
+		}
+	}
+
+	/**
+	 * Wait until every item added so far is written.
+	 *
+	 * @throws IOException
+	 *             If writing any item failed, now or before, or the worker thread stopped with items left
+	 */
+	void awaitEmpty() throws InterruptedException, IOException {
+		synchronized (pendingLock) {
+			while (pending > 0 && !stopped) {
+				pendingLock.wait();
+			}
+			if (failure != null) {
+				throw new IOException("Error writing items to processor " + processor, failure);
+			}
+			checkRunning();
+		}
+	}
+
+	/**
+	 * Call holding {@link #pendingLock}.
+	 */
+	private void checkRunning() throws IOException {
+		if (stopped && (pending > 0 || !closed)) {
+			throw new IOException("Thread writing to processor " + processor + " stopped with " + pending
+					+ " items left", failure);
+		}
+	}
+
+	private void fail(final Throwable e) {
+		if (failure == null) {
+			failure = e;
+		}
+	}
+
+	Processor getProcessor() {
+		return processor;
+	}
+
+	int getDepth() {
+		return queue.size();
+	}
+
+	int getMaxDepth() {
+		return maxDepth;
+	}
+
+	long getWritten() {
+		return written;
+	}
+
+	long getBatches() {
+		return batches;
+	}
+
+	/**
+	 * @return Average milliseconds from adding an item to having written it
+	 */
+	double getAverageLatencyMillis() {
+		final long written = this.written;
+		return written == 0 ? 0 : totalLatencyNanos / 1e6 / written;
+	}
+
+	double getMaxLatencyMillis() {
+		return maxLatencyNanos / 1e6;
+	}
+
+	private void writeEntries() {
+		final List<Entry> batch = Lists.newArrayListWithCapacity(batchSize);
+		try {
+			while (!closed || !queue.isEmpty()) {
+				final Entry first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				queue.drainTo(batch, batchSize - 1);
+				try {
+					write(batch);
+				} finally {
+					recordLatency(batch);
+					itemsDone(batch.size());
+					batch.clear();
+				}
+			}
+		} catch (final InterruptedException e) {
+			LOG.error("Interrupted with {} items left for {}", queue.size(), processor);
+			fail(e);
+		} catch (final Throwable e) {
+			LOG.error("Thread writing to processor {} failed with {} items left", processor, queue.size(), e);
+			fail(e);
+		} finally {
+			synchronized (pendingLock) {
+				stopped = true;
+				pendingLock.notifyAll();
+			}
+		}
+	}
+
+	private void write(final List<Entry> batch) {
+		if (batch.size() > 1 && (processor instanceof BatchProcessor && batch.get(0).item instanceof Item
+				|| processor instanceof FlatBatchProcessor && batch.get(0).item instanceof FlatItem)) {
+			try {
+				writeBatch(batch);
+			} catch (final Exception e) {
+				LOG.error("Error writing {} items to processor: {}", batch.size(), processor, e);
+				fail(e);
+			}
+			return;
+		}
+		for (final Entry entry : batch) {
+			try {
+				OutputProcessor.write(processor, entry.item);
+			} catch (final Exception e) {
+				LOG.error("Error writing to processor: {}", processor, e);
+				fail(e);
+			}
+		}
+	}
+
+	/**
+	 * Write a batch of items of the kind the first one is. Items are passed on raw or not for the whole run, so they
+	 * are all of one kind.
+	 */
+	@SuppressWarnings("unchecked")
+	private void writeBatch(final List<Entry> batch) throws Exception {
+		final List<Object> items = Lists.newArrayListWithCapacity(batch.size());
+		for (final Entry entry : batch) {
+			items.add(entry.item);
+		}
+		if (batch.get(0).item instanceof Item) {
+			((BatchProcessor) processor).writeItems((List<Item>) (List<?>) items);
+		} else {
+			((FlatBatchProcessor) processor).writeFlatItems((List<FlatItem>) (List<?>) items);
+		}
+	}
+
+	private void recordLatency(final List<Entry> batch) {
+		final long now = System.nanoTime();
+		long total = totalLatencyNanos;
+		long max = maxLatencyNanos;
+		for (final Entry entry : batch) {
+			final long latency = now - entry.queuedNanos;
+			total += latency;
+			max = Math.max(max, latency);
+		}
+		// Only the worker thread writes these
+		totalLatencyNanos = total;
+		maxLatencyNanos = max;
+		written += batch.size();
+		batches++;
+	}
+
+	private void itemsDone(final int count) {
+		synchronized (pendingLock) {
+			pending -= count;
+			if (pending == 0) {
+				pendingLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Write the items still queued and stop the worker.
+	 */
+	@Override
+	public void close() throws InterruptedException {
+		closed = true;
+		worker.join();
+	}
+
+	private static final class Entry {
+		private final Object item;
+		private final long queuedNanos = System.nanoTime();
+
+		private Entry(final Object item) {
+			this.item = item;
+		}
+	}
+}
@@ -0,0 +1,10 @@
+package com.maxpowered.amazon.advertising.api.processors;
+
+import com.maxpowered.amazon.advertising.api.RawItem;
+
+/**
+ * A processor that can take items as the XML they arrived as, saving the unmarshalling for processors that need it.
+ */
+public interface RawProcessor extends Processor {
+	void writeRawItem(RawItem item) throws Exception;
+}
@@ -0,0 +1,371 @@
+package com.maxpowered.amazon.advertising.api.processors;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Output to a series of segment files named after a base file with '.1', '.2' and so on appended, the newest having
+ * the highest number. Each segment is a complete document with its own header and footer. A new segment is started
+ * when the output is opened, and once the current one is big or old enough, checked as items are written.
+ *
+ * Finished segments can be gzipped, to a file with '.gz' appended, by a background thread. The segment being written
+ * is never compressed, so it can be cut back after a crash, see {@link Durable}. Compression cut short by a crash is
+ * started over.
+ *
+ * Earlier versions wrote to the base file itself and moved older files to '.1' and up, the oldest having the highest
+ * number. A base file found when opening marks such output, and it is renumbered oldest first, see
+ * {@link #migrateOldSegments()}. Not thread safe.
+ */
+class RollingOutput implements AutoCloseable {
+	private static final Logger LOG = LoggerFactory.getLogger(RollingOutput.class);
+
+	private static final String GZIP_EXT = ".gz";
+	private static final String TMP_EXT = ".tmp";
+	private static final String MIGRATING_EXT = ".migrating";
+	private static final int BUFFER_SIZE = 1 << 16;
+	/**
+	 * Positions hold the segment number above these bits and the offset in it below.
+	 */
+	private static final int SEGMENT_SHIFT = 40;
+	private static final long OFFSET_MASK = (1L << SEGMENT_SHIFT) - 1;
+	private static final long CLOSE_TIMEOUT_MINUTES = 10;
+
+	private final File baseFile;
+	private final byte[] header;
+	private final byte[] footer;
+	private long rollBytes = 0;
+	private long rollMillis = 0;
+	private boolean compress = false;
+
+	private ExecutorService compressor;
+	private FileOutputStream fileOutputStream;
+	private CountingOutputStream outputStream;
+	private int segment = 0;
+	private long segmentStartMillis;
+
+	/**
+	 * @param header
+	 *            Written at the start of each segment
+	 * @param footer
+	 *            Written at the end of each segment
+	 */
+	RollingOutput(final File baseFile, final byte[] header, final byte[] footer) {
+		this.baseFile = baseFile.getAbsoluteFile();
+		this.header = header;
+		this.footer = footer;
+	}
+
+	/**
+	 * @param rollBytes
+	 *            Start a new segment once the current one is this big, or 0 to not roll by size
+	 */
+	void setRollBytes(final long rollBytes) {
+		this.rollBytes = rollBytes;
+	}
+
+	/**
+	 * @param rollMillis
+	 *            Start a new segment once the current one is this old, or 0 to not roll by time
+	 */
+	void setRollMillis(final long rollMillis) {
+		this.rollMillis = rollMillis;
+	}
+
+	/**
+	 * @param compress
+	 *            Gzip segments once they are finished
+	 */
+	void setCompress(final boolean compress) {
+		this.compress = compress;
+	}
+
+	File getBaseFile() {
+		return baseFile;
+	}
+
+	/**
+	 * @return The stream of the current segment, started if there is none
+	 */
+	OutputStream getOutputStream() throws IOException {
+		if (outputStream == null) {
+			open();
+		}
+		return outputStream;
+	}
+
+	/**
+	 * Start a new segment if the current one is big or old enough. Called after each item, so items are never split.
+	 */
+	void itemWritten() throws IOException {
+		if (outputStream != null
+				&& (rollBytes > 0 && outputStream.getByteCount() >= rollBytes || rollMillis > 0
+						&& System.currentTimeMillis() - segmentStartMillis >= rollMillis)) {
+			finishSegment();
+			startSegment(segment + 1);
+		}
+	}
+
+	/**
+	 * @return The segment number and offset in it of everything written so far, now forced to disk
+	 */
+	long sync() throws IOException {
+		getOutputStream().flush();
+		fileOutputStream.getChannel().force(false);
+		return (long) segment << SEGMENT_SHIFT | outputStream.getByteCount();
+	}
+
+	/**
+	 * Cut the output of a run that crashed back to a position {@link #sync()} returned. Segments started after it are
+	 * deleted, and the segment it is in is cut at it and given its footer again.
+	 */
+	void recover(final long position) throws IOException {
+		deleteCompressionLeftovers();
+		final int recoverSegment = (int) (position >>> SEGMENT_SHIFT);
+		final long offset = position & OFFSET_MASK;
+		for (final int later : segments().tailSet(recoverSegment + 1)) {
+			LOG.info("Deleting segment {} of {}, started after the last checkpoint", later, baseFile);
+			Files.deleteIfExists(segmentFile(later).toPath());
+			Files.deleteIfExists(gzipFile(later).toPath());
+		}
+
+		final File file = segmentFile(recoverSegment);
+		final File gzipFile = gzipFile(recoverSegment);
+		if (!file.exists() && gzipFile.exists()) {
+			if (gzipSize(gzipFile) == (offset + footer.length & 0xffffffffL)) {
+				// Finished right at the checkpoint
+				return;
+			}
+			decompress(gzipFile, file);
+		}
+		if (!file.exists()) {
+			LOG.error("Segment {} of {} is missing, can't recover it", recoverSegment, baseFile);
+			return;
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			if (raf.length() < offset) {
+				LOG.error("Segment {} is shorter than its checkpoint at {}, leaving it as it is", file, offset);
+				return;
+			}
+			LOG.info("Cutting {} bytes written after the last checkpoint from {}", raf.length() - offset, file);
+			raf.setLength(offset);
+			raf.seek(offset);
+			raf.write(footer);
+			raf.getFD().sync();
+		}
+	}
+
+	private void open() throws IOException {
+		migrateOldSegments();
+		deleteCompressionLeftovers();
+		if (compress) {
+			// Left uncompressed by a crash or a run without compression, or compressed only partly
+			for (final int finished : segments()) {
+				if (segmentFile(finished).exists()) {
+					Files.deleteIfExists(gzipFile(finished).toPath());
+					compressLater(finished);
+				}
+			}
+		}
+		startSegment(nextSegment());
+	}
+
+	/**
+	 * Renumber the output of earlier versions, the base file and '.1' to '.N' from newest to oldest, as segments from
+	 * oldest to newest. Each file is first moved to its new number with '.migrating' appended, the base file last, and
+	 * then to its new name, so a migration cut short by a crash is finished the next time.
+	 */
+	private void migrateOldSegments() throws IOException {
+		if (baseFile.exists()) {
+			final SortedSet<Integer> old = segments();
+			final int count = old.size() + numbered(MIGRATING_EXT).size();
+			LOG.info("Renumbering {} files of {} from earlier versions oldest first", count + 1, baseFile);
+			for (final int number : old) {
+				move(segmentFile(number), migratingFile(count + 1 - number));
+			}
+			move(baseFile, migratingFile(count + 1));
+		}
+		for (final int number : numbered(MIGRATING_EXT)) {
+			move(migratingFile(number), segmentFile(number));
+		}
+	}
+
+	private static void move(final File file, final File target) throws IOException {
+		Files.move(file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		LOG.debug("Moved file {} to {}", file, target);
+	}
+
+	/**
+	 * Delete partial gzip files of a compression a crash cut short. The segment is still there to compress again.
+	 */
+	private void deleteCompressionLeftovers() throws IOException {
+		for (final int number : numbered(GZIP_EXT + TMP_EXT)) {
+			final File tmp = new File(gzipFile(number).getPath() + TMP_EXT);
+			LOG.info("Deleting {}, left by compression cut short", tmp);
+			Files.delete(tmp.toPath());
+		}
+	}
+
+	private void startSegment(final int number) throws IOException {
+		segment = number;
+		fileOutputStream = new FileOutputStream(segmentFile(number));
+		outputStream = new CountingOutputStream(new BufferedOutputStream(fileOutputStream, BUFFER_SIZE));
+		outputStream.write(header);
+		segmentStartMillis = System.currentTimeMillis();
+		LOG.debug("Started segment {}", segmentFile(number));
+	}
+
+	/**
+	 * End the current segment and force it to disk, so checkpoints in later segments never cover a segment a crash
+	 * could still lose.
+	 */
+	private void finishSegment() throws IOException {
+		outputStream.write(footer);
+		outputStream.flush();
+		fileOutputStream.getFD().sync();
+		outputStream.close();
+		outputStream = null;
+		if (compress) {
+			compressLater(segment);
+		}
+	}
+
+	private void compressLater(final int number) {
+		if (compressor == null) {
+			compressor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true)
+					.setNameFormat("segment-compression").build());
+		}
+		compressor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					compress(number);
+				} catch (final IOException e) {
+					LOG.error("Error compressing segment {} of {}, leaving it uncompressed", number, baseFile, e);
+				}
+			}
+		});
+	}
+
+	private void compress(final int number) throws IOException {
+		final File file = segmentFile(number);
+		final File gzipFile = gzipFile(number);
+		final File tmp = new File(gzipFile.getPath() + TMP_EXT);
+		try (InputStream in = new FileInputStream(file); FileOutputStream out = new FileOutputStream(tmp)) {
+			final GZIPOutputStream gzipOut = new GZIPOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+			IOUtils.copy(in, gzipOut);
+			gzipOut.finish();
+			gzipOut.flush();
+			out.getFD().sync();
+		}
+		Files.move(tmp.toPath(), gzipFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		Files.delete(file.toPath());
+		LOG.debug("Compressed {} to {}", file, gzipFile);
+	}
+
+	private static void decompress(final File gzipFile, final File file) throws IOException {
+		try (InputStream in = new GZIPInputStream(new FileInputStream(gzipFile));
+				FileOutputStream out = new FileOutputStream(file)) {
+			IOUtils.copy(in, out);
+			out.getFD().sync();
+		}
+		Files.delete(gzipFile.toPath());
+	}
+
+	/**
+	 * @return The uncompressed size modulo 2^32, from the gzip trailer
+	 */
+	private static long gzipSize(final File gzipFile) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(gzipFile, "r")) {
+			raf.seek(raf.length() - 4);
+			final byte[] size = new byte[4];
+			raf.readFully(size);
+			return (size[0] & 0xffL) | (size[1] & 0xffL) << 8 | (size[2] & 0xffL) << 16 | (size[3] & 0xffL) << 24;
+		}
+	}
+
+	private File segmentFile(final int number) {
+		return new File(baseFile.getPath() + "." + number);
+	}
+
+	private File migratingFile(final int number) {
+		return new File(segmentFile(number).getPath() + MIGRATING_EXT);
+	}
+
+	private File gzipFile(final int number) {
+		return new File(segmentFile(number).getPath() + GZIP_EXT);
+	}
+
+	/**
+	 * @return The numbers of the segments on disk, compressed or not
+	 */
+	private SortedSet<Integer> segments() {
+		final SortedSet<Integer> segments = numbered("");
+		segments.addAll(numbered(GZIP_EXT));
+		return segments;
+	}
+
+	/**
+	 * @return The numbers of the files named after the base file with '.', a number and the extension appended
+	 */
+	private SortedSet<Integer> numbered(final String extension) {
+		final SortedSet<Integer> numbers = new TreeSet<Integer>();
+		final String prefix = baseFile.getName() + ".";
+		final String[] names = baseFile.getParentFile().list();
+		if (names == null) {
+			return numbers;
+		}
+		for (final String name : names) {
+			if (!name.startsWith(prefix) || !name.endsWith(extension)
+					|| name.length() < prefix.length() + extension.length()) {
+				continue;
+			}
+			final String number = name.substring(prefix.length(), name.length() - extension.length());
+			if (!number.isEmpty() && number.length() < 10 && number.matches("[0-9]+")) {
+				numbers.add(Integer.valueOf(number));
+			}
+		}
+		return numbers;
+	}
+
+	private int nextSegment() {
+		final SortedSet<Integer> segments = segments();
+		return segments.isEmpty() ? 1 : segments.last() + 1;
+	}
+
+	/**
+	 * Finish the current segment and wait for segments to be compressed.
+	 */
+	@Override
+	public void close() throws IOException, InterruptedException {
+		if (outputStream != null) {
+			finishSegment();
+		}
+		if (compressor != null) {
+			compressor.shutdown();
+			compressor.awaitTermination(CLOSE_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package com.maxpowered.amazon.advertising.api.processors;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A processor writing items to files, see {@link RollingOutput}, or to a stream, between a header and a footer. Output
+ * to files is {@link Durable}. Subclasses write each item to {@link #start()} and then call {@link #itemWritten()}.
+ */
+public abstract class RollingOutputProcessor implements Processor, Durable, AutoCloseable {
+	private final byte[] header;
+	private final byte[] footer;
+
+	private boolean started = false;
+	private File outputFile;
+	private RollingOutput rollingOutput;
+	private OutputStream outputStream;
+	private long rollBytes = 0;
+	private long rollMillis = 0;
+	private boolean compress = false;
+
+	/**
+	 * @param header
+	 *            Written at the start of each file, or of the stream
+	 * @param footer
+	 *            Written at the end of each file, or of the stream
+	 */
+	RollingOutputProcessor(final String outputFile, final byte[] header, final byte[] footer) {
+		this.header = header;
+		this.footer = footer;
+		setOutputFile(outputFile);
+	}
+
+	/**
+	 * @return The stream to write the next item to
+	 */
+	protected OutputStream start() throws IOException {
+		if (outputFile != null) {
+			return rollingOutput().getOutputStream();
+		}
+		if (!started) {
+			outputStream.write(header);
+			started = true;
+		}
+		return outputStream;
+	}
+
+	/**
+	 * Start a new file if the current one is big or old enough.
+	 */
+	protected void itemWritten() throws IOException {
+		if (outputFile != null) {
+			rollingOutput().itemWritten();
+		}
+	}
+
+	private RollingOutput rollingOutput() {
+		if (rollingOutput == null) {
+			rollingOutput = new RollingOutput(outputFile, header, footer);
+			rollingOutput.setRollBytes(rollBytes);
+			rollingOutput.setRollMillis(rollMillis);
+			rollingOutput.setCompress(compress);
+		}
+		return rollingOutput;
+	}
+
+	/**
+	 * @param outputFile
+	 *            Base name of the files written, '.1', '.2' and so on are appended
+	 */
+	public void setOutputFile(final String outputFile) {
+		outputStream = null;
+		rollingOutput = null;
+		this.outputFile = new File(outputFile);
+	}
+
+	public void setOutputStream(final OutputStream outputStream) {
+		outputFile = null;
+		rollingOutput = null;
+		this.outputStream = outputStream;
+	}
+
+	/**
+	 * @param rollBytes
+	 *            Start a new file once the current one is this big, or 0 to not roll by size
+	 */
+	public void setRollBytes(final long rollBytes) {
+		this.rollBytes = rollBytes;
+	}
+
+	/**
+	 * @param rollMillis
+	 *            Start a new file once the current one is this old, or 0 to not roll by time
+	 */
+	public void setRollMillis(final long rollMillis) {
+		this.rollMillis = rollMillis;
+	}
+
+	/**
+	 * @param compress
+	 *            Gzip files once they are finished
+	 */
+	public void setCompress(final boolean compress) {
+		this.compress = compress;
+	}
+
+	@Override
+	public String getCheckpointId() {
+		return outputFile == null ? "stream" : outputFile.getAbsolutePath();
+	}
+
+	/**
+	 * Starts the output file, if it was not started yet, so a crash before the first item still leaves a position to
+	 * recover to.
+	 */
+	@Override
+	public long sync() throws IOException {
+		if (outputFile == null) {
+			if (outputStream != null) {
+				outputStream.flush();
+			}
+			return -1;
+		}
+		return rollingOutput().sync();
+	}
+
+	@Override
+	public void recover(final long position) throws IOException {
+		if (outputFile != null && position >= 0) {
+			rollingOutput().recover(position);
+		}
+	}
+
+	@Override
+	public void close() throws IOException, InterruptedException {
+		if (rollingOutput != null) {
+			rollingOutput.close();
+		}
+		if (started) {
+			outputStream.write(footer);
+		}
+		if (outputStream != null) {
+			outputStream.close();
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package com.maxpowered.util;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A byte array output stream whose bytes can be read without copying them, for a buffer that is reset and reused.
+ */
+public class BytesOutputStream extends ByteArrayOutputStream {
+	public BytesOutputStream(final int size) {
+		super(size);
+	}
+
+	/**
+	 * @return The buffer, of which the first {@link #size()} bytes were written. Valid until the next write or reset.
+	 */
+	public byte[] bytes() {
+		return buf;
+	}
+}
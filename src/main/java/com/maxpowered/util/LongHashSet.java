@@ -0,0 +1,233 @@
+package com.maxpowered.util;
+
+import java.nio.LongBuffer;
+import java.util.NoSuchElementException;
+
+/**
+ * An open addressing hash set of longs with linear probing. It grows to twice the slots once half are taken, so it
+ * takes 16 to 32 bytes per value. 0 marks a free slot, so it can't be added. Not thread safe.
+ *
+ * The slots are kept in a {@link LongBuffer}, on the heap here, or outside it in {@link OffHeapLongHashSet}.
+ */
+public class LongHashSet implements LongSet {
+	private static final int MIN_CAPACITY = 16;
+	private static final int MAX_CAPACITY = 1 << 30;
+
+	private LongBuffer slots;
+	private int mask;
+	private int size = 0;
+
+	public LongHashSet() {
+		this(MIN_CAPACITY / 2);
+	}
+
+	/**
+	 * @param expectedSize
+	 *            Values the set should hold before it grows
+	 */
+	public LongHashSet(final int expectedSize) {
+		final int capacity = capacityFor(expectedSize);
+		slots = allocate(capacity);
+		mask = capacity - 1;
+	}
+
+	/**
+	 * @return The values of one set that are not in another
+	 */
+	public static LongHashSet difference(final LongSet set, final LongSet other) {
+		final LongHashSet difference = new LongHashSet();
+		for (final LongIterator iter = set.iterator(); iter.hasNext();) {
+			final long value = iter.next();
+			if (!other.contains(value)) {
+				difference.add(value);
+			}
+		}
+		return difference;
+	}
+
+	/**
+	 * @return A buffer of the given number of slots, all 0
+	 */
+	protected LongBuffer allocate(final int capacity) {
+		return LongBuffer.allocate(capacity);
+	}
+
+	@Override
+	public boolean add(final long value) {
+		checkValue(value);
+		int i = index(value);
+		long slot;
+		while ((slot = slots.get(i)) != 0) {
+			if (slot == value) {
+				return false;
+			}
+			i = (i + 1) & mask;
+		}
+		slots.put(i, value);
+		if (++size > (mask + 1) / 2) {
+			grow();
+		}
+		return true;
+	}
+
+	/**
+	 * Add every value of another set.
+	 */
+	public void addAll(final LongSet values) {
+		for (final LongIterator iter = values.iterator(); iter.hasNext();) {
+			add(iter.next());
+		}
+	}
+
+	@Override
+	public boolean contains(final long value) {
+		if (value == 0) {
+			return false;
+		}
+		int i = index(value);
+		long slot;
+		while ((slot = slots.get(i)) != 0) {
+			if (slot == value) {
+				return true;
+			}
+			i = (i + 1) & mask;
+		}
+		return false;
+	}
+
+	@Override
+	public boolean remove(final long value) {
+		if (value == 0) {
+			return false;
+		}
+		int i = index(value);
+		long slot;
+		while ((slot = slots.get(i)) != value) {
+			if (slot == 0) {
+				return false;
+			}
+			i = (i + 1) & mask;
+		}
+		// Shift back the values after it that would no longer be found past the free slot
+		int free = i;
+		while (true) {
+			i = (i + 1) & mask;
+			slot = slots.get(i);
+			if (slot == 0) {
+				break;
+			}
+			final int home = index(slot);
+			// Move the value if its home slot is not between the free slot and where it is now
+			if (((i - home) & mask) >= ((i - free) & mask)) {
+				slots.put(free, slot);
+				free = i;
+			}
+		}
+		slots.put(free, 0);
+		size--;
+		return true;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public LongIterator iterator() {
+		return new LongIterator() {
+			private int next = advance(0);
+
+			@Override
+			public boolean hasNext() {
+				return next <= mask;
+			}
+
+			@Override
+			public long next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				final long value = slots.get(next);
+				next = advance(next + 1);
+				return value;
+			}
+
+			private int advance(int i) {
+				while (i <= mask && slots.get(i) == 0) {
+					i++;
+				}
+				return i;
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder("[");
+		for (final LongIterator iter = iterator(); iter.hasNext();) {
+			sb.append(iter.next());
+			if (iter.hasNext()) {
+				sb.append(", ");
+			}
+		}
+		return sb.append(']').toString();
+	}
+
+	private void grow() {
+		if (mask + 1 == MAX_CAPACITY) {
+			throw new IllegalStateException("Set can't hold more than " + MAX_CAPACITY / 2 + " values");
+		}
+		final LongBuffer old = slots;
+		final int oldCapacity = mask + 1;
+		slots = allocate(oldCapacity * 2);
+		mask = oldCapacity * 2 - 1;
+		for (int i = 0; i < oldCapacity; i++) {
+			final long value = old.get(i);
+			if (value != 0) {
+				int j = index(value);
+				while (slots.get(j) != 0) {
+					j = (j + 1) & mask;
+				}
+				slots.put(j, value);
+			}
+		}
+	}
+
+	private int index(final long value) {
+		return (int) hash(value) & mask;
+	}
+
+	/**
+	 * @return The value mixed by the finalizer of MurmurHash3, so values differing only in their high digits spread
+	 *         out over the low ones
+	 */
+	public static long hash(final long value) {
+		long h = value;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static void checkValue(final long value) {
+		if (value == 0) {
+			throw new IllegalArgumentException("0 can't be added to the set");
+		}
+	}
+
+	private static int capacityFor(final int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity / 2 < expectedSize && capacity < MAX_CAPACITY) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+}
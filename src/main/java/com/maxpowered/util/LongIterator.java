@@ -0,0 +1,14 @@
+package com.maxpowered.util;
+
+/**
+ * An iterator over primitive longs, which does not box them.
+ */
+public interface LongIterator {
+	boolean hasNext();
+
+	/**
+	 * @throws java.util.NoSuchElementException
+	 *             If there are no more values
+	 */
+	long next();
+}
@@ -0,0 +1,154 @@
+package com.maxpowered.util;
+
+import java.util.NoSuchElementException;
+
+/**
+ * An open addressing hash map from long to long with linear probing. It grows to twice the slots once half are taken,
+ * so it takes 32 to 64 bytes per key. Key 0 marks a free slot, so it can't be added. There is no removal. Not thread
+ * safe.
+ */
+public class LongLongHashMap {
+	private static final int MIN_CAPACITY = 16;
+	private static final int MAX_CAPACITY = 1 << 30;
+
+	private long[] keys;
+	private long[] values;
+	private int mask;
+	private int size = 0;
+
+	public LongLongHashMap() {
+		this(MIN_CAPACITY / 2);
+	}
+
+	/**
+	 * @param expectedSize
+	 *            Keys the map should hold before it grows
+	 */
+	public LongLongHashMap(final int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity / 2 < expectedSize && capacity < MAX_CAPACITY) {
+			capacity <<= 1;
+		}
+		keys = new long[capacity];
+		values = new long[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * @return Whether the key was not in the map yet
+	 */
+	public boolean put(final long key, final long value) {
+		if (key == 0) {
+			throw new IllegalArgumentException("0 can't be a key");
+		}
+		int i = index(key);
+		while (keys[i] != 0) {
+			if (keys[i] == key) {
+				values[i] = value;
+				return false;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size > (mask + 1) / 2) {
+			grow();
+		}
+		return true;
+	}
+
+	/**
+	 * @return The value of the key, or the default if it is not in the map
+	 */
+	public long get(final long key, final long defaultValue) {
+		if (key == 0) {
+			return defaultValue;
+		}
+		int i = index(key);
+		while (keys[i] != 0) {
+			if (keys[i] == key) {
+				return values[i];
+			}
+			i = (i + 1) & mask;
+		}
+		return defaultValue;
+	}
+
+	public boolean containsKey(final long key) {
+		if (key == 0) {
+			return false;
+		}
+		int i = index(key);
+		while (keys[i] != 0) {
+			if (keys[i] == key) {
+				return true;
+			}
+			i = (i + 1) & mask;
+		}
+		return false;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return The keys in no particular order. The map must not be changed while iterating.
+	 */
+	public LongIterator keyIterator() {
+		return new LongIterator() {
+			private int next = advance(0);
+
+			@Override
+			public boolean hasNext() {
+				return next <= mask;
+			}
+
+			@Override
+			public long next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				final long key = keys[next];
+				next = advance(next + 1);
+				return key;
+			}
+
+			private int advance(int i) {
+				while (i <= mask && keys[i] == 0) {
+					i++;
+				}
+				return i;
+			}
+		};
+	}
+
+	private void grow() {
+		if (mask + 1 == MAX_CAPACITY) {
+			throw new IllegalStateException("Map can't hold more than " + MAX_CAPACITY / 2 + " keys");
+		}
+		final long[] oldKeys = keys;
+		final long[] oldValues = values;
+		keys = new long[oldKeys.length * 2];
+		values = new long[oldKeys.length * 2];
+		mask = keys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != 0) {
+				int j = index(oldKeys[i]);
+				while (keys[j] != 0) {
+					j = (j + 1) & mask;
+				}
+				keys[j] = oldKeys[i];
+				values[j] = oldValues[i];
+			}
+		}
+	}
+
+	private int index(final long key) {
+		return (int) LongHashSet.hash(key) & mask;
+	}
+}
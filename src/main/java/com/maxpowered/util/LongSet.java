@@ -0,0 +1,27 @@
+package com.maxpowered.util;
+
+/**
+ * A set of primitive longs. Implementations may reserve a value that can't be added.
+ */
+public interface LongSet {
+	/**
+	 * @return Whether the value was not in the set yet
+	 */
+	boolean add(long value);
+
+	boolean contains(long value);
+
+	/**
+	 * @return Whether the value was in the set
+	 */
+	boolean remove(long value);
+
+	int size();
+
+	boolean isEmpty();
+
+	/**
+	 * @return The values in no particular order. The set must not be changed while iterating.
+	 */
+	LongIterator iterator();
+}
@@ -0,0 +1,29 @@
+package com.maxpowered.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * A {@link LongHashSet} keeping its slots in direct memory, so even a very large set adds nothing for the garbage
+ * collector to scan or copy. The memory is freed once the set is garbage collected. Direct memory is limited by
+ * -XX:MaxDirectMemorySize, and one set can't hold more than 2^26 (about 67 million) values.
+ */
+public class OffHeapLongHashSet extends LongHashSet {
+	public OffHeapLongHashSet() {
+		super();
+	}
+
+	public OffHeapLongHashSet(final int expectedSize) {
+		super(expectedSize);
+	}
+
+	@Override
+	protected LongBuffer allocate(final int capacity) {
+		if (capacity > Integer.MAX_VALUE / 8) {
+			throw new IllegalStateException("Off-heap set can't have more than " + Integer.MAX_VALUE / 8 + " slots");
+		}
+		// Direct buffers are zeroed
+		return ByteBuffer.allocateDirect(capacity * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+	}
+}
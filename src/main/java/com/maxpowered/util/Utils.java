@@ -1,14 +1,24 @@
 package com.maxpowered.util;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
 
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.amazon.webservices.awsecommerceservice._2013_08_01.Item;
+import com.amazon.webservices.awsecommerceservice._2013_08_01.ItemAttributes;
+import com.amazon.webservices.awsecommerceservice._2013_08_01.OfferSummary;
 import com.amazon.webservices.awsecommerceservice._2013_08_01.Price;
+import com.maxpowered.amazon.advertising.api.FlatItem;
+import com.maxpowered.amazon.advertising.api.Projection;
 import com.maxpowered.amazon.advertising.api.SignedRequestsHelper;
 
 public class Utils {
@@ -28,27 +38,88 @@ public class Utils {
 	}
 
 	/**
-	 * Helper method to find the "normal" (or best guess at normal) price of an item.
+	 * Helper method to find the "normal" (or best guess at normal) price of an item: Amazon's list price, or else the
+	 * lowest new price from a third-party.
 	 */
 	public static Price getPrice(final Item item) {
-		Price price = null;
+		final Price listPrice = getListPrice(item);
+		return listPrice != null ? listPrice : getLowestNewPrice(item);
+	}
 
-		// Get Amazon's list price.
-		try {
-			if ((price = item.getItemAttributes().getListPrice()) != null) {
-				return price;
-			}
-		} catch (final NullPointerException ex) {
-		}
+	/**
+	 * @return Amazon's list price of the item, or null if it has none
+	 */
+	public static Price getListPrice(final Item item) {
+		final ItemAttributes attributes = item.getItemAttributes();
+		return attributes == null ? null : attributes.getListPrice();
+	}
+
+	/**
+	 * @return The lowest new price of the item from a third-party, or null if it has none
+	 */
+	public static Price getLowestNewPrice(final Item item) {
+		final OfferSummary offerSummary = item.getOfferSummary();
+		return offerSummary == null ? null : offerSummary.getLowestNewPrice();
+	}
+
+	/**
+	 * Helper method to find the "normal" (or best guess at normal) price of a projected item, like
+	 * {@link #getPrice(Item)}. The projection needs the price's Amount, CurrencyCode and FormattedPrice paths.
+	 */
+	public static Price getPrice(final FlatItem item) {
+		final Price listPrice = getListPrice(item);
+		return listPrice != null ? listPrice : getLowestNewPrice(item);
+	}
 
-		// Get the lowest new price from a third-party.
+	/**
+	 * @return The list price of a projected item, like {@link #getListPrice(Item)}
+	 */
+	public static Price getListPrice(final FlatItem item) {
+		return getPrice(item, Projection.LIST_PRICE);
+	}
+
+	/**
+	 * @return The lowest new price of a projected item, like {@link #getLowestNewPrice(Item)}
+	 */
+	public static Price getLowestNewPrice(final FlatItem item) {
+		return getPrice(item, Projection.LOWEST_NEW_PRICE);
+	}
+
+	/**
+	 * Map the start of a file into memory. The mapping stays valid after the file's channel is closed here, and after the
+	 * file is moved, until the buffer is garbage collected.
+	 *
+	 * @param mode
+	 *            {@link MapMode#READ_ONLY}, or {@link MapMode#READ_WRITE} to create the file if needed and grow it to
+	 *            the bytes mapped
+	 */
+	public static MappedByteBuffer map(final File file, final MapMode mode, final long bytes) throws IOException {
+		final FileChannel channel;
+		if (mode == MapMode.READ_ONLY) {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		} else {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+		}
 		try {
-			if ((price = item.getOfferSummary().getLowestNewPrice()) != null) {
-				return price;
-			}
-		} catch (final NullPointerException ex) {
+			return channel.map(mode, 0, bytes);
+		} finally {
+			channel.close();
 		}
+	}
 
+	private static Price getPrice(final FlatItem item, final String pricePath) {
+		final String amount = item.get(pricePath + Projection.AMOUNT);
+		final String formattedPrice = item.get(pricePath + Projection.FORMATTED_PRICE);
+		if (amount == null && formattedPrice == null) {
+			return null;
+		}
+		final Price price = new Price();
+		if (amount != null) {
+			price.setAmount(new BigInteger(amount.trim()));
+		}
+		price.setCurrencyCode(item.get(pricePath + Projection.CURRENCY_CODE));
+		price.setFormattedPrice(formattedPrice);
 		return price;
 	}
 }
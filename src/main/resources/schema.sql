@@ -0,0 +1,18 @@
+-- Tables MySqlProcessor writes to, created when missing. Kept to SQL that H2 in MySQL mode runs as well.
+
+CREATE TABLE IF NOT EXISTS items (
+	asin VARCHAR(16) NOT NULL,
+	title VARCHAR(1000),
+	price_amount BIGINT,
+	price_currency VARCHAR(8),
+	price_formatted VARCHAR(64),
+	updated TIMESTAMP NOT NULL,
+	PRIMARY KEY (asin)
+);
+
+CREATE TABLE IF NOT EXISTS item_images (
+	asin VARCHAR(16) NOT NULL,
+	size VARCHAR(8) NOT NULL,
+	url VARCHAR(512) NOT NULL,
+	PRIMARY KEY (asin, size)
+);
@@ -0,0 +1,161 @@
+package com.maxpowered.amazon.advertising.api.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.maxpowered.amazon.advertising.api.processors.Durable;
+
+/**
+ * Replays committed ASINs after a crash, up to the first record cut short or corrupted.
+ */
+public class CheckpointTest {
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Size of the record a commit of one ASIN appends: length, CRC, output count, id, position, ASIN count and ASIN.
+	 */
+	private static final int ONE_ASIN_RECORD_BYTES = 4 + 8 + 4 + 2 + "output".length() + 8 + 4 + 8;
+
+	private static class Output implements Durable {
+		private long position = 0;
+		private long recoveredTo = -1;
+
+		@Override
+		public String getCheckpointId() {
+			return "output";
+		}
+
+		@Override
+		public long sync() {
+			return position += 100;
+		}
+
+		@Override
+		public void recover(final long position) {
+			recoveredTo = position;
+		}
+	}
+
+	@Test
+	public void replaysCommittedAsins() throws Exception {
+		final File crashed = commitAndCrash();
+		final Output output = new Output();
+		try (ProcessedAsinIndex index = newIndex("replayed");
+				Checkpoint checkpoint = newCheckpoint(crashed, index, output)) {
+			assertTrue(index.contains(1));
+			assertTrue(index.contains(2));
+			assertTrue(index.contains(3));
+			assertEquals(3, index.size());
+			assertEquals(400, output.recoveredTo);
+		}
+	}
+
+	@Test
+	public void stopsAtRecordCutShort() throws Exception {
+		final File crashed = commitAndCrash();
+		try (RandomAccessFile file = new RandomAccessFile(crashed, "rw")) {
+			file.setLength(file.length() - 3);
+		}
+		final Output output = new Output();
+		try (ProcessedAsinIndex index = newIndex("replayed");
+				Checkpoint checkpoint = newCheckpoint(crashed, index, output)) {
+			assertTrue(index.contains(1));
+			assertTrue(index.contains(2));
+			assertFalse(index.contains(3));
+			assertEquals(2, index.size());
+			assertEquals(300, output.recoveredTo);
+		}
+	}
+
+	@Test
+	public void stopsAtCorruptRecord() throws Exception {
+		final File crashed = commitAndCrash();
+		// Flip a byte of the ASIN in the second commit, so it and the third are ignored
+		try (RandomAccessFile file = new RandomAccessFile(crashed, "rw")) {
+			final long offset = file.length() - ONE_ASIN_RECORD_BYTES - 1;
+			file.seek(offset);
+			final int b = file.read();
+			file.seek(offset);
+			file.write(b ^ 0xff);
+		}
+		final Output output = new Output();
+		try (ProcessedAsinIndex index = newIndex("replayed");
+				Checkpoint checkpoint = newCheckpoint(crashed, index, output)) {
+			assertTrue(index.contains(1));
+			assertFalse(index.contains(2));
+			assertFalse(index.contains(3));
+			assertEquals(1, index.size());
+			assertEquals(200, output.recoveredTo);
+		}
+	}
+
+	@Test(timeout = 120000)
+	public void startsNewFileOnceLarge() throws Exception {
+		final File file = new File(folder.getRoot(), "checkpoint");
+		final File crashed = new File(folder.getRoot(), "crashed");
+		final Output output = new Output();
+		try (ProcessedAsinIndex index = newIndex("index"); Checkpoint checkpoint = newCheckpoint(file, index, output)) {
+			// More than 16MB of ASINs in one record
+			for (long asin = 1; asin <= 2200000; asin++) {
+				checkpoint.add(asin);
+			}
+			checkpoint.commit();
+			assertTrue(file.length() < 1024);
+			checkpoint.add(2200001);
+			checkpoint.commit();
+			Files.copy(file.toPath(), crashed.toPath());
+			assertTrue(index.contains(1));
+		}
+
+		// The index has the ASINs of the large record already, so only the last commit is replayed
+		final Output recovered = new Output();
+		try (ProcessedAsinIndex index = newIndex("replayed");
+				Checkpoint checkpoint = newCheckpoint(crashed, index, recovered)) {
+			assertTrue(index.contains(2200001));
+			assertFalse(index.contains(1));
+			assertEquals(1, index.size());
+			assertEquals(300, recovered.recoveredTo);
+		}
+	}
+
+	/**
+	 * Commit ASINs 1, 2 and 3 one at a time, at output positions 200, 300 and 400, and copy the checkpoint file as a
+	 * crash would leave it.
+	 */
+	private File commitAndCrash() throws IOException, InterruptedException {
+		final File file = new File(folder.getRoot(), "checkpoint");
+		final File crashed = new File(folder.getRoot(), "crashed");
+		try (ProcessedAsinIndex index = newIndex("index");
+				Checkpoint checkpoint = newCheckpoint(file, index, new Output())) {
+			for (long asin = 1; asin <= 3; asin++) {
+				checkpoint.add(asin);
+				checkpoint.commit();
+			}
+			Files.copy(file.toPath(), crashed.toPath());
+		}
+		return crashed;
+	}
+
+	private ProcessedAsinIndex newIndex(final String name) throws IOException {
+		return new ProcessedAsinIndex(new File(folder.getRoot(), name), null);
+	}
+
+	private static Checkpoint newCheckpoint(final File file, final ProcessedAsinIndex index, final Output output)
+			throws IOException {
+		final List<Durable> outputs = Collections.<Durable> singletonList(output);
+		return new Checkpoint(file, index, outputs, new Object(), 1000, 3600000);
+	}
+}
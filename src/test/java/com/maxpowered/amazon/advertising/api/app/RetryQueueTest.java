@@ -0,0 +1,66 @@
+package com.maxpowered.amazon.advertising.api.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Hands out ASINs when they are due, and keeps them across restarts.
+ */
+public class RetryQueueTest {
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void handsOutAsinsOnceDue() throws Exception {
+		final File file = new File(folder.getRoot(), "retry");
+		try (RetryQueue queue = new RetryQueue(file, 5, 0, 0)) {
+			queue.add(Arrays.asList("B000000001", "B000000002", "B000000003"));
+			assertEquals(0, queue.millisUntilNextReady());
+			assertEquals(Arrays.asList("B000000001", "B000000002"), queue.pollReady(2));
+			assertEquals(Arrays.asList("B000000003"), queue.pollReady(2));
+			// Taken ASINs are not handed out again until they fail again
+			assertEquals(Collections.emptyList(), queue.pollReady(2));
+			assertEquals(Long.MAX_VALUE, queue.millisUntilNextReady());
+			queue.add(Arrays.asList("B000000002"));
+			queue.remove(Arrays.asList("B000000001", "B000000003"));
+			assertEquals(Arrays.asList("B000000002"), queue.pollReady(2));
+			assertEquals(1, queue.size());
+		}
+	}
+
+	@Test
+	public void waitsLongerAfterEachFailure() throws Exception {
+		final File file = new File(folder.getRoot(), "retry");
+		try (RetryQueue queue = new RetryQueue(file, 5, 60000, 600000)) {
+			queue.add(Arrays.asList("B000000001"));
+			queue.add(Arrays.asList("B000000002"));
+			queue.add(Arrays.asList("B000000002"));
+			final long wait = queue.millisUntilNextReady();
+			assertTrue(wait > 50000 && wait <= 60000);
+			assertEquals(Collections.emptyList(), queue.pollReady(2));
+		}
+	}
+
+	@Test
+	public void keepsAsinsAcrossRestarts() throws Exception {
+		final File file = new File(folder.getRoot(), "retry");
+		try (RetryQueue queue = new RetryQueue(file, 2, 0, 0)) {
+			queue.add(Arrays.asList("B000000001", "B000000002", "B000000003"));
+			queue.remove(Arrays.asList("B000000002"));
+			// A second failure is the last attempt
+			assertEquals(Arrays.asList("B000000003"), queue.add(Arrays.asList("B000000003")));
+		}
+		try (RetryQueue queue = new RetryQueue(file, 2, 0, 0)) {
+			assertEquals(1, queue.size());
+			assertEquals(Arrays.asList("B000000001"), queue.pollReady(10));
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package com.maxpowered.amazon.advertising.api.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.Maps;
+import com.maxpowered.amazon.advertising.api.RawItem;
+
+/**
+ * Reads back the latest item of each ASIN, after a crash and while segments are compacted.
+ */
+public class ItemStoreTest {
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private final Random random = new Random(1);
+
+	@Test
+	public void readsBackLatestItems() throws Exception {
+		final Map<String, String> expected = Maps.newHashMap();
+		try (ItemStore store = newStore()) {
+			for (int i = 1; i <= 100; i++) {
+				write(store, expected, asin(i), "first " + i);
+			}
+			for (int i = 1; i <= 100; i += 3) {
+				write(store, expected, asin(i), "second " + i);
+			}
+			assertItems(store, expected);
+			assertNull(store.get(asin(101)));
+			assertFalse(store.contains(asin(101)));
+		}
+		try (ItemStore store = newStore()) {
+			assertItems(store, expected);
+		}
+	}
+
+	@Test
+	public void rebuildsAfterCrashAndCutsLastRecord() throws Exception {
+		final Map<String, String> expected = Maps.newHashMap();
+		final File segment = new File(dir(), "segment-0000000001.dat");
+		final long goodBytes;
+		try (ItemStore store = newStore()) {
+			write(store, expected, asin(1), "first 1");
+			write(store, expected, asin(2), "first 2");
+			write(store, expected, asin(1), "second 1");
+			store.sync();
+			goodBytes = segment.length();
+			write(store, Maps.<String, String> newHashMap(), asin(3), "lost 3");
+		}
+		// A crash leaves the index marked unclean and the last record cut short
+		try (RandomAccessFile index = new RandomAccessFile(new File(dir(), "index.bin"), "rw")) {
+			index.seek(16);
+			index.writeInt(0);
+		}
+		try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+			file.setLength(file.length() - 5);
+		}
+
+		try (ItemStore store = newStore()) {
+			assertItems(store, expected);
+			assertFalse(store.contains(asin(3)));
+			assertEquals(goodBytes, segment.length());
+			write(store, expected, asin(3), "again 3");
+		}
+		try (ItemStore store = newStore()) {
+			assertItems(store, expected);
+		}
+	}
+
+	@Test(timeout = 120000)
+	public void compactionKeepsItemsWrittenMeanwhile() throws Exception {
+		final Map<String, String> expected = Maps.newHashMap();
+		final int items = 500;
+		try (ItemStore store = newStore()) {
+			for (int i = 1; i <= items + 1; i++) {
+				write(store, expected, asin(i), "first " + i);
+			}
+		}
+
+		try (ItemStore store = newStore()) {
+			// Every write starts a new segment, and the first one is compacted once any of it is old
+			store.setSegmentBytes(1);
+			store.setCompactRatio(1.0);
+			write(store, expected, asin(items + 1), "second " + (items + 1));
+			write(store, expected, asin(items + 2), "first " + (items + 2));
+			store.setSegmentBytes(Integer.MAX_VALUE);
+
+			// Write the rest again while the first segment is being copied, before its records are pointed to
+			final File tmp = new File(dir(), "segment-0000000001.dat.tmp");
+			boolean written = false;
+			while (!written) {
+				synchronized (store) {
+					if (tmp.exists()) {
+						for (int i = 1; i <= items; i++) {
+							write(store, expected, asin(i), "second " + i);
+						}
+						written = true;
+					}
+				}
+			}
+			assertItems(store, expected);
+		}
+		try (ItemStore store = newStore()) {
+			assertItems(store, expected);
+			assertFalse(new File(dir(), "segment-0000000001.dat").exists());
+		}
+	}
+
+	private File dir() {
+		return new File(folder.getRoot(), "items");
+	}
+
+	private ItemStore newStore() {
+		return new ItemStore(dir().getPath());
+	}
+
+	/**
+	 * Write an item with the title, padded to a few KB so copying a segment takes a while.
+	 */
+	private void write(final ItemStore store, final Map<String, String> expected, final String asin,
+			final String title) throws IOException {
+		final StringBuilder padding = new StringBuilder();
+		for (int i = 0; i < 512; i++) {
+			padding.append(Long.toString(random.nextLong() & Long.MAX_VALUE, 36));
+		}
+		final byte[] xml = ("<Item><ASIN>" + asin + "</ASIN><ItemAttributes><Title>" + title + "</Title><Binding>"
+				+ padding + "</Binding></ItemAttributes></Item>").getBytes(StandardCharsets.UTF_8);
+		store.writeRawItem(new RawItem(xml, 0, xml.length));
+		expected.put(asin, title);
+	}
+
+	private static void assertItems(final ItemStore store, final Map<String, String> expected) throws IOException {
+		assertEquals(expected.size(), store.size());
+		for (final Map.Entry<String, String> item : expected.entrySet()) {
+			assertTrue(store.contains(item.getKey()));
+			assertEquals(item.getValue(), title(store.get(item.getKey())));
+		}
+		final Map<String, String> scanned = Maps.newHashMap();
+		for (final Iterator<byte[]> iter = store.scan(); iter.hasNext();) {
+			final String xml = new String(iter.next(), StandardCharsets.UTF_8);
+			scanned.put(between(xml, "<ASIN>", "</ASIN>"), between(xml, "<Title>", "</Title>"));
+		}
+		assertEquals(expected, scanned);
+	}
+
+	private static String title(final byte[] xml) {
+		return between(new String(xml, StandardCharsets.UTF_8), "<Title>", "</Title>");
+	}
+
+	private static String between(final String s, final String start, final String end) {
+		final int from = s.indexOf(start) + start.length();
+		return s.substring(from, s.indexOf(end, from));
+	}
+
+	private static String asin(final int i) {
+		return String.format("B%09d", i);
+	}
+}
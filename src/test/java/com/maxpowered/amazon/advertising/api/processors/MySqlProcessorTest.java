@@ -0,0 +1,252 @@
+package com.maxpowered.amazon.advertising.api.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import javax.sql.DataSource;
+import javax.xml.bind.JAXBException;
+
+import org.apache.commons.io.IOUtils;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.maxpowered.amazon.advertising.api.FlatItem;
+import com.maxpowered.amazon.advertising.api.Projection;
+import com.maxpowered.amazon.advertising.api.RawItem;
+
+/**
+ * Writes through {@link MySqlProcessor} to H2 in MySQL mode, which runs the same schema.sql and upserts.
+ */
+public class MySqlProcessorTest {
+	private static int databases = 0;
+
+	private JdbcDataSource database;
+	private final List<String> statements = Lists.newArrayList();
+	private MySqlProcessor processor;
+	private boolean down = false;
+
+	@Before
+	public void setUp() throws SQLException, IOException {
+		database = new JdbcDataSource();
+		database.setURL("jdbc:h2:mem:items" + databases++ + ";MODE=MySQL;DB_CLOSE_DELAY=-1");
+		final String schema;
+		try (InputStream in = getClass().getClassLoader().getResourceAsStream("schema.sql")) {
+			schema = IOUtils.toString(in, "UTF-8");
+		}
+		try (Connection connection = database.getConnection(); Statement statement = connection.createStatement()) {
+			for (final String sql : schema.replaceAll("(?m)^--.*$", "").split(";")) {
+				if (!sql.trim().isEmpty()) {
+					statement.execute(sql);
+				}
+			}
+		}
+		processor = new MySqlProcessor();
+		processor.setDataSource(recording(database));
+		processor.setFlushMillis(0);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		processor.close();
+		try (Connection connection = database.getConnection(); Statement statement = connection.createStatement()) {
+			statement.execute("SHUTDOWN");
+		}
+	}
+
+	@Test
+	public void writesRowsInMultiRowInserts() throws Exception {
+		processor.setBatchRows(8);
+		for (int i = 0; i < 7; i++) {
+			processor.writeFlatItem(item("B00000000" + i, "Title " + i, 100 + i, "http://images/" + i));
+		}
+		assertEquals(0, count("items"));
+
+		processor.flush();
+		assertEquals(7, count("items"));
+		assertEquals(7, count("item_images"));
+		// 7 rows as 4, 2 and 1
+		final List<Integer> itemStatementRows = Lists.newArrayList();
+		for (final String sql : statements) {
+			if (sql.startsWith("INSERT INTO items ")) {
+				itemStatementRows.add(sql.split("\\), \\(").length);
+			}
+		}
+		assertEquals(Lists.newArrayList(4, 2, 1), itemStatementRows);
+		assertEquals("Title 3", query("SELECT title FROM items WHERE asin = 'B000000003'"));
+		assertEquals("103", query("SELECT price_amount FROM items WHERE asin = 'B000000003'"));
+		assertEquals("USD", query("SELECT price_currency FROM items WHERE asin = 'B000000003'"));
+	}
+
+	@Test
+	public void flushesOnceBatchIsFull() throws Exception {
+		processor.setBatchRows(2);
+		processor.writeFlatItem(item("B000000001", "One", 100, "http://images/1"));
+		assertEquals(0, count("items"));
+		processor.writeFlatItem(item("B000000002", "Two", 200, "http://images/2"));
+		assertEquals(2, count("items"));
+	}
+
+	@Test
+	public void writesBatchesOfFlatItems() throws Exception {
+		processor.setBatchRows(3);
+		processor.writeFlatItems(Lists.newArrayList(item("B000000001", "One", 100, "http://images/1"),
+				item("B000000002", "Two", 200, "http://images/2")));
+		assertEquals(0, count("items"));
+		processor.writeFlatItems(Lists.newArrayList(item("B000000003", "Three", 300, "http://images/3"),
+				item("B000000004", "Four", 400, "http://images/4")));
+		assertEquals(4, count("items"));
+		assertEquals("Four", query("SELECT title FROM items WHERE asin = 'B000000004'"));
+	}
+
+	@Test
+	public void updatesRowsOnDuplicateKey() throws Exception {
+		processor.writeFlatItem(item("B000000001", "Old title", 100, "http://images/old"));
+		processor.writeFlatItem(item("B000000002", "Other", 300, "http://images/other"));
+		processor.flush();
+
+		processor.writeFlatItem(item("B000000001", "New title", 250, "http://images/new"));
+		processor.flush();
+		assertEquals(2, count("items"));
+		assertEquals(2, count("item_images"));
+		assertEquals("New title", query("SELECT title FROM items WHERE asin = 'B000000001'"));
+		assertEquals("250", query("SELECT price_amount FROM items WHERE asin = 'B000000001'"));
+		assertEquals("http://images/new", query("SELECT url FROM item_images WHERE asin = 'B000000001'"));
+		assertEquals("Other", query("SELECT title FROM items WHERE asin = 'B000000002'"));
+		assertTrue(statements.get(statements.size() - 1).contains("ON DUPLICATE KEY UPDATE"));
+	}
+
+	@Test
+	public void dropsRowsTheDatabaseRefuses() throws Exception {
+		final StringBuilder longTitle = new StringBuilder();
+		for (int i = 0; i < 1001; i++) {
+			longTitle.append('x');
+		}
+		processor.writeFlatItem(item("B000000001", "One", 100, "http://images/1"));
+		processor.writeFlatItem(item("B000000002", longTitle.toString(), 200, "http://images/2"));
+		processor.writeFlatItem(item("B000000003", "Three", 300, "http://images/3"));
+		processor.flush();
+		assertEquals(2, count("items"));
+		assertEquals(null, query("SELECT title FROM items WHERE asin = 'B000000002'"));
+		assertEquals(2, count("item_images"));
+
+		// Nothing is left to fail the next flush
+		processor.writeFlatItem(item("B000000004", "Four", 400, "http://images/4"));
+		processor.flush();
+		assertEquals(3, count("items"));
+	}
+
+	@Test
+	public void keepsRowsWhileTheDatabaseIsDown() throws Exception {
+		processor.setMaxPendingRows(2);
+		down = true;
+		processor.writeFlatItem(item("B000000001", "One", 100, "http://images/1"));
+		processor.writeFlatItem(item("B000000002", "Two", 200, "http://images/2"));
+		try {
+			processor.flush();
+			fail("Flushed with the database down");
+		} catch (final SQLException e) {
+			// Expected
+		}
+		// An ASIN already waiting is replaced, a new one is refused
+		processor.writeFlatItem(item("B000000002", "Two again", 200, "http://images/2"));
+		try {
+			processor.writeFlatItem(item("B000000003", "Three", 300, "http://images/3"));
+			fail("Took more rows than the limit");
+		} catch (final IOException e) {
+			// Expected
+		}
+
+		down = false;
+		processor.flush();
+		assertEquals(2, count("items"));
+		assertEquals("Two again", query("SELECT title FROM items WHERE asin = 'B000000002'"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void outputRefusesProjectionsWithoutItsPaths() {
+		final OutputProcessor output = new OutputProcessor();
+		output.setProjection(new String[] { Projection.TITLE });
+		output.addProcessor(processor);
+	}
+
+	private static FlatItem item(final String asin, final String title, final long amount, final String imageUrl)
+			throws JAXBException {
+		final byte[] xml = ("<Item><ASIN>" + asin + "</ASIN><SmallImage><URL>" + imageUrl + "</URL></SmallImage>"
+				+ "<ItemAttributes><Title>" + title + "</Title><ListPrice><Amount>" + amount + "</Amount>"
+				+ "<CurrencyCode>USD</CurrencyCode><FormattedPrice>$" + amount / 100 + "." + amount % 100
+				+ "</FormattedPrice></ListPrice></ItemAttributes></Item>").getBytes(StandardCharsets.UTF_8);
+		return new RawItem(xml, 0, xml.length).getFlatItem(Projection.DEFAULT);
+	}
+
+	private int count(final String table) throws SQLException {
+		return Integer.parseInt(query("SELECT COUNT(*) FROM " + table));
+	}
+
+	private String query(final String sql) throws SQLException {
+		try (Connection connection = database.getConnection();
+				Statement statement = connection.createStatement();
+				ResultSet result = statement.executeQuery(sql)) {
+			return result.next() ? result.getString(1) : null;
+		}
+	}
+
+	/**
+	 * @return The data source, recording the SQL of the statements prepared on its connections, and failing to connect
+	 *         while the database is down
+	 */
+	private DataSource recording(final DataSource dataSource) {
+		return proxy(DataSource.class, dataSource, new InvocationHandler() {
+			@Override
+			public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+				if (down && method.getName().equals("getConnection")) {
+					throw new SQLException("Connection refused", "08001");
+				}
+				final Object result = invokeOn(dataSource, method, args);
+				if (result instanceof Connection) {
+					final Connection connection = (Connection) result;
+					return proxy(Connection.class, connection, new InvocationHandler() {
+						@Override
+						public Object invoke(final Object proxy, final Method method, final Object[] args)
+								throws Throwable {
+							if (method.getName().equals("prepareStatement")) {
+								statements.add((String) args[0]);
+							}
+							return invokeOn(connection, method, args);
+						}
+					});
+				}
+				return result;
+			}
+		});
+	}
+
+	private static <T> T proxy(final Class<T> type, final T target, final InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(target.getClass().getClassLoader(), new Class<?>[] { type },
+				handler));
+	}
+
+	private static Object invokeOn(final Object target, final Method method, final Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (final InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package com.maxpowered.amazon.advertising.api.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.amazon.webservices.awsecommerceservice._2013_08_01.Item;
+import com.google.common.collect.Lists;
+
+/**
+ * Errors writing queued items have to reach whoever waits for the queue, so a checkpoint never covers them.
+ */
+public class ProcessorQueueTest {
+	@Test(timeout = 10000)
+	public void awaitEmptyFailsAfterAWriteFails() throws Exception {
+		final List<String> written = Lists.newArrayList();
+		final ProcessorQueue queue = new ProcessorQueue(new Processor() {
+			@Override
+			public void writeItem(final Item item) throws IOException {
+				if (item.getASIN().equals("B000000002")) {
+					throw new IOException("Disk full");
+				}
+				written.add(item.getASIN());
+			}
+		}, 10, 1);
+		queue.put(item("B000000001"));
+		queue.awaitEmpty();
+		queue.put(item("B000000002"));
+		queue.put(item("B000000003"));
+		try {
+			queue.awaitEmpty();
+			fail("Waited for a queue whose write failed");
+		} catch (final IOException e) {
+			assertEquals("Disk full", e.getCause().getMessage());
+		}
+		// Still failing, the items were never written
+		try {
+			queue.awaitEmpty();
+			fail("Waited for a queue whose write failed");
+		} catch (final IOException e) {
+			// Expected
+		}
+		assertEquals(Lists.newArrayList("B000000001", "B000000003"), written);
+		queue.close();
+	}
+
+	@Test(timeout = 10000)
+	public void failsInsteadOfBlockingOnceTheThreadDies() throws Exception {
+		final ProcessorQueue queue = new ProcessorQueue(new Processor() {
+			@Override
+			public void writeItem(final Item item) {
+				throw new OutOfMemoryError("Thrown on purpose");
+			}
+		}, 2, 1);
+		try {
+			for (int i = 0; i < 10; i++) {
+				queue.put(item("B00000000" + i));
+			}
+			fail("Kept queueing for a dead thread");
+		} catch (final IOException e) {
+			// Expected
+		}
+		try {
+			queue.awaitEmpty();
+			fail("Waited for a dead thread");
+		} catch (final IOException e) {
+			assertEquals(OutOfMemoryError.class, e.getCause().getClass());
+		}
+		queue.close();
+	}
+
+	private static Item item(final String asin) {
+		final Item item = new Item();
+		item.setASIN(asin);
+		return item;
+	}
+}
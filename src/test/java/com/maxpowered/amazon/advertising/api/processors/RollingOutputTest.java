@@ -0,0 +1,120 @@
+package com.maxpowered.amazon.advertising.api.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Cuts segments back after a crash, and finishes migrations and compressions a crash cut short.
+ */
+public class RollingOutputTest {
+	private static final byte[] HEADER = bytes("<h>");
+	private static final byte[] FOOTER = bytes("</h>");
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	@Test(timeout = 60000)
+	public void recoversIntoGzippedSegment() throws Exception {
+		final File base = new File(folder.getRoot(), "out");
+		final long position;
+		try (RollingOutput output = newOutput(base)) {
+			output.setRollBytes(10);
+			output.setCompress(true);
+			write(output, "item1");
+			position = output.sync();
+			// Rolls to segment 2, and segment 1 is gzipped
+			write(output, "item2");
+			write(output, "item3");
+		}
+		assertFalse(file(base, ".1").exists());
+		assertTrue(file(base, ".1.gz").exists());
+		assertTrue(file(base, ".2.gz").exists());
+		Files.write(file(base, ".2.gz.tmp").toPath(), bytes("partial"));
+
+		try (RollingOutput output = newOutput(base)) {
+			output.recover(position);
+		}
+		assertEquals("<h>item1</h>", read(file(base, ".1")));
+		assertFalse(file(base, ".1.gz").exists());
+		assertFalse(file(base, ".2").exists());
+		assertFalse(file(base, ".2.gz").exists());
+		assertFalse(file(base, ".2.gz.tmp").exists());
+	}
+
+	@Test
+	public void finishesMigrationCutShort() throws Exception {
+		final File base = new File(folder.getRoot(), "out");
+		// Earlier versions left 'out', 'out.1' and 'out.2', newest first, and the migration moved only 'out.1'
+		Files.write(base.toPath(), bytes("newest"));
+		Files.write(file(base, ".2.migrating").toPath(), bytes("middle"));
+		Files.write(file(base, ".2").toPath(), bytes("oldest"));
+
+		try (RollingOutput output = newOutput(base)) {
+			write(output, "item");
+		}
+		assertEquals("oldest", read(file(base, ".1")));
+		assertEquals("middle", read(file(base, ".2")));
+		assertEquals("newest", read(file(base, ".3")));
+		assertEquals("<h>item</h>", read(file(base, ".4")));
+		assertFalse(base.exists());
+		assertFalse(file(base, ".2.migrating").exists());
+		assertFalse(file(base, ".3.migrating").exists());
+	}
+
+	@Test(timeout = 60000)
+	public void compressesAgainAfterCompressionCutShort() throws Exception {
+		final File base = new File(folder.getRoot(), "out");
+		Files.write(file(base, ".1").toPath(), bytes("<h>item1</h>"));
+		Files.write(file(base, ".1.gz.tmp").toPath(), bytes("partial"));
+
+		try (RollingOutput output = newOutput(base)) {
+			output.setCompress(true);
+			write(output, "item2");
+		}
+		assertFalse(file(base, ".1.gz.tmp").exists());
+		assertFalse(file(base, ".1").exists());
+		assertEquals("<h>item1</h>", readGzip(file(base, ".1.gz")));
+		assertEquals("<h>item2</h>", readGzip(file(base, ".2.gz")));
+	}
+
+	private static RollingOutput newOutput(final File base) {
+		return new RollingOutput(base, HEADER, FOOTER);
+	}
+
+	private static void write(final RollingOutput output, final String item) throws IOException {
+		output.getOutputStream().write(bytes(item));
+		output.itemWritten();
+	}
+
+	private static File file(final File base, final String extension) {
+		return new File(base.getPath() + extension);
+	}
+
+	private static byte[] bytes(final String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String read(final File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+	}
+
+	private static String readGzip(final File file) throws IOException {
+		try (InputStream in = new GZIPInputStream(new FileInputStream(file))) {
+			return IOUtils.toString(in, StandardCharsets.UTF_8);
+		}
+	}
+}